@@ -0,0 +1,37 @@
+package com.wizecore.metrics.benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every benchmark single-threaded and contended (one thread per CPU),
+ * reporting throughput, sampled latency and allocation rate.
+ * Standard JMH command line options can be passed to narrow the run, e.g. <code>-p mode=immediate counterInc</code>.
+ */
+public class Main {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		int cpus = Runtime.getRuntime().availableProcessors();
+		for (int threads : new int[] { 1, Math.max(2, cpus) }) {
+			OptionsBuilder builder = new OptionsBuilder();
+			builder.parent(cmd);
+			if (cmd.getIncludes().isEmpty()) {
+				builder.include(MetricBenchmark.class.getSimpleName());
+			}
+			Options opts = builder
+				.threads(threads)
+				.mode(Mode.Throughput)
+				.mode(Mode.SampleTime)
+				.addProfiler(GCProfiler.class)
+				.build();
+			new Runner(opts).run();
+		}
+	}
+}
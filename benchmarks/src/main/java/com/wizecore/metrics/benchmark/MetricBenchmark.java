@@ -0,0 +1,67 @@
+package com.wizecore.metrics.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+
+/**
+ * Hot paths of persistent metrics: updates and registry lookups.
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MetricBenchmark {
+
+	/**
+	 * Per thread value source, so recorded values are not constant.
+	 */
+	@State(Scope.Thread)
+	public static class Values {
+		long next;
+
+		long next() {
+			return next = next * 6364136223846793005L + 1442695040888963407L;
+		}
+	}
+
+	@Benchmark
+	public void counterInc(RegistryState s) {
+		s.counter.inc();
+	}
+
+	@Benchmark
+	public void meterMark(RegistryState s) {
+		s.meter.mark();
+	}
+
+	@Benchmark
+	public void histogramUpdate(RegistryState s, Values v) {
+		s.histogram.update(v.next() >>> 44);
+	}
+
+	@Benchmark
+	public void timerUpdate(RegistryState s, Values v) {
+		s.timer.update(v.next() >>> 44, TimeUnit.NANOSECONDS);
+	}
+
+	@Benchmark
+	public long timerTime(RegistryState s) {
+		Timer.Context ctx = s.timer.time();
+		return ctx.stop();
+	}
+
+	@Benchmark
+	public Counter getOrAdd(RegistryState s) {
+		return s.registry.counter("counter");
+	}
+}
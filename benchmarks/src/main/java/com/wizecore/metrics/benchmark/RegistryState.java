@@ -0,0 +1,63 @@
+package com.wizecore.metrics.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.PersistentMetricRegistry;
+
+/**
+ * Registry and metrics shared by all benchmark threads, so running with more than one thread measures contended updates.
+ * Metrics are persisted in {@link LocalMetricStore}, so store round trip is not measured, only the cost of persistence itself.
+ */
+@State(Scope.Benchmark)
+public class RegistryState {
+	/**
+	 * Persistence mode:
+	 * <ul>
+	 * <li><code>immediate</code> - every update saves metric</li>
+	 * <li><code>writeBehind</code> - updates only mark metric dirty, saved in background every second</li>
+	 * <li><code>delta</code> - write-behind with delta counters, other metrics same as <code>writeBehind</code></li>
+	 * <li><code>mergeable</code> - write-behind with mergeable histograms and timers, other metrics same as <code>writeBehind</code></li>
+	 * </ul>
+	 */
+	@Param({ "immediate", "writeBehind", "delta", "mergeable" })
+	public String mode;
+
+	public PersistentMetricRegistry registry;
+	public Counter counter;
+	public Meter meter;
+	public Histogram histogram;
+	public Timer timer;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		LocalMetricStore store = new LocalMetricStore();
+		if (mode.equals("immediate")) {
+			registry = new PersistentMetricRegistry(store);
+		} else {
+			registry = new PersistentMetricRegistry(store, 1, TimeUnit.SECONDS);
+			registry.setDeltaCounters(mode.equals("delta"));
+			registry.setMergeableHistograms(mode.equals("mergeable"));
+		}
+		counter = registry.counter("counter");
+		meter = registry.meter("meter");
+		histogram = registry.histogram("histogram");
+		timer = registry.timer("timer");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		registry.close();
+	}
+}
@@ -0,0 +1,437 @@
+package com.wizecore.metrics;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Store which sends writes to underlying store asynchronously, without waiting for reply,
+ * so one thread can keep connection busy. Number of writes in flight is limited. When limit is reached,
+ * new writes are handled according to {@link OverflowPolicy}.
+ * <p>
+ * {@link #save(String, byte[], Map)}, {@link #setValue(String, String, Object)} and
+ * {@link #putShard(String, String, String, byte[])} return immediately (unless policy is {@link OverflowPolicy#BLOCK}),
+ * failures are logged. Use async variants to get acknowledgement of write, {@link WriteBehindFlusher} does so
+ * and saves metric again on next flush if its write failed.
+ * Writes of the same value are never in flight at the same time, so they are applied in order.
+ * Reads, {@link #addAndGet(String, String, long)}, {@link #addPoint(String, String, long, String, long)}
+ * and {@link #delete(Collection)} go directly to underlying store, delete waits for writes of deleted metrics in flight.
+ * </p>
+ */
+public class AsyncMetricStore implements MetricStore {
+	private static Logger log = LoggerFactory.getLogger(AsyncMetricStore.class);
+
+	/**
+	 * What to do with write when maximum number of writes is in flight.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Caller waits until one of writes in flight completes.
+		 */
+		BLOCK,
+		/**
+		 * Write is queued. Queue is limited to maximum number of writes in flight, when it is full
+		 * oldest queued write is dropped and its stage completed with {@link CancellationException}.
+		 * Queued write of the same value is always dropped.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Write is queued. If write of the same value is already queued, it is replaced with new one,
+		 * both callers get the same stage.
+		 */
+		COALESCE
+	}
+
+	private final MetricStore store;
+	private final int maxInFlight;
+	private final OverflowPolicy policy;
+	private final Set<String> inFlight = new HashSet<String>();
+	private final LinkedHashMap<String, Write> queue = new LinkedHashMap<String, Write>();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Writes to start in current thread, set while thread is starting writes. Completion of write by synchronous
+	 * store starts next write inline, it is added here instead, so draining queue doesn't recurse.
+	 */
+	private final ThreadLocal<ArrayDeque<Write>> starting = new ThreadLocal<ArrayDeque<Write>>();
+
+	/**
+	 * Queued or running write.
+	 */
+	private final class Write implements BiConsumer<Void, Throwable> {
+		final String key;
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		Supplier<CompletionStage<Void>> op;
+
+		Write(String key, Supplier<CompletionStage<Void>> op) {
+			this.key = key;
+			this.op = op;
+		}
+
+		void start() {
+			CompletionStage<Void> stage;
+			try {
+				stage = op.get();
+			} catch (RuntimeException e) {
+				accept(null, e);
+				return;
+			}
+			stage.whenComplete(this);
+		}
+
+		@Override
+		public void accept(Void v, Throwable e) {
+			completed(this);
+			if (e != null) {
+				future.completeExceptionally(e);
+			} else {
+				future.complete(null);
+			}
+		}
+	}
+
+	/**
+	 * Creates store.
+	 *
+	 * @param store underlying store
+	 * @param maxInFlight maximum number of writes in flight
+	 * @param policy what to do when maximum is reached
+	 */
+	public AsyncMetricStore(MetricStore store, int maxInFlight, OverflowPolicy policy) {
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("Maximum writes in flight must be positive: " + maxInFlight);
+		}
+		this.store = store;
+		this.maxInFlight = maxInFlight;
+		this.policy = policy;
+	}
+
+	/**
+	 * Starts write or queues it.
+	 */
+	private CompletionStage<Void> submit(String key, Supplier<CompletionStage<Void>> op) {
+		Write w;
+		synchronized (this) {
+			if (policy == OverflowPolicy.BLOCK) {
+				while (inFlight.size() >= maxInFlight || inFlight.contains(key)) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						CompletableFuture<Void> f = new CompletableFuture<Void>();
+						f.completeExceptionally(e);
+						return f;
+					}
+				}
+			}
+			if (inFlight.size() < maxInFlight && !inFlight.contains(key) && !queue.containsKey(key)) {
+				w = new Write(key, op);
+				inFlight.add(key);
+			} else if (policy == OverflowPolicy.COALESCE) {
+				Write queued = queue.get(key);
+				if (queued != null) {
+					queued.op = op;
+					return queued.future;
+				}
+				w = new Write(key, op);
+				queue.put(key, w);
+				return w.future;
+			} else {
+				// Older write of the same value is dropped first, it would be overwritten anyway
+				Write oldest = queue.remove(key);
+				if (oldest == null && queue.size() >= maxInFlight) {
+					Iterator<Write> it = queue.values().iterator();
+					oldest = it.next();
+					it.remove();
+				}
+				if (oldest != null) {
+					dropped.incrementAndGet();
+					oldest.future.completeExceptionally(new CancellationException("Write of " + oldest.key + " dropped"));
+				}
+				w = new Write(key, op);
+				queue.put(key, w);
+				return w.future;
+			}
+		}
+		start(w);
+		return w.future;
+	}
+
+	/**
+	 * Starts write, and writes which become ready when it completes, in a loop.
+	 */
+	private void start(Write w) {
+		ArrayDeque<Write> writes = starting.get();
+		if (writes != null) {
+			writes.add(w);
+			return;
+		}
+		writes = new ArrayDeque<Write>();
+		starting.set(writes);
+		try {
+			for (Write next = w; next != null; next = writes.poll()) {
+				next.start();
+			}
+		} finally {
+			starting.remove();
+		}
+	}
+
+	/**
+	 * Starts next queued write, which is not in flight already.
+	 */
+	private void completed(Write done) {
+		Write next = null;
+		synchronized (this) {
+			inFlight.remove(done.key);
+			for (Iterator<Write> it = queue.values().iterator(); it.hasNext();) {
+				Write w = it.next();
+				if (!inFlight.contains(w.key)) {
+					it.remove();
+					inFlight.add(w.key);
+					next = w;
+					break;
+				}
+			}
+			notifyAll();
+		}
+		if (next != null) {
+			start(next);
+		}
+	}
+
+	private static <T> CompletionStage<T> logged(final String key, CompletionStage<T> stage) {
+		stage.whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(T v, Throwable e) {
+				if (e != null && !(e instanceof CancellationException)) {
+					log.warn("Failed to save " + key + ": " + e);
+				}
+			}
+		});
+		return stage;
+	}
+
+	@Override
+	public StateCodec getCodec() {
+		return store.getCodec();
+	}
+
+	@Override
+	public byte[] getState(String name) {
+		return store.getState(name);
+	}
+
+	@Override
+	public Map<String, byte[]> getAllStates(int batchSize) {
+		return store.getAllStates(batchSize);
+	}
+
+	@Override
+	public Map<String, byte[]> getAllStates(String namePrefix, int batchSize) {
+		return store.getAllStates(namePrefix, batchSize);
+	}
+
+	/**
+	 * Sends write and returns, see {@link #saveAsync(String, byte[], Map)}.
+	 */
+	@Override
+	public void save(String name, byte[] state, Map<String, Object> values) {
+		logged(name, saveAsync(name, state, values));
+	}
+
+	@Override
+	public CompletionStage<Void> saveAsync(final String name, final byte[] state, final Map<String, Object> values) {
+		return submit(name, new Supplier<CompletionStage<Void>>() {
+			@Override
+			public CompletionStage<Void> get() {
+				return store.saveAsync(name, state, values);
+			}
+		});
+	}
+
+	@Override
+	public long addAndGet(String name, String field, long delta) {
+		return store.addAndGet(name, field, delta);
+	}
+
+	@Override
+	public long addAndGetOnce(String name, String field, long delta, String writer, String id) {
+		return store.addAndGetOnce(name, field, delta, writer, id);
+	}
+
+	@Override
+	public Map<String, Object> markShared(String name, long n, String writer, String id) {
+		return store.markShared(name, n, writer, id);
+	}
+
+	/**
+	 * Sends write and returns, see {@link #setValueAsync(String, String, Object)}.
+	 */
+	@Override
+	public void setValue(String name, String field, Object value) {
+		logged(name, setValueAsync(name, field, value));
+	}
+
+	@Override
+	public CompletionStage<Void> setValueAsync(final String name, final String field, final Object value) {
+		return submit(name + '\0' + field, new Supplier<CompletionStage<Void>>() {
+			@Override
+			public CompletionStage<Void> get() {
+				return store.setValueAsync(name, field, value);
+			}
+		});
+	}
+
+	/**
+	 * Sends write and returns, see {@link #putShardAsync(String, String, String, byte[])}.
+	 */
+	@Override
+	public void putShard(String name, String field, String node, byte[] data) {
+		logged(name, putShardAsync(name, field, node, data));
+	}
+
+	@Override
+	public CompletionStage<Void> putShardAsync(final String name, final String field, final String node, final byte[] data) {
+		return submit(name + '\0' + field + '\0' + node, new Supplier<CompletionStage<Void>>() {
+			@Override
+			public CompletionStage<Void> get() {
+				return store.putShardAsync(name, field, node, data);
+			}
+		});
+	}
+
+	@Override
+	public Map<String, byte[]> getShards(String name, String field) {
+		return store.getShards(name, field);
+	}
+
+	@Override
+	public Map<String, Map<String, Object>> getAllValues(int batchSize) {
+		return store.getAllValues(batchSize);
+	}
+
+	@Override
+	public void addPoint(String name, String series, long time, String point, long retention) {
+		store.addPoint(name, series, time, point, retention);
+	}
+
+	@Override
+	public List<String> getPoints(String name, String series, long from, long to) {
+		return store.getPoints(name, series, from, to);
+	}
+
+	@Override
+	public void addPoints(String series, long time, Map<String, String> points, long retention) {
+		store.addPoints(series, time, points, retention);
+	}
+
+	@Override
+	public Map<String, List<String>> getPoints(Collection<String> names, String series, long from, long to) {
+		return store.getPoints(names, series, from, to);
+	}
+
+	/**
+	 * Drops queued writes of metrics, waits until their writes already in flight complete and deletes them,
+	 * so late write doesn't recreate deleted metric.
+	 */
+	@Override
+	public void delete(Collection<String> names) {
+		synchronized (this) {
+			Set<String> deleted = new HashSet<String>(names);
+			for (Iterator<Write> it = queue.values().iterator(); it.hasNext();) {
+				Write w = it.next();
+				if (deleted.contains(nameOf(w.key))) {
+					it.remove();
+					w.future.completeExceptionally(new CancellationException("Metric deleted"));
+				}
+			}
+			while (isInFlight(deleted)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Deleted without waiting
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		store.delete(names);
+	}
+
+	/**
+	 * @return name of metric written by write with given key
+	 */
+	private static String nameOf(String key) {
+		int end = key.indexOf('\0');
+		return end < 0 ? key : key.substring(0, end);
+	}
+
+	private boolean isInFlight(Set<String> names) {
+		for (String key : inFlight) {
+			if (names.contains(nameOf(key))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Waits until all queued and in flight writes complete.
+	 */
+	public synchronized void await() throws InterruptedException {
+		while (!inFlight.isEmpty() || !queue.isEmpty()) {
+			wait();
+		}
+	}
+
+	/**
+	 * @return underlying store
+	 */
+	public MetricStore getStore() {
+		return store;
+	}
+
+	/**
+	 * @return number of writes in flight
+	 */
+	public synchronized int getInFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * @return number of writes waiting to be sent
+	 */
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+
+	/**
+	 * @return number of writes dropped by {@link OverflowPolicy#DROP_OLDEST}
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+}
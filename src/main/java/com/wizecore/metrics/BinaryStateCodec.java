@@ -0,0 +1,546 @@
+package com.wizecore.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.EWMA;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+import com.codahale.metrics.UniformSnapshot;
+import com.codahale.metrics.WeightedSnapshot;
+import com.codahale.metrics.WeightedSnapshot.WeightedSample;
+
+/**
+ * Compact versioned binary codec. Writes only fields required to rebuild metric:
+ * counts, EWMA rates and reservoir samples.
+ * <p>
+ * Format is <code>magic, version, flags, type, body</code>. Body is deflated if it is larger than
+ * compression threshold. Tick based times (meter start, last tick) are stored relative to save time,
+ * so they stay correct after restart.
+ * </p>
+ * Reservoirs implementing {@link Persistent} save themselves, only their kind is written.
+ * Metrics with reservoirs other than {@link ExponentiallyDecayingReservoir}, {@link UniformReservoir},
+ * {@link SlidingWindowReservoir} or persistent ones are stored using {@link XStreamStateCodec}. State saved
+ * by XStream is recognized and decoded by this codec too.
+ */
+public class BinaryStateCodec implements StateCodec {
+	static final byte MAGIC = (byte) 0xC5;
+	static final byte VERSION = 1;
+
+	static final int FLAG_DEFLATED = 1;
+
+	static final byte TYPE_COUNTER = 1;
+	static final byte TYPE_METER = 2;
+	static final byte TYPE_HISTOGRAM = 3;
+	static final byte TYPE_TIMER = 4;
+	static final byte TYPE_SNAPSHOT = 5;
+
+	static final byte RESERVOIR_EXPONENTIALLY_DECAYING = 1;
+	static final byte RESERVOIR_UNIFORM = 2;
+	static final byte RESERVOIR_SLIDING_WINDOW = 3;
+	static final byte RESERVOIR_PERSISTENT = 4;
+
+	private static final int HEADER_SIZE = 4;
+
+	/**
+	 * Default compression threshold in bytes.
+	 */
+	public static final int DEFAULT_COMPRESS_THRESHOLD = 1024;
+
+	private static final BinaryStateCodec DEFAULT = new BinaryStateCodec();
+
+	private final int compressThreshold;
+
+	/**
+	 * Creates codec with default compression threshold.
+	 */
+	public BinaryStateCodec() {
+		this(DEFAULT_COMPRESS_THRESHOLD);
+	}
+
+	/**
+	 * @param compressThreshold payloads larger than this are deflated, negative value disables compression
+	 */
+	public BinaryStateCodec(int compressThreshold) {
+		this.compressThreshold = compressThreshold;
+	}
+
+	static BinaryStateCodec getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * XStream is created lazily, only when legacy state is encountered.
+	 */
+	private static class Legacy {
+		static final XStreamStateCodec CODEC = new XStreamStateCodec();
+	}
+
+	/**
+	 * Checks if data is written by this codec.
+	 */
+	public static boolean isBinary(byte[] data) {
+		return data != null && data.length >= HEADER_SIZE && data[0] == MAGIC;
+	}
+
+	/**
+	 * Detects type of metric from serialized state, written by this codec or by {@link XStreamStateCodec}.
+	 *
+	 * @return one of {@link Counter}, {@link Meter}, {@link Histogram} or {@link Timer} classes, or null if unknown
+	 */
+	public static Class<? extends Metric> typeOf(byte[] data) {
+		if (isBinary(data)) {
+			switch (data[3]) {
+			case TYPE_COUNTER:
+				return Counter.class;
+			case TYPE_METER:
+				return Meter.class;
+			case TYPE_HISTOGRAM:
+				return Histogram.class;
+			case TYPE_TIMER:
+				return Timer.class;
+			default:
+				return null;
+			}
+		}
+		// XStream uses class name as root element
+		String head = new String(data, 0, Math.min(data.length, 64), StandardCharsets.UTF_8).trim();
+		if (head.startsWith("<com.codahale.metrics.Counter")) {
+			return Counter.class;
+		} else if (head.startsWith("<com.codahale.metrics.Meter")) {
+			return Meter.class;
+		} else if (head.startsWith("<com.codahale.metrics.Histogram")) {
+			return Histogram.class;
+		} else if (head.startsWith("<com.codahale.metrics.Timer")) {
+			return Timer.class;
+		}
+		return null;
+	}
+
+	@Override
+	public byte[] encode(Metric metric) {
+		if (!MetricFields.AVAILABLE) {
+			return Legacy.CODEC.encode(metric);
+		}
+
+		Output out = new Output();
+		out.writeLong(System.currentTimeMillis());
+		byte type;
+		if (metric instanceof Timer) {
+			Timer t = (Timer) metric;
+			Histogram h = MetricFields.get(MetricFields.TIMER_HISTOGRAM, t);
+			if (!isSupported(h)) {
+				return Legacy.CODEC.encode(metric);
+			}
+			type = TYPE_TIMER;
+			writeMeter(out, (Meter) MetricFields.get(MetricFields.TIMER_METER, t));
+			writeHistogram(out, h);
+		} else if (metric instanceof Meter) {
+			type = TYPE_METER;
+			writeMeter(out, (Meter) metric);
+		} else if (metric instanceof Histogram) {
+			Histogram h = (Histogram) metric;
+			if (!isSupported(h)) {
+				return Legacy.CODEC.encode(metric);
+			}
+			type = TYPE_HISTOGRAM;
+			writeHistogram(out, h);
+		} else if (metric instanceof Counter) {
+			type = TYPE_COUNTER;
+			out.writeLong(((Counter) metric).getCount());
+		} else {
+			return Legacy.CODEC.encode(metric);
+		}
+		return pack(type, out);
+	}
+
+	@Override
+	public Metric decode(byte[] data, Metric metric) {
+		if (!isBinary(data)) {
+			return Legacy.CODEC.decode(data, metric);
+		}
+
+		Input in = unpack(data);
+		long savedAt = in.readLong();
+		long elapsed = Math.max(0, System.currentTimeMillis() - savedAt) * 1000000L;
+		byte type = data[3];
+		if (type == TYPE_TIMER && metric instanceof Timer) {
+			Timer t = (Timer) metric;
+			readMeter(in, (Meter) MetricFields.get(MetricFields.TIMER_METER, t), elapsed);
+			readHistogram(in, (Histogram) MetricFields.get(MetricFields.TIMER_HISTOGRAM, t), elapsed);
+		} else if (type == TYPE_METER && metric instanceof Meter) {
+			readMeter(in, (Meter) metric, elapsed);
+		} else if (type == TYPE_HISTOGRAM && metric instanceof Histogram) {
+			readHistogram(in, (Histogram) metric, elapsed);
+		} else if (type == TYPE_COUNTER && metric instanceof Counter) {
+			((Counter) metric).inc(in.readLong());
+		} else {
+			throw new IllegalArgumentException("Can't restore state of type " + type + " into " + metric.getClass().getName());
+		}
+		return metric;
+	}
+
+	@Override
+	public byte[] encodeSnapshot(Snapshot snapshot) {
+		Output out = new Output();
+		long[] values = snapshot.getValues();
+		double[] weights = null;
+		if (snapshot instanceof WeightedSnapshot && MetricFields.AVAILABLE) {
+			weights = MetricFields.get(MetricFields.SNAPSHOT_NORM_WEIGHTS, snapshot);
+		}
+		out.writeVarInt(values.length);
+		out.write(weights != null ? 1 : 0);
+		// Snapshot values are sorted, store deltas
+		long prev = 0;
+		for (int i = 0; i < values.length; i++) {
+			out.writeLong(values[i] - prev);
+			prev = values[i];
+		}
+		if (weights != null) {
+			for (int i = 0; i < weights.length; i++) {
+				out.writeDouble(weights[i]);
+			}
+		}
+		return pack(TYPE_SNAPSHOT, out);
+	}
+
+	@Override
+	public Snapshot decodeSnapshot(byte[] data) {
+		if (!isBinary(data)) {
+			return Legacy.CODEC.decodeSnapshot(data);
+		}
+		if (data[3] != TYPE_SNAPSHOT) {
+			throw new IllegalArgumentException("Not a snapshot: " + data[3]);
+		}
+
+		Input in = unpack(data);
+		int size = in.readVarInt();
+		boolean weighted = in.read() != 0;
+		long[] values = new long[size];
+		long prev = 0;
+		for (int i = 0; i < size; i++) {
+			values[i] = prev + in.readLong();
+			prev = values[i];
+		}
+		if (!weighted) {
+			return new UniformSnapshot(values);
+		}
+		List<WeightedSample> samples = new ArrayList<WeightedSample>(size);
+		for (int i = 0; i < size; i++) {
+			samples.add(new WeightedSample(values[i], in.readDouble()));
+		}
+		return new WeightedSnapshot(samples);
+	}
+
+	private static boolean isSupported(Histogram h) {
+		Reservoir r = MetricFields.get(MetricFields.HISTOGRAM_RESERVOIR, h);
+		Class<?> c = r.getClass();
+		return r instanceof Persistent ||
+				c == ExponentiallyDecayingReservoir.class ||
+				c == UniformReservoir.class ||
+				c == SlidingWindowReservoir.class;
+	}
+
+	private static void writeMeter(Output out, Meter m) {
+		Clock clock = MetricFields.get(MetricFields.METER_CLOCK, m);
+		long tick = clock.getTick();
+		AtomicLong lastTick = MetricFields.get(MetricFields.METER_LAST_TICK, m);
+		out.writeLong(MetricFields.sum(MetricFields.METER_COUNT, m));
+		out.writeLong(tick - MetricFields.getLong(MetricFields.METER_START_TIME, m));
+		out.writeLong(tick - lastTick.get());
+		writeEWMA(out, (EWMA) MetricFields.get(MetricFields.METER_M1, m));
+		writeEWMA(out, (EWMA) MetricFields.get(MetricFields.METER_M5, m));
+		writeEWMA(out, (EWMA) MetricFields.get(MetricFields.METER_M15, m));
+	}
+
+	private static void readMeter(Input in, Meter m, long elapsed) {
+		Clock clock = MetricFields.get(MetricFields.METER_CLOCK, m);
+		long tick = clock.getTick();
+		AtomicLong lastTick = MetricFields.get(MetricFields.METER_LAST_TICK, m);
+		MetricFields.add(MetricFields.METER_COUNT, m, in.readLong());
+		MetricFields.setLong(MetricFields.METER_START_TIME, m, tick - in.readLong() - elapsed);
+		lastTick.set(tick - in.readLong() - elapsed);
+		readEWMA(in, (EWMA) MetricFields.get(MetricFields.METER_M1, m));
+		readEWMA(in, (EWMA) MetricFields.get(MetricFields.METER_M5, m));
+		readEWMA(in, (EWMA) MetricFields.get(MetricFields.METER_M15, m));
+	}
+
+	private static void writeEWMA(Output out, EWMA e) {
+		out.write(MetricFields.getBoolean(MetricFields.EWMA_INITIALIZED, e) ? 1 : 0);
+		out.writeDouble(MetricFields.getDouble(MetricFields.EWMA_RATE, e));
+		out.writeLong(MetricFields.sum(MetricFields.EWMA_UNCOUNTED, e));
+	}
+
+	private static void readEWMA(Input in, EWMA e) {
+		MetricFields.setBoolean(MetricFields.EWMA_INITIALIZED, e, in.read() != 0);
+		MetricFields.setDouble(MetricFields.EWMA_RATE, e, in.readDouble());
+		MetricFields.add(MetricFields.EWMA_UNCOUNTED, e, in.readLong());
+	}
+
+	private static void writeHistogram(Output out, Histogram h) {
+		out.writeLong(MetricFields.sum(MetricFields.HISTOGRAM_COUNT, h));
+		Reservoir r = MetricFields.get(MetricFields.HISTOGRAM_RESERVOIR, h);
+		if (r instanceof Persistent) {
+			out.write(RESERVOIR_PERSISTENT);
+		} else if (r instanceof ExponentiallyDecayingReservoir) {
+			out.write(RESERVOIR_EXPONENTIALLY_DECAYING);
+			Clock clock = MetricFields.get(MetricFields.EDR_CLOCK, r);
+			AtomicLong count = MetricFields.get(MetricFields.EDR_COUNT, r);
+			AtomicLong nextScaleTime = MetricFields.get(MetricFields.EDR_NEXT_SCALE_TIME, r);
+			ConcurrentSkipListMap<Double, WeightedSample> values = MetricFields.get(MetricFields.EDR_VALUES, r);
+			out.writeLong(count.get());
+			out.writeLong(MetricFields.getLong(MetricFields.EDR_START_TIME, r));
+			out.writeLong(nextScaleTime.get() - clock.getTick());
+			// Map can change while we iterate, so entries are buffered to get consistent size
+			List<Map.Entry<Double, WeightedSample>> entries = new ArrayList<Map.Entry<Double, WeightedSample>>(values.entrySet());
+			out.writeVarInt(entries.size());
+			for (Map.Entry<Double, WeightedSample> e : entries) {
+				out.writeDouble(e.getKey());
+				out.writeLong(e.getValue().value);
+				out.writeDouble(e.getValue().weight);
+			}
+		} else if (r instanceof UniformReservoir) {
+			out.write(RESERVOIR_UNIFORM);
+			AtomicLong count = MetricFields.get(MetricFields.UNIFORM_COUNT, r);
+			AtomicLongArray values = MetricFields.get(MetricFields.UNIFORM_VALUES, r);
+			out.writeLong(count.get());
+			out.writeVarInt(values.length());
+			for (int i = 0; i < values.length(); i++) {
+				out.writeLong(values.get(i));
+			}
+		} else {
+			out.write(RESERVOIR_SLIDING_WINDOW);
+			long[] values;
+			synchronized (r) {
+				out.writeLong(MetricFields.getLong(MetricFields.SLIDING_COUNT, r));
+				long[] measurements = MetricFields.get(MetricFields.SLIDING_MEASUREMENTS, r);
+				values = Arrays.copyOf(measurements, measurements.length);
+			}
+			out.writeVarInt(values.length);
+			for (int i = 0; i < values.length; i++) {
+				out.writeLong(values[i]);
+			}
+		}
+	}
+
+	private static void readHistogram(Input in, Histogram h, long elapsed) {
+		MetricFields.add(MetricFields.HISTOGRAM_COUNT, h, in.readLong());
+		Reservoir r = MetricFields.get(MetricFields.HISTOGRAM_RESERVOIR, h);
+		byte kind = (byte) in.read();
+		if (kind == RESERVOIR_EXPONENTIALLY_DECAYING) {
+			long count = in.readLong();
+			long startTime = in.readLong();
+			long nextScale = in.readLong();
+			int size = in.readVarInt();
+			if (r instanceof ExponentiallyDecayingReservoir) {
+				Clock clock = MetricFields.get(MetricFields.EDR_CLOCK, r);
+				ConcurrentSkipListMap<Double, WeightedSample> values = MetricFields.get(MetricFields.EDR_VALUES, r);
+				for (int i = 0; i < size; i++) {
+					double priority = in.readDouble();
+					long value = in.readLong();
+					double weight = in.readDouble();
+					values.put(priority, new WeightedSample(value, weight));
+				}
+				((AtomicLong) MetricFields.get(MetricFields.EDR_COUNT, r)).set(count);
+				MetricFields.setLong(MetricFields.EDR_START_TIME, r, startTime);
+				((AtomicLong) MetricFields.get(MetricFields.EDR_NEXT_SCALE_TIME, r)).set(clock.getTick() + nextScale - elapsed);
+			}
+		} else if (kind == RESERVOIR_UNIFORM) {
+			long count = in.readLong();
+			int size = in.readVarInt();
+			if (r instanceof UniformReservoir) {
+				AtomicLongArray values = MetricFields.get(MetricFields.UNIFORM_VALUES, r);
+				for (int i = 0; i < size; i++) {
+					long v = in.readLong();
+					if (i < values.length()) {
+						values.set(i, v);
+					}
+				}
+				((AtomicLong) MetricFields.get(MetricFields.UNIFORM_COUNT, r)).set(count);
+			}
+		} else if (kind == RESERVOIR_SLIDING_WINDOW) {
+			long count = in.readLong();
+			int size = in.readVarInt();
+			if (r instanceof SlidingWindowReservoir) {
+				synchronized (r) {
+					long[] measurements = MetricFields.get(MetricFields.SLIDING_MEASUREMENTS, r);
+					for (int i = 0; i < size; i++) {
+						long v = in.readLong();
+						if (i < measurements.length) {
+							measurements[i] = v;
+						}
+					}
+					MetricFields.setLong(MetricFields.SLIDING_COUNT, r, count);
+				}
+			}
+		} else if (kind != RESERVOIR_PERSISTENT) {
+			throw new IllegalArgumentException("Unknown reservoir type: " + kind);
+		}
+	}
+
+	private byte[] pack(byte type, Output out) {
+		byte[] body = out.buf;
+		int len = out.len;
+		byte flags = 0;
+		if (compressThreshold >= 0 && len > compressThreshold) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				deflater.setInput(body, 0, len);
+				deflater.finish();
+				ByteArrayOutputStream bos = new ByteArrayOutputStream(len / 2);
+				byte[] chunk = new byte[4096];
+				while (!deflater.finished()) {
+					int n = deflater.deflate(chunk);
+					bos.write(chunk, 0, n);
+				}
+				if (bos.size() < len) {
+					body = bos.toByteArray();
+					len = body.length;
+					flags |= FLAG_DEFLATED;
+				}
+			} finally {
+				deflater.end();
+			}
+		}
+		byte[] data = new byte[HEADER_SIZE + len];
+		data[0] = MAGIC;
+		data[1] = VERSION;
+		data[2] = flags;
+		data[3] = type;
+		System.arraycopy(body, 0, data, HEADER_SIZE, len);
+		return data;
+	}
+
+	private static Input unpack(byte[] data) {
+		if (data[1] > VERSION) {
+			throw new IllegalArgumentException("Unsupported state version " + data[1] + ", max supported " + VERSION);
+		}
+		if ((data[2] & FLAG_DEFLATED) == 0) {
+			return new Input(data, HEADER_SIZE, data.length);
+		}
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length * 3);
+			byte[] chunk = new byte[4096];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(chunk);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IllegalArgumentException("Truncated state data");
+				}
+				bos.write(chunk, 0, n);
+			}
+			byte[] body = bos.toByteArray();
+			return new Input(body, 0, body.length);
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Corrupted state data", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Growable buffer with zigzag varint encoding of longs.
+	 */
+	private static final class Output {
+		byte[] buf = new byte[64];
+		int len;
+
+		void write(int b) {
+			if (len == buf.length) {
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			}
+			buf[len++] = (byte) b;
+		}
+
+		void writeVarInt(int v) {
+			writeVarLong(v & 0xFFFFFFFFL);
+		}
+
+		void writeLong(long v) {
+			writeVarLong((v << 1) ^ (v >> 63));
+		}
+
+		void writeVarLong(long v) {
+			while ((v & ~0x7FL) != 0) {
+				write((int) ((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			write((int) v);
+		}
+
+		void writeDouble(double d) {
+			long v = Double.doubleToRawLongBits(d);
+			for (int i = 0; i < 8; i++) {
+				write((int) (v >>> (i * 8)));
+			}
+		}
+	}
+
+	private static final class Input {
+		final byte[] buf;
+		final int end;
+		int pos;
+
+		Input(byte[] buf, int pos, int end) {
+			this.buf = buf;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		int read() {
+			if (pos >= end) {
+				throw new IllegalArgumentException("Truncated state data");
+			}
+			return buf[pos++] & 0xFF;
+		}
+
+		int readVarInt() {
+			return (int) readVarLong();
+		}
+
+		long readLong() {
+			long v = readVarLong();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		long readVarLong() {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = read();
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint");
+		}
+
+		double readDouble() {
+			long v = 0;
+			for (int i = 0; i < 8; i++) {
+				v |= (long) read() << (i * 8);
+			}
+			return Double.longBitsToDouble(v);
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package com.wizecore.metrics;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformSnapshot;
+
+/**
+ * Read-only registry of all metrics in store, saved by all nodes.
+ * Exported values are read from store in pipelined batches (see {@link MetricStore#getAllValues(int)})
+ * and exposed as {@link Counter}, {@link Meter}, {@link Histogram}, {@link Timer} and {@link Gauge} views,
+ * so any reporter can publish metrics of the whole cluster from single process:
+ *
+ * <pre>
+ * ClusterMetricRegistry cluster = new ClusterMetricRegistry(PersistenceUtil.getStore());
+ * ConsoleReporter.forRegistry(cluster).build().start(1, TimeUnit.MINUTES);
+ * </pre>
+ *
+ * Values are refreshed when registry is read and last refresh is older than refresh interval,
+ * so all typed getters called by one report see the same values. Type of metric is determined by exported values:
+ * metrics with snapshot and rates are timers, with snapshot only - histograms, with rates only - meters.
+ * Views throw {@link UnsupportedOperationException} on update.
+ */
+public class ClusterMetricRegistry extends MetricRegistry {
+	private static Logger log = LoggerFactory.getLogger(ClusterMetricRegistry.class);
+
+	/**
+	 * Default interval in milliseconds between reads of store.
+	 */
+	public static final long DEFAULT_REFRESH_INTERVAL = 5000;
+
+	/**
+	 * Default number of keys fetched per round trip.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	private final MetricStore store;
+	private final long refreshInterval;
+	private final int batchSize;
+	private long refreshed;
+
+	public ClusterMetricRegistry(MetricStore store) {
+		this(store, DEFAULT_REFRESH_INTERVAL, TimeUnit.MILLISECONDS, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Creates registry.
+	 *
+	 * @param store store to read metrics from
+	 * @param refreshInterval how long values read from store are used
+	 * @param unit unit of refresh interval
+	 * @param batchSize number of keys fetched per round trip
+	 */
+	public ClusterMetricRegistry(MetricStore store, long refreshInterval, TimeUnit unit, int batchSize) {
+		this.store = store;
+		this.refreshInterval = unit.toMillis(refreshInterval);
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Reads values of all metrics from store, adds views of new metrics and removes views of deleted ones.
+	 * On failure previous values are kept.
+	 */
+	public synchronized void refresh() {
+		refreshed = System.currentTimeMillis();
+		Map<String, Map<String, Object>> all;
+		try {
+			all = store.getAllValues(batchSize);
+		} catch (RuntimeException e) {
+			log.warn("Failed to read metrics from store: " + e);
+			return;
+		}
+		Set<String> removed = new HashSet<String>(super.getNames());
+		for (Map.Entry<String, Map<String, Object>> e : all.entrySet()) {
+			String name = e.getKey();
+			Map<String, Object> values = e.getValue();
+			Metric view = super.getMetrics().get(name);
+			Class<? extends Metric> type = typeOf(values);
+			if (view != null && !type.isInstance(view)) {
+				super.remove(name);
+				view = null;
+			}
+			if (view == null) {
+				view = newView(type);
+				register(name, view);
+			}
+			((View) view).update(values, store.getCodec());
+			removed.remove(name);
+		}
+		for (String name : removed) {
+			super.remove(name);
+		}
+	}
+
+	private synchronized void refreshIfStale() {
+		if (System.currentTimeMillis() - refreshed >= refreshInterval) {
+			refresh();
+		}
+	}
+
+	private static Class<? extends Metric> typeOf(Map<String, Object> values) {
+		boolean snapshot = values.containsKey(MetricStore.SNAPSHOT);
+		boolean rates = values.containsKey(MetricStore.M1_RATE);
+		if (snapshot && rates) {
+			return TimerView.class;
+		} else if (snapshot) {
+			return HistogramView.class;
+		} else if (rates) {
+			return MeterView.class;
+		} else if (values.containsKey(MetricStore.GAUGE)) {
+			return GaugeView.class;
+		}
+		return CounterView.class;
+	}
+
+	private static Metric newView(Class<? extends Metric> type) {
+		if (type == TimerView.class) {
+			return new TimerView();
+		} else if (type == HistogramView.class) {
+			return new HistogramView();
+		} else if (type == MeterView.class) {
+			return new MeterView();
+		} else if (type == GaugeView.class) {
+			return new GaugeView();
+		}
+		return new CounterView();
+	}
+
+	@Override
+	public SortedSet<String> getNames() {
+		refreshIfStale();
+		return super.getNames();
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public SortedMap<String, Gauge> getGauges(MetricFilter filter) {
+		refreshIfStale();
+		return super.getGauges(filter);
+	}
+
+	@Override
+	public SortedMap<String, Counter> getCounters(MetricFilter filter) {
+		refreshIfStale();
+		return super.getCounters(filter);
+	}
+
+	@Override
+	public SortedMap<String, Histogram> getHistograms(MetricFilter filter) {
+		refreshIfStale();
+		return super.getHistograms(filter);
+	}
+
+	@Override
+	public SortedMap<String, Meter> getMeters(MetricFilter filter) {
+		refreshIfStale();
+		return super.getMeters(filter);
+	}
+
+	@Override
+	public SortedMap<String, Timer> getTimers(MetricFilter filter) {
+		refreshIfStale();
+		return super.getTimers(filter);
+	}
+
+	@Override
+	public Map<String, Metric> getMetrics() {
+		refreshIfStale();
+		return super.getMetrics();
+	}
+
+	private static long longValue(Map<String, Object> values, String field) {
+		Object v = values.get(field);
+		return v instanceof Number ? ((Number) v).longValue() : 0;
+	}
+
+	private static double doubleValue(Map<String, Object> values, String field) {
+		Object v = values.get(field);
+		return v instanceof Number ? ((Number) v).doubleValue() : 0;
+	}
+
+	private static Snapshot snapshot(Map<String, Object> values, StateCodec codec) {
+		Object v = values.get(MetricStore.SNAPSHOT);
+		return v instanceof byte[] ? codec.decodeSnapshot((byte[]) v) : new UniformSnapshot(new long[0]);
+	}
+
+	/**
+	 * View updated with values read from store.
+	 */
+	private interface View {
+		void update(Map<String, Object> values, StateCodec codec);
+	}
+
+	private static class CounterView extends Counter implements View {
+		private volatile long count;
+
+		@Override
+		public void update(Map<String, Object> values, StateCodec codec) {
+			count = longValue(values, MetricStore.VALUE);
+		}
+
+		@Override
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public void inc(long n) {
+			throw new UnsupportedOperationException("Metric is read-only");
+		}
+
+		@Override
+		public void dec(long n) {
+			throw new UnsupportedOperationException("Metric is read-only");
+		}
+	}
+
+	private static class MeterView extends Meter implements View {
+		private volatile Map<String, Object> values;
+
+		@Override
+		public void update(Map<String, Object> values, StateCodec codec) {
+			this.values = values;
+		}
+
+		@Override
+		public void mark(long n) {
+			throw new UnsupportedOperationException("Metric is read-only");
+		}
+
+		@Override
+		public long getCount() {
+			return longValue(values, MetricStore.COUNT);
+		}
+
+		@Override
+		public double getMeanRate() {
+			return doubleValue(values, MetricStore.MEAN_RATE);
+		}
+
+		@Override
+		public double getOneMinuteRate() {
+			return doubleValue(values, MetricStore.M1_RATE);
+		}
+
+		@Override
+		public double getFiveMinuteRate() {
+			return doubleValue(values, MetricStore.M5_RATE);
+		}
+
+		@Override
+		public double getFifteenMinuteRate() {
+			return doubleValue(values, MetricStore.M15_RATE);
+		}
+	}
+
+	private static class HistogramView extends Histogram implements View {
+		private volatile long count;
+		private volatile Snapshot snapshot;
+
+		HistogramView() {
+			super(null);
+		}
+
+		@Override
+		public void update(Map<String, Object> values, StateCodec codec) {
+			count = longValue(values, MetricStore.COUNT);
+			snapshot = snapshot(values, codec);
+		}
+
+		@Override
+		public void update(long value) {
+			throw new UnsupportedOperationException("Metric is read-only");
+		}
+
+		@Override
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public Snapshot getSnapshot() {
+			return snapshot;
+		}
+	}
+
+	private static class TimerView extends Timer implements View {
+		private volatile Map<String, Object> values;
+		private volatile Snapshot snapshot;
+
+		@Override
+		public void update(Map<String, Object> values, StateCodec codec) {
+			this.snapshot = snapshot(values, codec);
+			this.values = values;
+		}
+
+		@Override
+		public void update(long duration, TimeUnit unit) {
+			throw new UnsupportedOperationException("Metric is read-only");
+		}
+
+		@Override
+		public long getCount() {
+			return longValue(values, MetricStore.COUNT);
+		}
+
+		@Override
+		public double getMeanRate() {
+			return doubleValue(values, MetricStore.MEAN_RATE);
+		}
+
+		@Override
+		public double getOneMinuteRate() {
+			return doubleValue(values, MetricStore.M1_RATE);
+		}
+
+		@Override
+		public double getFiveMinuteRate() {
+			return doubleValue(values, MetricStore.M5_RATE);
+		}
+
+		@Override
+		public double getFifteenMinuteRate() {
+			return doubleValue(values, MetricStore.M15_RATE);
+		}
+
+		@Override
+		public Snapshot getSnapshot() {
+			return snapshot;
+		}
+	}
+
+	private static class GaugeView implements Gauge<Object>, View {
+		private volatile Object value;
+
+		@Override
+		public void update(Map<String, Object> values, StateCodec codec) {
+			value = values.get(MetricStore.GAUGE);
+		}
+
+		@Override
+		public Object getValue() {
+			return value;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package com.wizecore.metrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Helpers for async saves.
+ */
+final class Futures {
+	private Futures() {
+	}
+
+	/**
+	 * Runs action synchronously.
+	 *
+	 * @return stage completed with result of action
+	 */
+	static CompletionStage<Void> run(Runnable action) {
+		CompletableFuture<Void> f = new CompletableFuture<Void>();
+		try {
+			action.run();
+			f.complete(null);
+		} catch (RuntimeException e) {
+			f.completeExceptionally(e);
+		}
+		return f;
+	}
+
+	/**
+	 * @return stage completed when both stages are completed
+	 */
+	static CompletionStage<Void> both(CompletionStage<?> a, CompletionStage<?> b) {
+		return a.thenCombine(b, (x, y) -> null);
+	}
+
+	/**
+	 * @return stage completed when given stage is completed, ignoring its result
+	 */
+	static CompletionStage<Void> discard(CompletionStage<?> stage) {
+		return stage.thenApply(x -> null);
+	}
+}
@@ -0,0 +1,123 @@
+package com.wizecore.metrics;
+
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples registered gauges periodically in background thread and saves values which were changed.
+ * Also refreshes registered shared meters, so their getters never wait for store.
+ */
+public class GaugeSampler implements Closeable {
+	private static Logger log = LoggerFactory.getLogger(GaugeSampler.class);
+
+	private final Set<PersistentGauge<?>> gauges = ConcurrentHashMap.newKeySet();
+	private final Set<SharedMeter> meters = ConcurrentHashMap.newKeySet();
+	private final ScheduledExecutorService executor;
+	private final long interval;
+	private final TimeUnit unit;
+
+	/**
+	 * Creates and starts new sampler.
+	 *
+	 * @param interval how often gauges are sampled
+	 * @param unit unit of interval
+	 */
+	public GaugeSampler(long interval, TimeUnit unit) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Sample interval must be positive: " + interval);
+		}
+		this.interval = interval;
+		this.unit = unit;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "persistent-metrics-gauge-sampler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sample();
+			}
+		}, 0, interval, unit);
+	}
+
+	public void add(PersistentGauge<?> gauge) {
+		gauges.add(gauge);
+	}
+
+	public void remove(PersistentGauge<?> gauge) {
+		gauges.remove(gauge);
+	}
+
+	public void add(SharedMeter meter) {
+		meters.add(meter);
+	}
+
+	public void remove(SharedMeter meter) {
+		meters.remove(meter);
+	}
+
+	/**
+	 * Samples all gauges and saves changed values, refreshes shared meters.
+	 * Failure of one metric does not prevent sampling of others, unsaved values are retried on next run.
+	 */
+	public synchronized void sample() {
+		int failed = 0;
+		RuntimeException last = null;
+		for (PersistentGauge<?> gauge : gauges) {
+			try {
+				if (gauge.sample()) {
+					gauge.save();
+				}
+			} catch (RuntimeException e) {
+				failed++;
+				last = e;
+			}
+		}
+		for (SharedMeter meter : meters) {
+			try {
+				meter.refresh();
+			} catch (RuntimeException e) {
+				failed++;
+				last = e;
+			}
+		}
+		if (failed > 0) {
+			log.warn("Failed to sample or save " + failed + " gauges and shared meters: " + last);
+		}
+	}
+
+	/**
+	 * Number of gauges sampled.
+	 */
+	public int getGaugeCount() {
+		return gauges.size();
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public TimeUnit getUnit() {
+		return unit;
+	}
+
+	/**
+	 * Stops background sampling.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,89 @@
+package com.wizecore.metrics;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.HdrHistogram.AbstractHistogram;
+
+import com.codahale.metrics.Snapshot;
+
+/**
+ * Snapshot of HdrHistogram. Quantiles are exact up to histogram precision.
+ * Since histogram keeps counts and not values, {@link #getValues()} returns
+ * sample of values at evenly spaced quantiles.
+ */
+class HdrSnapshot extends Snapshot {
+	/**
+	 * Number of values returned by {@link #getValues()}, same as default size of {@link com.codahale.metrics.ExponentiallyDecayingReservoir}.
+	 */
+	static final int SAMPLE_SIZE = 1028;
+
+	private final AbstractHistogram histogram;
+
+	/**
+	 * @param histogram histogram, must not be changed after snapshot is created
+	 */
+	HdrSnapshot(AbstractHistogram histogram) {
+		this.histogram = histogram;
+	}
+
+	@Override
+	public double getValue(double quantile) {
+		if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+			throw new IllegalArgumentException(quantile + " is not in [0..1]");
+		}
+		return histogram.getValueAtPercentile(quantile * 100.0);
+	}
+
+	@Override
+	public long[] getValues() {
+		int n = (int) Math.min(SAMPLE_SIZE, histogram.getTotalCount());
+		long[] values = new long[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = histogram.getValueAtPercentile((i + 0.5) * 100.0 / n);
+		}
+		return values;
+	}
+
+	/**
+	 * @return number of values recorded
+	 */
+	@Override
+	public int size() {
+		return (int) Math.min(Integer.MAX_VALUE, histogram.getTotalCount());
+	}
+
+	@Override
+	public long getMax() {
+		return histogram.getMaxValue();
+	}
+
+	@Override
+	public double getMean() {
+		return histogram.getMean();
+	}
+
+	@Override
+	public long getMin() {
+		return histogram.getMinValue();
+	}
+
+	@Override
+	public double getStdDev() {
+		return histogram.getStdDeviation();
+	}
+
+	@Override
+	public void dump(OutputStream output) {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+		try {
+			for (long value : getValues()) {
+				out.printf("%d%n", value);
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,386 @@
+package com.wizecore.metrics;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * Records history of metric values as downsampled time series in {@link MetricStore}.
+ * <p>
+ * Every 10 seconds count, rates and snapshot quantiles of every metric are added to series of
+ * {@link Resolution#TEN_SECONDS} resolution, points of all metrics are written in one batch.
+ * Once interval of {@link Resolution#MINUTE} or {@link Resolution#HOUR} resolution is completed, its point is
+ * aggregated from stored points of finer resolution: count is the last one in interval, max is the maximum,
+ * other values are averaged. So no partial interval is kept in memory and lost on restart. Point of current,
+ * not completed interval is aggregated the same way when history is read.
+ * Every resolution keeps points for its own retention period. Rates are per second, durations in milliseconds.
+ * </p>
+ * <p>
+ * History is recorded by node, so usually recorder is started on single node only.
+ * </p>
+ */
+public class HistoryRecorder extends ScheduledReporter {
+	private static Logger log = LoggerFactory.getLogger(HistoryRecorder.class);
+
+	/**
+	 * Resolution of history series.
+	 */
+	public enum Resolution {
+		TEN_SECONDS(MetricStore.HISTORY + ".10s", TimeUnit.SECONDS.toMillis(10), TimeUnit.HOURS.toMillis(6)),
+		MINUTE(MetricStore.HISTORY + ".1m", TimeUnit.MINUTES.toMillis(1), TimeUnit.DAYS.toMillis(7)),
+		HOUR(MetricStore.HISTORY + ".1h", TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(365));
+
+		private final String series;
+		private final long interval;
+		private final long retention;
+
+		private Resolution(String series, long interval, long retention) {
+			this.series = series;
+			this.interval = interval;
+			this.retention = retention;
+		}
+
+		/**
+		 * Name of series in store.
+		 */
+		public String getSeries() {
+			return series;
+		}
+
+		/**
+		 * Interval between points in milliseconds.
+		 */
+		public long getInterval() {
+			return interval;
+		}
+
+		/**
+		 * Default retention in milliseconds.
+		 */
+		public long getRetention() {
+			return retention;
+		}
+	}
+
+	/**
+	 * Single point of history.
+	 */
+	public static class Point {
+		private final long time;
+		private final Map<String, Double> values;
+
+		public Point(long time, Map<String, Double> values) {
+			this.time = time;
+			this.values = values;
+		}
+
+		/**
+		 * Start of interval in milliseconds.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Values by field: <code>count</code>, <code>m1Rate</code>, <code>meanRate</code>, <code>mean</code>,
+		 * <code>p50</code>, <code>p95</code>, <code>p99</code>, <code>max</code> or <code>value</code> for gauges.
+		 */
+		public Map<String, Double> getValues() {
+			return values;
+		}
+
+		@Override
+		public String toString() {
+			return time + " " + values;
+		}
+	}
+
+	private static final String VALUE = "value";
+	private static final String MEAN = "mean";
+	private static final String MAX = "max";
+
+	/**
+	 * Filter of all metrics except {@link PersistenceStats} ones, used by default.
+	 */
+	public static final MetricFilter EXCLUDE_STATS = new MetricFilter() {
+		@Override
+		public boolean matches(String name, Metric metric) {
+			return !name.startsWith(PersistenceStats.PREFIX + ".");
+		}
+	};
+
+	private final MetricStore store;
+	private final Clock clock;
+	private final Map<Resolution, Long> retention = new EnumMap<Resolution, Long>(Resolution.class);
+
+	/**
+	 * Start of last interval rolled up, by resolution.
+	 */
+	private final Map<Resolution, Long> rolled = new EnumMap<Resolution, Long>(Resolution.class);
+
+	/**
+	 * Creates recorder of all metrics in registry except {@link PersistenceStats} ones, see {@link #EXCLUDE_STATS}.
+	 * Call {@link #start()} to start recording.
+	 */
+	public HistoryRecorder(MetricRegistry registry, MetricStore store) {
+		this(registry, store, EXCLUDE_STATS, Clock.defaultClock());
+	}
+
+	/**
+	 * Creates recorder.
+	 *
+	 * @param registry registry to record metrics of
+	 * @param store store to write history to
+	 * @param filter which metrics to record
+	 * @param clock clock used to timestamp points
+	 */
+	public HistoryRecorder(MetricRegistry registry, MetricStore store, MetricFilter filter, Clock clock) {
+		super(registry, "persistent-metrics-history", filter, TimeUnit.SECONDS, TimeUnit.MILLISECONDS);
+		this.store = store;
+		this.clock = clock;
+		for (Resolution r : Resolution.values()) {
+			retention.put(r, r.getRetention());
+		}
+	}
+
+	/**
+	 * Starts recording every 10 seconds.
+	 */
+	public void start() {
+		start(Resolution.TEN_SECONDS.getInterval(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sets how long points of given resolution are kept.
+	 */
+	public synchronized void setRetention(Resolution resolution, long retention, TimeUnit unit) {
+		this.retention.put(resolution, unit.toMillis(retention));
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public synchronized void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+			SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters, SortedMap<String, Timer> timers) {
+		long now = clock.getTime();
+		long time = now - now % Resolution.TEN_SECONDS.getInterval();
+		Map<String, Map<String, Double>> samples = new LinkedHashMap<String, Map<String, Double>>();
+		for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+			Object v = e.getValue().getValue();
+			if (v instanceof Number) {
+				Map<String, Double> values = new LinkedHashMap<String, Double>();
+				values.put(VALUE, ((Number) v).doubleValue());
+				samples.put(e.getKey(), values);
+			}
+		}
+		for (Map.Entry<String, Counter> e : counters.entrySet()) {
+			Map<String, Double> values = new LinkedHashMap<String, Double>();
+			values.put(MetricStore.COUNT, (double) e.getValue().getCount());
+			samples.put(e.getKey(), values);
+		}
+		for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+			Map<String, Double> values = new LinkedHashMap<String, Double>();
+			values.put(MetricStore.COUNT, (double) e.getValue().getCount());
+			snapshot(e.getValue().getSnapshot(), false, values);
+			samples.put(e.getKey(), values);
+		}
+		for (Map.Entry<String, Meter> e : meters.entrySet()) {
+			Map<String, Double> values = new LinkedHashMap<String, Double>();
+			values.put(MetricStore.COUNT, (double) e.getValue().getCount());
+			values.put(MetricStore.M1_RATE, convertRate(e.getValue().getOneMinuteRate()));
+			values.put(MetricStore.MEAN_RATE, convertRate(e.getValue().getMeanRate()));
+			samples.put(e.getKey(), values);
+		}
+		for (Map.Entry<String, Timer> e : timers.entrySet()) {
+			Map<String, Double> values = new LinkedHashMap<String, Double>();
+			values.put(MetricStore.COUNT, (double) e.getValue().getCount());
+			values.put(MetricStore.M1_RATE, convertRate(e.getValue().getOneMinuteRate()));
+			values.put(MetricStore.MEAN_RATE, convertRate(e.getValue().getMeanRate()));
+			snapshot(e.getValue().getSnapshot(), true, values);
+			samples.put(e.getKey(), values);
+		}
+		Map<String, String> points = new HashMap<String, String>();
+		for (Map.Entry<String, Map<String, Double>> e : samples.entrySet()) {
+			points.put(e.getKey(), encode(time, e.getValue()));
+		}
+		add(Resolution.TEN_SECONDS, time, points);
+		rollUp(Resolution.MINUTE, time, samples.keySet());
+		rollUp(Resolution.HOUR, time, samples.keySet());
+	}
+
+	private void snapshot(Snapshot s, boolean durations, Map<String, Double> values) {
+		values.put(MEAN, durations ? convertDuration(s.getMean()) : s.getMean());
+		values.put("p50", durations ? convertDuration(s.getMedian()) : s.getMedian());
+		values.put("p95", durations ? convertDuration(s.get95thPercentile()) : s.get95thPercentile());
+		values.put("p99", durations ? convertDuration(s.get99thPercentile()) : s.get99thPercentile());
+		values.put(MAX, durations ? convertDuration(s.getMax()) : s.getMax());
+	}
+
+	private void add(Resolution resolution, long time, Map<String, String> points) {
+		try {
+			store.addPoints(resolution.series, time, points, retention.get(resolution));
+		} catch (RuntimeException e) {
+			log.warn("Failed to record history of " + points.size() + " metrics: " + e);
+		}
+	}
+
+	/**
+	 * Adds points of interval completed before given time, aggregated from stored points of finer resolution.
+	 * Interval is rolled up once, failed roll up is retried on next report. After restart last interval is
+	 * rolled up again, from the same stored points, so the same points are written.
+	 */
+	private void rollUp(Resolution resolution, long time, Set<String> names) {
+		long start = time - time % resolution.getInterval() - resolution.getInterval();
+		Long last = rolled.get(resolution);
+		if (last != null && last >= start) {
+			return;
+		}
+		try {
+			Map<String, List<String>> stored = store.getPoints(names, finer(resolution).series, start, start + resolution.getInterval() - 1);
+			Map<String, String> points = new HashMap<String, String>();
+			for (Map.Entry<String, List<String>> e : stored.entrySet()) {
+				Point p = aggregate(start, decode(e.getValue()));
+				if (p != null) {
+					points.put(e.getKey(), encode(start, p.getValues()));
+				}
+			}
+			if (!points.isEmpty()) {
+				store.addPoints(resolution.series, start, points, retention.get(resolution));
+			}
+			rolled.put(resolution, start);
+		} catch (RuntimeException e) {
+			log.warn("Failed to roll up history of " + names.size() + " metrics: " + e);
+		}
+	}
+
+	/**
+	 * @return next finer resolution, or null for the finest one
+	 */
+	private static Resolution finer(Resolution resolution) {
+		return resolution.ordinal() > 0 ? Resolution.values()[resolution.ordinal() - 1] : null;
+	}
+
+	/**
+	 * Reads history of metric.
+	 *
+	 * @param from start time in milliseconds, inclusive
+	 * @param to end time in milliseconds, inclusive
+	 * @return points ordered by time
+	 */
+	public List<Point> getHistory(String name, Resolution resolution, long from, long to) {
+		List<Point> points = decode(store.getPoints(name, resolution.series, from, to));
+		Resolution finer = finer(resolution);
+		if (finer != null) {
+			long now = clock.getTime();
+			long current = now - now % resolution.getInterval();
+			if (to >= current && (points.isEmpty() || points.get(points.size() - 1).getTime() < current)) {
+				// Current interval is not rolled up yet
+				Point p = aggregate(current, getHistory(name, finer, current, to));
+				if (p != null) {
+					points.add(p);
+				}
+			}
+		}
+		return points;
+	}
+
+	/**
+	 * Reads history of metric using finest resolution which still keeps points at start of range.
+	 */
+	public List<Point> getHistory(String name, long from, long to) {
+		long age = clock.getTime() - from;
+		Resolution resolution = Resolution.HOUR;
+		synchronized (this) {
+			for (Resolution r : Resolution.values()) {
+				if (age <= retention.get(r)) {
+					resolution = r;
+					break;
+				}
+			}
+		}
+		return getHistory(name, resolution, from, to);
+	}
+
+	/**
+	 * Encodes point as <code>time field=value field=value...</code>.
+	 */
+	static String encode(long time, Map<String, Double> values) {
+		StringBuilder sb = new StringBuilder(16 + values.size() * 16);
+		sb.append(time);
+		for (Map.Entry<String, Double> e : values.entrySet()) {
+			sb.append(' ').append(e.getKey()).append('=').append(e.getValue());
+		}
+		return sb.toString();
+	}
+
+	private static List<Point> decode(List<String> encoded) {
+		List<Point> points = new ArrayList<Point>();
+		for (String s : encoded) {
+			points.add(decode(s));
+		}
+		return points;
+	}
+
+	static Point decode(String s) {
+		String[] parts = s.split(" ");
+		Map<String, Double> values = new LinkedHashMap<String, Double>();
+		for (int i = 1; i < parts.length; i++) {
+			int eq = parts[i].indexOf('=');
+			values.put(parts[i].substring(0, eq), Double.valueOf(parts[i].substring(eq + 1)));
+		}
+		return new Point(Long.parseLong(parts[0]), values);
+	}
+
+	/**
+	 * Aggregates points into point of coarser interval: count is the last one, max is the maximum, other values are averaged.
+	 *
+	 * @param start start of interval
+	 * @return point or null if there are no points
+	 */
+	static Point aggregate(long start, List<Point> points) {
+		if (points.isEmpty()) {
+			return null;
+		}
+		// Sum, number of values and last or max value by field
+		Map<String, double[]> sums = new LinkedHashMap<String, double[]>();
+		for (Point p : points) {
+			for (Map.Entry<String, Double> e : p.getValues().entrySet()) {
+				double[] sum = sums.get(e.getKey());
+				if (sum == null) {
+					sums.put(e.getKey(), new double[] { e.getValue(), 1, e.getValue() });
+				} else {
+					sum[0] += e.getValue();
+					sum[1]++;
+					sum[2] = e.getKey().equals(MAX) ? Math.max(sum[2], e.getValue()) : e.getValue();
+				}
+			}
+		}
+		Map<String, Double> values = new LinkedHashMap<String, Double>();
+		for (Map.Entry<String, double[]> e : sums.entrySet()) {
+			double[] sum = e.getValue();
+			boolean last = e.getKey().equals(MetricStore.COUNT) || e.getKey().equals(MAX);
+			values.put(e.getKey(), last ? sum[2] : sum[0] / sum[1]);
+		}
+		return new Point(start, values);
+	}
+}
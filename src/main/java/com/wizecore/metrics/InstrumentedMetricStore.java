@@ -0,0 +1,304 @@
+package com.wizecore.metrics;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * Store which records {@link PersistenceStats} of underlying store and its codec.
+ */
+public class InstrumentedMetricStore implements MetricStore {
+	private final MetricStore store;
+	private final PersistenceStats stats;
+	private final StateCodec codec;
+
+	public InstrumentedMetricStore(MetricStore store, PersistenceStats stats) {
+		this.store = store;
+		this.stats = stats;
+		this.codec = new InstrumentedCodec(store.getCodec());
+	}
+
+	/**
+	 * @return underlying store
+	 */
+	public MetricStore getStore() {
+		return store;
+	}
+
+	public PersistenceStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Counts failure and rethrows it.
+	 */
+	private RuntimeException failed(RuntimeException e) {
+		stats.failed();
+		return e;
+	}
+
+	/**
+	 * Records time and failure of async write.
+	 */
+	private CompletionStage<Void> timed(CompletionStage<Void> stage, final long started) {
+		stage.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable e) {
+				if (e == null) {
+					stats.saved(System.nanoTime() - started);
+				} else if (!(e instanceof CancellationException)) {
+					stats.failed();
+				}
+			}
+		});
+		return stage;
+	}
+
+	@Override
+	public StateCodec getCodec() {
+		return codec;
+	}
+
+	@Override
+	public byte[] getState(String name) {
+		try {
+			return store.getState(name);
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public Map<String, byte[]> getAllStates(int batchSize) {
+		try {
+			return store.getAllStates(batchSize);
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public Map<String, byte[]> getAllStates(String namePrefix, int batchSize) {
+		try {
+			return store.getAllStates(namePrefix, batchSize);
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public Map<String, Map<String, Object>> getAllValues(int batchSize) {
+		try {
+			return store.getAllValues(batchSize);
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public void save(String name, byte[] state, Map<String, Object> values) {
+		long started = System.nanoTime();
+		try {
+			store.save(name, state, values);
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+		stats.saved(System.nanoTime() - started);
+	}
+
+	@Override
+	public CompletionStage<Void> saveAsync(String name, byte[] state, Map<String, Object> values) {
+		long started = System.nanoTime();
+		try {
+			return timed(store.saveAsync(name, state, values), started);
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public long addAndGet(String name, String field, long delta) {
+		long started = System.nanoTime();
+		try {
+			long v = store.addAndGet(name, field, delta);
+			stats.saved(System.nanoTime() - started);
+			return v;
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public long addAndGetOnce(String name, String field, long delta, String writer, String id) {
+		long started = System.nanoTime();
+		try {
+			long v = store.addAndGetOnce(name, field, delta, writer, id);
+			stats.saved(System.nanoTime() - started);
+			return v;
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public Map<String, Object> markShared(String name, long n, String writer, String id) {
+		long started = System.nanoTime();
+		try {
+			Map<String, Object> v = store.markShared(name, n, writer, id);
+			stats.saved(System.nanoTime() - started);
+			return v;
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public void setValue(String name, String field, Object value) {
+		try {
+			store.setValue(name, field, value);
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public CompletionStage<Void> setValueAsync(String name, String field, Object value) {
+		try {
+			return timed(store.setValueAsync(name, field, value), System.nanoTime());
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public void putShard(String name, String field, String node, byte[] data) {
+		try {
+			store.putShard(name, field, node, data);
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public CompletionStage<Void> putShardAsync(String name, String field, String node, byte[] data) {
+		try {
+			return timed(store.putShardAsync(name, field, node, data), System.nanoTime());
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public Map<String, byte[]> getShards(String name, String field) {
+		try {
+			return store.getShards(name, field);
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public void addPoint(String name, String series, long time, String point, long retention) {
+		try {
+			store.addPoint(name, series, time, point, retention);
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public List<String> getPoints(String name, String series, long from, long to) {
+		try {
+			return store.getPoints(name, series, from, to);
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public void addPoints(String series, long time, Map<String, String> points, long retention) {
+		try {
+			store.addPoints(series, time, points, retention);
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public Map<String, List<String>> getPoints(Collection<String> names, String series, long from, long to) {
+		try {
+			return store.getPoints(names, series, from, to);
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public void delete(Collection<String> names) {
+		try {
+			store.delete(names);
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	/**
+	 * Codec recording serialization time and size.
+	 */
+	private class InstrumentedCodec implements StateCodec {
+		private final StateCodec codec;
+
+		InstrumentedCodec(StateCodec codec) {
+			this.codec = codec;
+		}
+
+		@Override
+		public byte[] encode(Metric metric) {
+			long started = System.nanoTime();
+			byte[] data = codec.encode(metric);
+			stats.serialized(type(metric), System.nanoTime() - started, data.length);
+			return data;
+		}
+
+		@Override
+		public Metric decode(byte[] data, Metric metric) {
+			return codec.decode(data, metric);
+		}
+
+		@Override
+		public byte[] encodeSnapshot(Snapshot snapshot) {
+			long started = System.nanoTime();
+			byte[] data = codec.encodeSnapshot(snapshot);
+			stats.serialized("snapshot", System.nanoTime() - started, data.length);
+			return data;
+		}
+
+		@Override
+		public Snapshot decodeSnapshot(byte[] data) {
+			return codec.decodeSnapshot(data);
+		}
+	}
+
+	private static String type(Metric metric) {
+		if (metric instanceof Timer) {
+			return "timer";
+		} else if (metric instanceof Meter) {
+			return "meter";
+		} else if (metric instanceof Histogram) {
+			return "histogram";
+		} else if (metric instanceof Counter) {
+			return "counter";
+		}
+		return "other";
+	}
+}
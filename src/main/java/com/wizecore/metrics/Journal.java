@@ -0,0 +1,158 @@
+package com.wizecore.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of records stored in memory-mapped segment files.
+ * Record is <code>length, crc32, data</code>. Segment is zero filled, so zero length marks end of segment,
+ * torn record at the end is detected by checksum and ignored.
+ */
+class Journal {
+	private static final String SUFFIX = ".journal";
+	private static final int RECORD_HEADER = 8;
+
+	private final File dir;
+	private final int segmentSize;
+	private long nextSegment;
+	private MappedByteBuffer current;
+	private File currentFile;
+
+	/**
+	 * @param dir directory for segment files, created if missing
+	 * @param segmentSize size of segment file in bytes
+	 */
+	Journal(File dir, int segmentSize) {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IllegalArgumentException("Can't create journal directory " + dir);
+		}
+		for (File f : segments()) {
+			nextSegment = Math.max(nextSegment, Long.parseLong(f.getName().substring(0, f.getName().length() - SUFFIX.length())) + 1);
+		}
+	}
+
+	/**
+	 * @return all segment files in order of creation
+	 */
+	synchronized List<File> segments() {
+		File[] files = dir.listFiles();
+		List<File> l = new ArrayList<File>();
+		if (files != null) {
+			Arrays.sort(files);
+			for (File f : files) {
+				if (f.getName().endsWith(SUFFIX) && f.getName().length() == 16 + SUFFIX.length()) {
+					l.add(f);
+				}
+			}
+		}
+		return l;
+	}
+
+	/**
+	 * Appends record to current segment, starting new segment if record does not fit.
+	 */
+	synchronized void append(byte[] data) throws IOException {
+		int size = RECORD_HEADER + data.length;
+		if (current == null || current.remaining() < size + 4) {
+			open(Math.max(segmentSize, size + 4));
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		int pos = current.position();
+		current.position(pos + 4);
+		current.putInt((int) crc.getValue());
+		current.put(data);
+		// Length is written last, so reader never sees partially written record
+		current.putInt(pos, data.length);
+	}
+
+	private void open(int size) throws IOException {
+		currentFile = new File(dir, String.format("%016d", nextSegment++) + SUFFIX);
+		RandomAccessFile raf = new RandomAccessFile(currentFile, "rw");
+		try {
+			current = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Closes current segment, so following records go to new segment.
+	 *
+	 * @return all closed segments, which can be read and deleted
+	 */
+	synchronized List<File> roll() {
+		if (current != null) {
+			current.force();
+			current = null;
+			currentFile = null;
+		}
+		return segments();
+	}
+
+	/**
+	 * Replaces content of closed segment with given records.
+	 */
+	synchronized void rewrite(File segment, List<byte[]> records) throws IOException {
+		File tmp = new File(dir, segment.getName() + ".tmp");
+		int size = 4;
+		for (byte[] r : records) {
+			size += RECORD_HEADER + r.length;
+		}
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			for (byte[] r : records) {
+				CRC32 crc = new CRC32();
+				crc.update(r, 0, r.length);
+				buf.putInt(r.length);
+				buf.putInt((int) crc.getValue());
+				buf.put(r);
+			}
+			buf.force();
+		} finally {
+			raf.close();
+		}
+		if (!tmp.renameTo(segment)) {
+			throw new IOException("Can't replace journal segment " + segment);
+		}
+	}
+
+	/**
+	 * Reads all valid records of segment.
+	 */
+	static List<byte[]> read(File segment) throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>();
+		RandomAccessFile raf = new RandomAccessFile(segment, "r");
+		try {
+			MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			while (buf.remaining() >= RECORD_HEADER) {
+				int len = buf.getInt();
+				if (len <= 0 || len > buf.remaining() - 4) {
+					break;
+				}
+				int sum = buf.getInt();
+				byte[] data = new byte[len];
+				buf.get(data);
+				CRC32 crc = new CRC32();
+				crc.update(data, 0, len);
+				if ((int) crc.getValue() != sum) {
+					break;
+				}
+				records.add(data);
+			}
+		} finally {
+			raf.close();
+		}
+		return records;
+	}
+}
@@ -0,0 +1,825 @@
+package com.wizecore.metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Store which keeps working when underlying store is not available.
+ * <p>
+ * Writes go directly to underlying store. If write fails (e.g. Redis is down or times out), or background probe
+ * of underlying store fails or doesn't complete within probe timeout, store switches to journal mode:
+ * all writes are appended to local journal on disk (memory-mapped segment files) and never touch
+ * underlying store, so application threads don't wait for it. Background task checks underlying store
+ * periodically, replays compacted journal into it (last state per metric, sum of counter deltas)
+ * and switches back to direct writes.
+ * </p>
+ * <p>
+ * While in journal mode, reads return states saved since the outage. Reads of other metrics fail,
+ * so metric is not started empty and its load is retried (see {@link PersistentMetricRegistry#setLazyLoading(boolean)}).
+ * Save of metric whose stored state was never read is replayed only if store has no state for it,
+ * so it never overwrites persisted totals. Journal left by previous run is replayed on start.
+ * </p>
+ */
+public class JournalingMetricStore implements MetricStore, Closeable {
+	private static Logger log = LoggerFactory.getLogger(JournalingMetricStore.class);
+
+	/**
+	 * Default size of journal segment file in bytes.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Default interval in milliseconds between checks of underlying store.
+	 */
+	public static final long DEFAULT_RETRY_INTERVAL = 5000;
+
+	/**
+	 * Default time in milliseconds after which probe of underlying store is considered failed.
+	 */
+	public static final long DEFAULT_PROBE_TIMEOUT = 1000;
+
+	private static final String PROBE = "journal.probe";
+
+	private static final byte SAVE = 1;
+	private static final byte ADD = 2;
+	private static final byte SET = 3;
+	private static final byte SHARD = 4;
+	private static final byte DELETE = 5;
+
+	/**
+	 * Save of metric whose stored state was not read, replayed only if store has no state.
+	 */
+	private static final byte SAVE_NEW = 6;
+
+	private static final byte VALUE_NULL = 0;
+	private static final byte VALUE_LONG = 1;
+	private static final byte VALUE_DOUBLE = 2;
+	private static final byte VALUE_BYTES = 3;
+	private static final byte VALUE_STRING = 4;
+
+	private final MetricStore store;
+	private final Journal journal;
+	private final ScheduledExecutorService executor;
+	private volatile boolean available;
+
+	/**
+	 * Start of running probe in nanoseconds, or 0 if no probe is running.
+	 */
+	private volatile long probeStarted;
+
+	/**
+	 * States saved since the outage.
+	 */
+	private final ConcurrentMap<String, byte[]> journaled = new ConcurrentHashMap<String, byte[]>();
+
+	/**
+	 * Last known values of integers, to answer {@link #addAndGet(String, String, long)} during outage.
+	 */
+	private final ConcurrentMap<String, Long> totals = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Metrics whose state was read from underlying store.
+	 */
+	private final Set<String> read = ConcurrentHashMap.newKeySet();
+
+	public JournalingMetricStore(MetricStore store, File dir) {
+		this(store, dir, DEFAULT_SEGMENT_SIZE, DEFAULT_RETRY_INTERVAL);
+	}
+
+	/**
+	 * Creates store, replays journal left by previous run and starts background replay.
+	 *
+	 * @param store underlying store
+	 * @param dir journal directory
+	 * @param segmentSize size of journal segment file in bytes
+	 * @param retryInterval interval in milliseconds between checks of underlying store
+	 */
+	public JournalingMetricStore(MetricStore store, File dir, int segmentSize, long retryInterval) {
+		this(store, dir, segmentSize, retryInterval, DEFAULT_PROBE_TIMEOUT);
+	}
+
+	/**
+	 * Creates store, replays journal left by previous run and starts background replay.
+	 * While store is available, it is probed every {@code retryInterval}, so outage is detected
+	 * without application thread waiting for timeout of underlying store first.
+	 *
+	 * @param store underlying store
+	 * @param dir journal directory
+	 * @param segmentSize size of journal segment file in bytes
+	 * @param retryInterval interval in milliseconds between checks of underlying store
+	 * @param probeTimeout time in milliseconds after which probe not completed yet switches store to journal mode
+	 */
+	public JournalingMetricStore(MetricStore store, File dir, int segmentSize, long retryInterval, final long probeTimeout) {
+		this.store = store;
+		this.journal = new Journal(dir, segmentSize);
+		List<File> left = journal.segments();
+		available = left.isEmpty();
+		if (!available) {
+			log.info("Found " + left.size() + " journal segments in " + dir + ", will replay");
+			for (File f : left) {
+				try {
+					for (byte[] r : Journal.read(f)) {
+						remember(r);
+					}
+				} catch (IOException e) {
+					log.warn("Can't read journal segment " + f + ": " + e);
+				}
+			}
+			// Replay before serving reads, so metrics are restored from store, not from journal
+			replay();
+		}
+		// Second thread watches probe, which blocks until underlying store times out
+		executor = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "persistent-metrics-journal");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if (!available) {
+					replay();
+				} else {
+					probe();
+				}
+			}
+		}, retryInterval, retryInterval, TimeUnit.MILLISECONDS);
+		long watch = Math.max(10, Math.min(retryInterval, probeTimeout) / 4);
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				long started = probeStarted;
+				if (started != 0 && System.nanoTime() - started > TimeUnit.MILLISECONDS.toNanos(probeTimeout)) {
+					failed(new IllegalStateException("Probe didn't complete in " + probeTimeout + " ms"));
+				}
+			}
+		}, watch, watch, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Checks underlying store with single read, switches to journal mode if it fails.
+	 */
+	private void probe() {
+		probeStarted = System.nanoTime();
+		try {
+			store.getState(PROBE);
+		} catch (RuntimeException e) {
+			failed(e);
+		} finally {
+			probeStarted = 0;
+		}
+	}
+
+	private static String key(String name, String field) {
+		return name + '\0' + field;
+	}
+
+	/**
+	 * @return underlying store
+	 */
+	public MetricStore getStore() {
+		return store;
+	}
+
+	/**
+	 * @return true if writes go directly to underlying store
+	 */
+	public boolean isAvailable() {
+		return available;
+	}
+
+	/**
+	 * Switches to journal mode after failure of underlying store.
+	 */
+	private void failed(RuntimeException e) {
+		if (available) {
+			available = false;
+			log.warn("Metric store is not available, writing to journal: " + e);
+		}
+	}
+
+	/**
+	 * Appends record if store is not available.
+	 *
+	 * @return true if record was journaled, false if it must be written directly
+	 */
+	private boolean journal(byte[] record) {
+		synchronized (journal) {
+			if (available) {
+				return false;
+			}
+			try {
+				journal.append(record);
+			} catch (IOException e) {
+				log.warn("Can't write journal, metric update lost: " + e);
+				return true;
+			}
+			remember(record);
+			return true;
+		}
+	}
+
+	/**
+	 * Keeps journaled states and totals in memory to answer reads during outage.
+	 */
+	private void remember(byte[] record) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+			byte type = in.readByte();
+			String name = in.readUTF();
+			if (type == SAVE || type == SAVE_NEW) {
+				journaled.put(name, readBytes(in));
+			} else if (type == ADD) {
+				String key = key(name, in.readUTF());
+				Long prev = totals.get(key);
+				totals.put(key, (prev != null ? prev : 0) + in.readLong());
+			} else if (type == DELETE) {
+				journaled.remove(name);
+				totals.keySet().removeIf(k -> k.startsWith(name + '\0'));
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public StateCodec getCodec() {
+		return store.getCodec();
+	}
+
+	/**
+	 * Reads state from underlying store, or state saved since the outage.
+	 *
+	 * @throws IllegalStateException if store is not available and metric was not saved since the outage
+	 */
+	@Override
+	public byte[] getState(String name) {
+		if (available) {
+			try {
+				byte[] state = store.getState(name);
+				read.add(name);
+				return state;
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+		byte[] state = journaled.get(name);
+		if (state == null) {
+			throw new IllegalStateException("Metric store is not available, state of " + name + " is unknown");
+		}
+		return state;
+	}
+
+	/**
+	 * Reads states from underlying store.
+	 *
+	 * @throws IllegalStateException if store is not available
+	 */
+	@Override
+	public Map<String, byte[]> getAllStates(int batchSize) {
+		if (available) {
+			try {
+				Map<String, byte[]> states = store.getAllStates(batchSize);
+				read.addAll(states.keySet());
+				return states;
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+		throw new IllegalStateException("Metric store is not available");
+	}
+
+	/**
+	 * Reads states of metrics with names starting with given prefix from underlying store.
+	 *
+	 * @throws IllegalStateException if store is not available
+	 */
+	@Override
+	public Map<String, byte[]> getAllStates(String namePrefix, int batchSize) {
+		if (available) {
+			try {
+				Map<String, byte[]> states = store.getAllStates(namePrefix, batchSize);
+				read.addAll(states.keySet());
+				return states;
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+		throw new IllegalStateException("Metric store is not available");
+	}
+
+	/**
+	 * Values are not kept in journal, while store is not available no values are returned.
+	 */
+	@Override
+	public Map<String, Map<String, Object>> getAllValues(int batchSize) {
+		if (available) {
+			try {
+				return store.getAllValues(batchSize);
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+		return new HashMap<String, Map<String, Object>>();
+	}
+
+	@Override
+	public void save(String name, byte[] state, Map<String, Object> values) {
+		if (available) {
+			try {
+				store.save(name, state, values);
+				return;
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+		Record r = new Record(read.contains(name) ? SAVE : SAVE_NEW, name);
+		r.writeBytes(state);
+		r.writeInt(values.size());
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			r.writeUTF(e.getKey());
+			r.writeValue(e.getValue());
+		}
+		if (!journal(r.toByteArray())) {
+			save(name, state, values);
+		}
+	}
+
+	@Override
+	public long addAndGet(String name, String field, long delta) {
+		String key = key(name, field);
+		if (available) {
+			try {
+				long total = store.addAndGet(name, field, delta);
+				totals.put(key, total);
+				return total;
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+		if (delta == 0) {
+			// Plain read, nothing to journal
+			Long total = totals.get(key);
+			if (total == null) {
+				throw new IllegalStateException("Metric store is not available, total of " + name + " is unknown");
+			}
+			return total;
+		}
+		Record r = new Record(ADD, name);
+		r.writeUTF(field);
+		r.writeLong(delta);
+		if (!journal(r.toByteArray())) {
+			return addAndGet(name, field, delta);
+		}
+		Long total = totals.get(key);
+		return total != null ? total : 0;
+	}
+
+	/**
+	 * Adds delta in underlying store. Isn't journaled, since replay can't tell whether add which timed out was applied,
+	 * so fails while store is not available and caller keeps delta until it is back.
+	 */
+	@Override
+	public long addAndGetOnce(String name, String field, long delta, String writer, String id) {
+		if (!available) {
+			throw new IllegalStateException("Metric store is not available");
+		}
+		try {
+			long total = store.addAndGetOnce(name, field, delta, writer, id);
+			totals.put(key(name, field), total);
+			return total;
+		} catch (RuntimeException e) {
+			failed(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Marks shared meter in underlying store. Can't be journaled, since rates are advanced by time of store,
+	 * so fails while store is not available and caller keeps marks until it is back.
+	 */
+	@Override
+	public Map<String, Object> markShared(String name, long n, String writer, String id) {
+		if (!available) {
+			throw new IllegalStateException("Metric store is not available");
+		}
+		try {
+			return store.markShared(name, n, writer, id);
+		} catch (RuntimeException e) {
+			failed(e);
+			throw e;
+		}
+	}
+
+	@Override
+	public void setValue(String name, String field, Object value) {
+		if (available) {
+			try {
+				store.setValue(name, field, value);
+				return;
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+		Record r = new Record(SET, name);
+		r.writeUTF(field);
+		r.writeValue(value);
+		if (!journal(r.toByteArray())) {
+			setValue(name, field, value);
+		}
+	}
+
+	@Override
+	public void putShard(String name, String field, String node, byte[] data) {
+		if (available) {
+			try {
+				store.putShard(name, field, node, data);
+				return;
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+		Record r = new Record(SHARD, name);
+		r.writeUTF(field);
+		r.writeUTF(node);
+		r.writeBytes(data);
+		if (!journal(r.toByteArray())) {
+			putShard(name, field, node, data);
+		}
+	}
+
+	@Override
+	public Map<String, byte[]> getShards(String name, String field) {
+		if (available) {
+			try {
+				return store.getShards(name, field);
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+		return new HashMap<String, byte[]>();
+	}
+
+	/**
+	 * Points are not journaled, while store is not available they are dropped.
+	 */
+	@Override
+	public void addPoint(String name, String series, long time, String point, long retention) {
+		if (available) {
+			try {
+				store.addPoint(name, series, time, point, retention);
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+	}
+
+	@Override
+	public List<String> getPoints(String name, String series, long from, long to) {
+		if (available) {
+			try {
+				return store.getPoints(name, series, from, to);
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+		return new ArrayList<String>();
+	}
+
+	/**
+	 * Points are not journaled, like with {@link #addPoint(String, String, long, String, long)}.
+	 */
+	@Override
+	public void addPoints(String series, long time, Map<String, String> points, long retention) {
+		if (available) {
+			try {
+				store.addPoints(series, time, points, retention);
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+	}
+
+	@Override
+	public Map<String, List<String>> getPoints(Collection<String> names, String series, long from, long to) {
+		if (available) {
+			try {
+				return store.getPoints(names, series, from, to);
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+		return new HashMap<String, List<String>>();
+	}
+
+	@Override
+	public void delete(Collection<String> names) {
+		if (available) {
+			try {
+				store.delete(names);
+				return;
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+		List<String> left = new ArrayList<String>();
+		for (String name : names) {
+			if (!journal(new Record(DELETE, name).toByteArray())) {
+				left.add(name);
+			}
+		}
+		if (!left.isEmpty()) {
+			delete(left);
+		}
+	}
+
+	/**
+	 * Replays journal into underlying store and switches back to direct writes.
+	 * Store is probed first, so while it is not available journal is neither read nor rolled to new segment.
+	 * Segments are replayed without blocking writers, last small segment is replayed while writers wait,
+	 * so no journaled update is applied after direct one.
+	 *
+	 * @return true if store is available and journal is empty
+	 */
+	public synchronized boolean replay() {
+		try {
+			store.getState(PROBE);
+			apply(journal.roll());
+			synchronized (journal) {
+				apply(journal.roll());
+				journaled.clear();
+				available = true;
+			}
+			log.info("Metric store is available, journal replayed");
+			return true;
+		} catch (RuntimeException e) {
+			log.debug("Metric store is still not available: " + e);
+			return false;
+		} catch (IOException e) {
+			log.warn("Can't replay journal: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Compacts and applies segments, deletes them on success.
+	 * On failure not applied updates are written to first segment and other segments are deleted, so updates
+	 * already applied are not applied twice and order with updates journaled meanwhile is kept.
+	 */
+	private void apply(List<File> segments) throws IOException {
+		Compacted c = new Compacted();
+		for (File f : segments) {
+			for (byte[] r : Journal.read(f)) {
+				c.add(r);
+			}
+		}
+		try {
+			c.applyTo(store);
+		} catch (RuntimeException e) {
+			if (!c.applied) {
+				throw e;
+			}
+			journal.rewrite(segments.get(0), c.remaining());
+			delete(segments.subList(1, segments.size()));
+			throw e;
+		}
+		delete(segments);
+	}
+
+	private static void delete(List<File> segments) {
+		for (File f : segments) {
+			if (!f.delete()) {
+				log.warn("Can't delete journal segment " + f);
+			}
+		}
+	}
+
+	/**
+	 * Stops background replay. Journal is kept and replayed on next start.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+		synchronized (journal) {
+			journal.roll();
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return b;
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case VALUE_LONG:
+			return in.readLong();
+		case VALUE_DOUBLE:
+			return in.readDouble();
+		case VALUE_BYTES:
+			return readBytes(in);
+		case VALUE_STRING:
+			return new String(readBytes(in), StandardCharsets.UTF_8);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Journal record being written. Writes to memory never fail, so methods don't throw {@link IOException}.
+	 */
+	private static class Record {
+		private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(buf);
+
+		Record(byte type, String name) {
+			try {
+				out.writeByte(type);
+				out.writeUTF(name);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void writeUTF(String s) {
+			try {
+				out.writeUTF(s);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void writeInt(int v) {
+			try {
+				out.writeInt(v);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void writeLong(long v) {
+			try {
+				out.writeLong(v);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void writeBytes(byte[] b) {
+			try {
+				out.writeInt(b.length);
+				out.write(b);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * Writes exported value. Values other than numbers and byte arrays are stored as strings.
+		 */
+		void writeValue(Object v) {
+			try {
+				if (v == null) {
+					out.writeByte(VALUE_NULL);
+				} else if (v instanceof Long) {
+					out.writeByte(VALUE_LONG);
+					out.writeLong((Long) v);
+				} else if (v instanceof Double) {
+					out.writeByte(VALUE_DOUBLE);
+					out.writeDouble((Double) v);
+				} else if (v instanceof byte[]) {
+					out.writeByte(VALUE_BYTES);
+					writeBytes((byte[]) v);
+				} else {
+					out.writeByte(VALUE_STRING);
+					writeBytes(String.valueOf(v).getBytes(StandardCharsets.UTF_8));
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		byte[] toByteArray() {
+			return buf.toByteArray();
+		}
+	}
+
+	/**
+	 * Journal compacted to last state and values of every metric and sum of deltas of every integer.
+	 * Records are kept in original form, so not applied ones can be journaled again.
+	 */
+	private static class Compacted {
+		final Map<String, byte[]> records = new LinkedHashMap<String, byte[]>();
+		final Map<String, Long> deltas = new LinkedHashMap<String, Long>();
+		final Map<String, String[]> deltaKeys = new HashMap<String, String[]>();
+		boolean applied;
+
+		void add(byte[] record) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+			byte type = in.readByte();
+			String name = in.readUTF();
+			if (type == SAVE || type == SAVE_NEW) {
+				// Later save replaces earlier one of either kind
+				records.put(SAVE + key(name, ""), record);
+			} else if (type == SET) {
+				records.put(type + key(name, in.readUTF()), record);
+			} else if (type == SHARD) {
+				records.put(type + key(name, in.readUTF() + '\0' + in.readUTF()), record);
+			} else if (type == ADD) {
+				String field = in.readUTF();
+				String key = key(name, field);
+				Long prev = deltas.get(key);
+				deltas.put(key, (prev != null ? prev : 0) + in.readLong());
+				deltaKeys.put(key, new String[] { name, field });
+			} else if (type == DELETE) {
+				// Delete cancels everything journaled before, and is applied before anything journaled after
+				records.keySet().removeIf(k -> k.startsWith(name + '\0', 1));
+				deltas.keySet().removeIf(k -> k.startsWith(name + '\0'));
+				records.put(type + key(name, ""), record);
+			}
+		}
+
+		/**
+		 * Applies records, removing every applied one.
+		 */
+		void applyTo(MetricStore store) throws IOException {
+			for (Iterator<byte[]> it = records.values().iterator(); it.hasNext();) {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(it.next()));
+				byte type = in.readByte();
+				String name = in.readUTF();
+				if (type == SAVE || type == SAVE_NEW) {
+					byte[] state = readBytes(in);
+					int n = in.readInt();
+					Map<String, Object> values = new HashMap<String, Object>();
+					for (int i = 0; i < n; i++) {
+						values.put(in.readUTF(), readValue(in));
+					}
+					if (type == SAVE || store.getState(name) == null) {
+						store.save(name, state, values);
+					} else {
+						log.warn("Journaled state of " + name + " is not replayed, it was saved without reading stored state");
+					}
+				} else if (type == SET) {
+					store.setValue(name, in.readUTF(), readValue(in));
+				} else if (type == SHARD) {
+					store.putShard(name, in.readUTF(), in.readUTF(), readBytes(in));
+				} else if (type == DELETE) {
+					store.delete(Collections.singletonList(name));
+				}
+				it.remove();
+				applied = true;
+			}
+			for (Iterator<Map.Entry<String, Long>> it = deltas.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Long> e = it.next();
+				String[] k = deltaKeys.get(e.getKey());
+				store.addAndGet(k[0], k[1], e.getValue());
+				it.remove();
+				applied = true;
+			}
+		}
+
+		/**
+		 * @return records not yet applied, with deltas summed
+		 */
+		List<byte[]> remaining() {
+			List<byte[]> l = new ArrayList<byte[]>(records.values());
+			for (Map.Entry<String, Long> e : deltas.entrySet()) {
+				String[] k = deltaKeys.get(e.getKey());
+				Record r = new Record(ADD, k[0]);
+				r.writeUTF(k[1]);
+				r.writeLong(e.getValue());
+				l.add(r.toByteArray());
+			}
+			return l;
+		}
+	}
+}
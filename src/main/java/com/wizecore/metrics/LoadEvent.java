@@ -0,0 +1,33 @@
+package com.wizecore.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event emitted on bulk load of persistent metrics, see {@link PersistentMetricRegistry#hydrate()}.
+ */
+@Name("com.wizecore.metrics.Load")
+@Label("Metrics Load")
+@Category("Persistent Metrics")
+@Description("States of persistent metrics loaded from store in bulk")
+class LoadEvent extends Event {
+	@Label("Metrics")
+	int count;
+
+	@Label("Payload Size")
+	@DataAmount
+	long payloadSize;
+
+	@Label("Codec Time")
+	@Timespan
+	long codecTime;
+
+	@Label("Store Time")
+	@Timespan
+	long storeTime;
+}
@@ -0,0 +1,233 @@
+package com.wizecore.metrics;
+
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.codahale.metrics.Clock;
+
+/**
+ * In-process store, keeps metrics in memory of current JVM.
+ * Useful for tests and benchmarks without Redis, or to run several registries sharing same state.
+ */
+public class LocalMetricStore implements MetricStore {
+	private final ConcurrentMap<String, byte[]> states = new ConcurrentHashMap<String, byte[]>();
+	private final ConcurrentMap<String, Object> values = new ConcurrentHashMap<String, Object>();
+	private final ConcurrentMap<String, ConcurrentMap<String, byte[]>> shards = new ConcurrentHashMap<String, ConcurrentMap<String, byte[]>>();
+	private final ConcurrentMap<String, ConcurrentNavigableMap<Long, String>> series = new ConcurrentHashMap<String, ConcurrentNavigableMap<Long, String>>();
+	private final ConcurrentMap<String, Shared> shared = new ConcurrentHashMap<String, Shared>();
+	private final StateCodec codec;
+	private volatile Clock clock = Clock.defaultClock();
+
+	/**
+	 * State of shared meter, same as kept by script of {@link RedisMetricStore}.
+	 */
+	private static final class Shared {
+		final long start;
+		long tick;
+		long count;
+		long uncounted;
+		boolean initialized;
+		final double[] rates = new double[SharedMeter.PERIODS.length];
+
+		Shared(long now) {
+			start = now;
+			tick = now;
+		}
+	}
+
+	/**
+	 * Creates store using {@link BinaryStateCodec}.
+	 */
+	public LocalMetricStore() {
+		this(new BinaryStateCodec());
+	}
+
+	public LocalMetricStore(StateCodec codec) {
+		this.codec = codec;
+	}
+
+	private static String key(String name, String field) {
+		return field.length() == 0 ? name : name + "." + field;
+	}
+
+	@Override
+	public StateCodec getCodec() {
+		return codec;
+	}
+
+	@Override
+	public byte[] getState(String name) {
+		return states.get(name);
+	}
+
+	@Override
+	public Map<String, byte[]> getAllStates(int batchSize) {
+		return new HashMap<String, byte[]>(states);
+	}
+
+	@Override
+	public Map<String, Map<String, Object>> getAllValues(int batchSize) {
+		Map<String, Map<String, Object>> all = new HashMap<String, Map<String, Object>>();
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			String key = e.getKey();
+			String field = MetricKeys.fieldOf(key);
+			if (field != null) {
+				String name = MetricKeys.nameOf(key, field);
+				Map<String, Object> m = all.get(name);
+				if (m == null) {
+					m = new HashMap<String, Object>();
+					all.put(name, m);
+				}
+				m.put(field, e.getValue());
+			}
+		}
+		return all;
+	}
+
+	@Override
+	public void save(String name, byte[] state, Map<String, Object> values) {
+		states.put(name, state);
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			this.values.put(key(name, e.getKey()), e.getValue());
+		}
+	}
+
+	@Override
+	public long addAndGet(String name, String field, long delta) {
+		String key = key(name, field);
+		for (;;) {
+			Object v = values.get(key);
+			long next = (v instanceof Number ? ((Number) v).longValue() : 0) + delta;
+			if (v == null ? values.putIfAbsent(key, next) == null : values.replace(key, v, next)) {
+				return next;
+			}
+		}
+	}
+
+	/**
+	 * Marks shared meter kept in memory, using time of {@link #getClock()}.
+	 * Failed mark is never applied here, so operation ids are not tracked.
+	 */
+	@Override
+	public Map<String, Object> markShared(String name, long n, String writer, String id) {
+		Shared s = shared.get(name);
+		if (s == null) {
+			shared.putIfAbsent(name, new Shared(clock.getTick()));
+			s = shared.get(name);
+		}
+		Map<String, Object> values = new HashMap<String, Object>();
+		synchronized (s) {
+			long now = clock.getTick();
+			long age = now - s.tick;
+			if (age > SharedMeter.TICK_INTERVAL) {
+				long ticks = age / SharedMeter.TICK_INTERVAL;
+				s.tick = now - age % SharedMeter.TICK_INTERVAL;
+				double instant = s.uncounted / (SharedMeter.TICK_INTERVAL / 1e9);
+				for (int i = 0; i < s.rates.length; i++) {
+					double alpha = 1 - Math.exp(-5.0 / 60 / SharedMeter.PERIODS[i]);
+					double rate = s.initialized ? s.rates[i] + alpha * (instant - s.rates[i]) : instant;
+					// Ticks after the first one have no marks
+					s.rates[i] = rate * Math.pow(1 - alpha, ticks - 1);
+				}
+				s.initialized = true;
+				s.uncounted = 0;
+			}
+			s.count += n;
+			s.uncounted += n;
+			double elapsed = (now - s.start) / 1e9;
+			values.put(COUNT, s.count);
+			values.put(MEAN_RATE, s.count == 0 || elapsed <= 0 ? 0.0 : s.count / elapsed);
+			values.put(M1_RATE, s.rates[0]);
+			values.put(M5_RATE, s.rates[1]);
+			values.put(M15_RATE, s.rates[2]);
+		}
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			this.values.put(key(name, e.getKey()), e.getValue());
+		}
+		return values;
+	}
+
+	@Override
+	public void setValue(String name, String field, Object value) {
+		values.put(key(name, field), value);
+	}
+
+	@Override
+	public void putShard(String name, String field, String node, byte[] data) {
+		ConcurrentMap<String, byte[]> m = shards.get(key(name, field));
+		if (m == null) {
+			shards.putIfAbsent(key(name, field), new ConcurrentHashMap<String, byte[]>());
+			m = shards.get(key(name, field));
+		}
+		m.put(node, data);
+	}
+
+	@Override
+	public Map<String, byte[]> getShards(String name, String field) {
+		ConcurrentMap<String, byte[]> m = shards.get(key(name, field));
+		return m != null ? new HashMap<String, byte[]>(m) : new HashMap<String, byte[]>();
+	}
+
+	/**
+	 * Keeps single point per time, last one added.
+	 */
+	@Override
+	public void addPoint(String name, String series, long time, String point, long retention) {
+		String key = key(name, series);
+		ConcurrentNavigableMap<Long, String> points = this.series.get(key);
+		if (points == null) {
+			this.series.putIfAbsent(key, new ConcurrentSkipListMap<Long, String>());
+			points = this.series.get(key);
+		}
+		points.put(time, point);
+		points.headMap(time - retention).clear();
+	}
+
+	@Override
+	public List<String> getPoints(String name, String series, long from, long to) {
+		ConcurrentNavigableMap<Long, String> points = this.series.get(key(name, series));
+		return points != null ? new ArrayList<String>(points.subMap(from, true, to, true).values()) : new ArrayList<String>();
+	}
+
+	@Override
+	public void delete(Collection<String> names) {
+		for (String name : names) {
+			states.remove(name);
+			for (String field : FIELDS) {
+				values.remove(key(name, field));
+				shards.remove(key(name, field));
+			}
+			shared.remove(name);
+			for (HistoryRecorder.Resolution r : HistoryRecorder.Resolution.values()) {
+				series.remove(key(name, r.getSeries()));
+			}
+		}
+	}
+
+	/**
+	 * Reads exported value, as saved by metric.
+	 *
+	 * @return value or null if it was never saved
+	 */
+	public Object getValue(String name, String field) {
+		return values.get(key(name, field));
+	}
+
+	/**
+	 * Clock used as time of store by shared meters.
+	 */
+	public Clock getClock() {
+		return clock;
+	}
+
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+}
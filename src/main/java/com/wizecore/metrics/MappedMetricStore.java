@@ -0,0 +1,518 @@
+package com.wizecore.metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local store for deployments without Redis, keeps metrics in fixed-size slots of a memory-mapped file.
+ * <p>
+ * Every metric gets a slot with its name, serialized state and exported integers and rates stored as primitives,
+ * so save is a few stores into mapped memory, not a network call. Slot has two versions of data, written alternately
+ * and protected by checksum, so write torn by crash leaves previous version intact.
+ * On start file is mapped and slots are indexed by name, values are read from mapped memory when requested.
+ * </p>
+ * <p>
+ * Sized for counters and meters. Data which doesn't fit into slot (states of histograms and timers with large reservoirs,
+ * shards, shared meters, history, too long names, metrics beyond capacity of file) is kept in memory only,
+ * as in {@link LocalMetricStore}, and is lost on restart. Warning is logged for first such write of every metric.
+ * Use {@link MappedReservoir} for histograms and timers, so their states fit into slots. Snapshots and other
+ * non-numeric values are kept in memory too, they are exported again by metric on next save.
+ * Writes survive crash of process, call {@link #force()} to survive crash of operating system.
+ * </p>
+ */
+public class MappedMetricStore implements MetricStore, Closeable {
+	private static Logger log = LoggerFactory.getLogger(MappedMetricStore.class);
+
+	/**
+	 * Default number of slots in new file.
+	 */
+	public static final int DEFAULT_SLOTS = 65536;
+
+	/**
+	 * Default size of slot in bytes, enough for state of counter or meter.
+	 */
+	public static final int DEFAULT_SLOT_SIZE = 512;
+
+	private static final int MAGIC = 0x504D5331;
+	private static final int HEADER_SIZE = 64;
+
+	/**
+	 * Slot starts with name: length as short, zero if slot is free, then UTF-8 bytes.
+	 */
+	private static final int NAME_SIZE = 128;
+
+	/**
+	 * Exported values kept in slot, integers first.
+	 */
+	private static final List<String> SLOT_FIELDS = Collections.unmodifiableList(Arrays.asList(VALUE, COUNT, MEAN_RATE, M1_RATE, M5_RATE, M15_RATE, GAUGE));
+	private static final int INTEGERS = 2;
+	private static final int STATE_BIT = 1 << SLOT_FIELDS.size();
+
+	// Version of slot data: checksum of the rest, length of state, sequence number,
+	// bit mask of present values and state, values, state
+	private static final int V_CRC = 0;
+	private static final int V_STATE_LENGTH = 4;
+	private static final int V_SEQ = 8;
+	private static final int V_MASK = 16;
+	private static final int V_VALUES = 24;
+	private static final int V_STATE = V_VALUES + 8 * SLOT_FIELDS.size();
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final int slotSize;
+	private final int slotCount;
+	private final int versionSize;
+	private final StateCodec codec;
+	private final LocalMetricStore memory;
+	private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+	private final ConcurrentMap<String, Boolean> overflow = new ConcurrentHashMap<String, Boolean>();
+	private final ConcurrentMap<String, Boolean> warned = new ConcurrentHashMap<String, Boolean>();
+	private final BitSet used = new BitSet();
+
+	/**
+	 * Slot of metric in file.
+	 */
+	private static final class Slot {
+		final int index;
+		final int offset;
+		int version = 1;
+		long seq;
+		boolean deleted;
+
+		Slot(int index, int offset) {
+			this.index = index;
+			this.offset = offset;
+		}
+	}
+
+	/**
+	 * Opens or creates file with default number and size of slots, using {@link BinaryStateCodec}.
+	 */
+	public MappedMetricStore(File file) {
+		this(file, DEFAULT_SLOTS, DEFAULT_SLOT_SIZE, new BinaryStateCodec());
+	}
+
+	/**
+	 * Opens or creates store file. Existing file keeps number and size of slots it was created with.
+	 *
+	 * @param file store file
+	 * @param slots number of slots in new file
+	 * @param slotSize size of slot in bytes
+	 * @param codec codec used by metrics to serialize state
+	 */
+	public MappedMetricStore(File file, int slots, int slotSize, StateCodec codec) {
+		this.file = file;
+		this.codec = codec;
+		this.memory = new LocalMetricStore(codec);
+		boolean created;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				created = raf.length() < HEADER_SIZE;
+				if (!created) {
+					if (raf.readInt() != MAGIC) {
+						throw new IllegalArgumentException("Not a metric store file: " + file);
+					}
+					slotSize = raf.readInt();
+					slots = raf.readInt();
+				}
+				if (slotSize < NAME_SIZE + 2 * (V_STATE + 16)) {
+					throw new IllegalArgumentException("Slot size is too small: " + slotSize);
+				}
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * slotSize);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't map metric store file " + file, e);
+		}
+		this.slotSize = slotSize;
+		this.slotCount = slots;
+		this.versionSize = (slotSize - NAME_SIZE) / 2;
+		if (created) {
+			buffer.putInt(4, slotSize);
+			buffer.putInt(8, slots);
+			// Magic is written last, so partially created file is recreated
+			buffer.putInt(0, MAGIC);
+		} else {
+			index();
+		}
+	}
+
+	/**
+	 * Finds used slots and their latest valid versions.
+	 */
+	private void index() {
+		for (int i = 0; i < slotCount; i++) {
+			int offset = HEADER_SIZE + i * slotSize;
+			int len = buffer.getShort(offset);
+			if (len <= 0 || len > NAME_SIZE - 2) {
+				continue;
+			}
+			byte[] name = new byte[len];
+			for (int j = 0; j < len; j++) {
+				name[j] = buffer.get(offset + 2 + j);
+			}
+			Slot s = new Slot(i, offset);
+			for (int v = 0; v < 2; v++) {
+				long seq = validSeq(base(s, v));
+				if (seq > s.seq) {
+					s.seq = seq;
+					s.version = v;
+				}
+			}
+			used.set(i);
+			slots.put(new String(name, StandardCharsets.UTF_8), s);
+		}
+		log.info("Mapped " + slots.size() + " metrics from " + file);
+	}
+
+	private int base(Slot s, int version) {
+		return s.offset + NAME_SIZE + version * versionSize;
+	}
+
+	/**
+	 * @return sequence number of version, or 0 if it is not valid
+	 */
+	private long validSeq(int base) {
+		int len = buffer.getInt(base + V_STATE_LENGTH);
+		if (len < 0 || len > versionSize - V_STATE) {
+			return 0;
+		}
+		return buffer.getInt(base + V_CRC) == crc(base, len) ? buffer.getLong(base + V_SEQ) : 0;
+	}
+
+	private int crc(int base, int stateLength) {
+		ByteBuffer b = buffer.duplicate();
+		b.limit(base + V_STATE + stateLength);
+		b.position(base + V_STATE_LENGTH);
+		CRC32 crc = new CRC32();
+		crc.update(b);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Finds slot of metric, allocating new one if needed.
+	 *
+	 * @return slot or null if metric doesn't fit into file
+	 */
+	private Slot slotOf(String name) {
+		Slot s = slots.get(name);
+		if (s != null || overflow.containsKey(name)) {
+			return s;
+		}
+		synchronized (this) {
+			s = slots.get(name);
+			if (s == null) {
+				s = allocate(name);
+			}
+		}
+		return s;
+	}
+
+	private Slot allocate(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		int i = used.nextClearBit(0);
+		if (bytes.length > NAME_SIZE - 2 || i >= slotCount) {
+			log.warn("Metric " + name + " doesn't fit into " + file + ", it is kept in memory only and lost on restart");
+			overflow.put(name, Boolean.TRUE);
+			warned.put(name, Boolean.TRUE);
+			return null;
+		}
+		Slot s = new Slot(i, HEADER_SIZE + i * slotSize);
+		// Invalidate data of previous metric before slot gets new name
+		buffer.putInt(base(s, 0) + V_STATE_LENGTH, -1);
+		buffer.putInt(base(s, 1) + V_STATE_LENGTH, -1);
+		for (int j = 0; j < bytes.length; j++) {
+			buffer.put(s.offset + 2 + j, bytes[j]);
+		}
+		buffer.putShort(s.offset, (short) bytes.length);
+		used.set(i);
+		slots.put(name, s);
+		return s;
+	}
+
+	/**
+	 * Warns once per metric that some of its data is not persisted.
+	 */
+	private void inMemory(String name, String what) {
+		if (warned.putIfAbsent(name, Boolean.TRUE) == null) {
+			log.warn(what + " of metric " + name + " doesn't fit into " + file + ", it is kept in memory only and lost on restart");
+		}
+	}
+
+	/**
+	 * Writes next version of slot. Values not given are copied from current version.
+	 *
+	 * @param state new state, or null to keep current one
+	 * @param clearState true to remove state from slot, if new state is kept elsewhere
+	 * @return false if slot was deleted meanwhile
+	 */
+	private boolean write(Slot s, Map<String, Object> values, byte[] state, boolean clearState) {
+		synchronized (s) {
+			if (s.deleted) {
+				return false;
+			}
+			int from = base(s, s.version);
+			int to = base(s, 1 - s.version);
+			boolean current = s.seq > 0;
+			int mask = current ? buffer.getInt(from + V_MASK) : 0;
+			for (int i = 0; i < SLOT_FIELDS.size(); i++) {
+				Object v = values.get(SLOT_FIELDS.get(i));
+				long bits = current ? buffer.getLong(from + V_VALUES + 8 * i) : 0;
+				if (v instanceof Number) {
+					bits = i < INTEGERS ? ((Number) v).longValue() : Double.doubleToRawLongBits(((Number) v).doubleValue());
+					mask |= 1 << i;
+				}
+				buffer.putLong(to + V_VALUES + 8 * i, bits);
+			}
+			int len = 0;
+			ByteBuffer b = buffer.duplicate();
+			b.position(to + V_STATE);
+			if (state != null) {
+				len = state.length;
+				b.put(state);
+				mask |= STATE_BIT;
+			} else if (clearState) {
+				mask &= ~STATE_BIT;
+			} else if ((mask & STATE_BIT) != 0) {
+				len = buffer.getInt(from + V_STATE_LENGTH);
+				ByteBuffer src = buffer.duplicate();
+				src.limit(from + V_STATE + len);
+				src.position(from + V_STATE);
+				b.put(src);
+			}
+			buffer.putInt(to + V_STATE_LENGTH, len);
+			buffer.putLong(to + V_SEQ, s.seq + 1);
+			buffer.putInt(to + V_MASK, mask);
+			// Checksum is written last, torn version is ignored on start
+			buffer.putInt(to + V_CRC, crc(to, len));
+			s.version = 1 - s.version;
+			s.seq++;
+			return true;
+		}
+	}
+
+	private int mask(Slot s) {
+		return s.seq > 0 ? buffer.getInt(base(s, s.version) + V_MASK) : 0;
+	}
+
+	private Object value(Slot s, int i) {
+		long bits = buffer.getLong(base(s, s.version) + V_VALUES + 8 * i);
+		return i < INTEGERS ? (Object) bits : (Object) Double.longBitsToDouble(bits);
+	}
+
+	private byte[] state(Slot s) {
+		int base = base(s, s.version);
+		byte[] state = new byte[buffer.getInt(base + V_STATE_LENGTH)];
+		for (int i = 0; i < state.length; i++) {
+			state[i] = buffer.get(base + V_STATE + i);
+		}
+		return state;
+	}
+
+	@Override
+	public StateCodec getCodec() {
+		return codec;
+	}
+
+	@Override
+	public byte[] getState(String name) {
+		Slot s = slots.get(name);
+		if (s != null) {
+			synchronized (s) {
+				if ((mask(s) & STATE_BIT) != 0) {
+					return state(s);
+				}
+			}
+		}
+		return memory.getState(name);
+	}
+
+	@Override
+	public Map<String, byte[]> getAllStates(int batchSize) {
+		Map<String, byte[]> all = memory.getAllStates(batchSize);
+		for (Map.Entry<String, Slot> e : slots.entrySet()) {
+			Slot s = e.getValue();
+			synchronized (s) {
+				if ((mask(s) & STATE_BIT) != 0) {
+					all.put(e.getKey(), state(s));
+				}
+			}
+		}
+		return all;
+	}
+
+	@Override
+	public Map<String, Map<String, Object>> getAllValues(int batchSize) {
+		Map<String, Map<String, Object>> all = memory.getAllValues(batchSize);
+		for (Map.Entry<String, Slot> e : slots.entrySet()) {
+			Slot s = e.getValue();
+			Map<String, Object> values = new HashMap<String, Object>();
+			synchronized (s) {
+				int mask = mask(s);
+				for (int i = 0; i < SLOT_FIELDS.size(); i++) {
+					if ((mask & (1 << i)) != 0) {
+						values.put(SLOT_FIELDS.get(i), value(s, i));
+					}
+				}
+			}
+			if (!values.isEmpty()) {
+				Map<String, Object> m = all.get(e.getKey());
+				if (m != null) {
+					m.putAll(values);
+				} else {
+					all.put(e.getKey(), values);
+				}
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * Saves state and values into slot. State which doesn't fit and values of other fields are kept in memory.
+	 */
+	@Override
+	public void save(String name, byte[] state, Map<String, Object> values) {
+		Slot s = slotOf(name);
+		boolean fits = state.length <= versionSize - V_STATE;
+		if (s == null || !write(s, values, fits ? state : null, !fits)) {
+			memory.save(name, state, values);
+			return;
+		}
+		if (!fits) {
+			inMemory(name, "State of " + state.length + " bytes");
+			memory.save(name, state, Collections.<String, Object>emptyMap());
+		}
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			if (!SLOT_FIELDS.contains(e.getKey()) || !(e.getValue() instanceof Number)) {
+				memory.setValue(name, e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	@Override
+	public long addAndGet(String name, String field, long delta) {
+		int i = SLOT_FIELDS.indexOf(field);
+		Slot s = i >= 0 && i < INTEGERS ? slotOf(name) : null;
+		if (s != null) {
+			synchronized (s) {
+				long next = ((mask(s) & (1 << i)) != 0 ? (Long) value(s, i) : 0) + delta;
+				if (write(s, Collections.<String, Object>singletonMap(field, next), null, false)) {
+					return next;
+				}
+			}
+		}
+		return memory.addAndGet(name, field, delta);
+	}
+
+	/**
+	 * Shared meters are kept in memory only.
+	 */
+	@Override
+	public Map<String, Object> markShared(String name, long n, String writer, String id) {
+		inMemory(name, "Shared meter");
+		return memory.markShared(name, n, writer, id);
+	}
+
+	@Override
+	public void setValue(String name, String field, Object value) {
+		Slot s = SLOT_FIELDS.contains(field) && value instanceof Number ? slotOf(name) : null;
+		if (s == null || !write(s, Collections.<String, Object>singletonMap(field, value), null, false)) {
+			memory.setValue(name, field, value);
+		}
+	}
+
+	@Override
+	public void putShard(String name, String field, String node, byte[] data) {
+		inMemory(name, "Shard");
+		memory.putShard(name, field, node, data);
+	}
+
+	@Override
+	public Map<String, byte[]> getShards(String name, String field) {
+		return memory.getShards(name, field);
+	}
+
+	@Override
+	public void addPoint(String name, String series, long time, String point, long retention) {
+		inMemory(name, "History");
+		memory.addPoint(name, series, time, point, retention);
+	}
+
+	@Override
+	public List<String> getPoints(String name, String series, long from, long to) {
+		return memory.getPoints(name, series, from, to);
+	}
+
+	/**
+	 * Frees slots of metrics, so they can be reused by new metrics.
+	 */
+	@Override
+	public void delete(Collection<String> names) {
+		for (String name : names) {
+			Slot s = slots.remove(name);
+			if (s != null) {
+				synchronized (s) {
+					s.deleted = true;
+					buffer.putShort(s.offset, (short) 0);
+				}
+				synchronized (this) {
+					used.clear(s.index);
+				}
+			}
+			overflow.remove(name);
+			warned.remove(name);
+		}
+		memory.delete(names);
+	}
+
+	/**
+	 * Reads exported value, as saved by metric.
+	 *
+	 * @return value or null if it was never saved
+	 */
+	public Object getValue(String name, String field) {
+		int i = SLOT_FIELDS.indexOf(field);
+		Slot s = slots.get(name);
+		if (s != null && i >= 0) {
+			synchronized (s) {
+				if ((mask(s) & (1 << i)) != 0) {
+					return value(s, i);
+				}
+			}
+		}
+		return memory.getValue(name, field);
+	}
+
+	/**
+	 * Writes changes of mapped file to disk.
+	 */
+	public void force() {
+		buffer.force();
+	}
+
+	@Override
+	public void close() {
+		force();
+	}
+}
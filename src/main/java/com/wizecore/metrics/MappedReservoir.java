@@ -0,0 +1,246 @@
+package com.wizecore.metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformSnapshot;
+
+/**
+ * Reservoir of values recorded in last time window, kept off-heap in a ring buffer in memory-mapped file.
+ * <p>
+ * Every value is stored with its time as two longs, overwriting the oldest one, so update doesn't allocate.
+ * Time is cleared before value is written and set after it, separated by store fences, so snapshot skips entry
+ * being overwritten instead of reading new value with old time or vice versa.
+ * Snapshot is read straight from mapped file and contains values recorded within window, at most size of ring.
+ * File is the state of reservoir, so it survives restarts and {@link #save()} has nothing to serialize.
+ * </p>
+ * Similar to {@link com.codahale.metrics.SlidingTimeWindowReservoir}, but bounded in size.
+ * Times are taken from {@link Clock#getTime()}, so window is kept across restarts.
+ */
+public class MappedReservoir implements Reservoir, Persistent, Closeable {
+	/**
+	 * Default number of values in ring, same as size of {@link com.codahale.metrics.ExponentiallyDecayingReservoir}.
+	 */
+	public static final int DEFAULT_SIZE = 1028;
+
+	/**
+	 * Default window in minutes.
+	 */
+	public static final long DEFAULT_WINDOW = 5;
+
+	private static final int MAGIC = 0x504D5231;
+	private static final int HEADER_SIZE = 16;
+	private static final int ENTRY_SIZE = 16;
+
+	/**
+	 * Fences of sun.misc.Unsafe, null if not accessible.
+	 */
+	private static final MethodHandle STORE_FENCE = fence("storeFence");
+	private static final MethodHandle LOAD_FENCE = fence("loadFence");
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final int size;
+	private final long window;
+	private final Clock clock;
+	private final AtomicLong next;
+
+	/**
+	 * Opens or creates reservoir with default size, keeping values of last 5 minutes.
+	 */
+	public MappedReservoir(File file) {
+		this(file, DEFAULT_SIZE, DEFAULT_WINDOW, TimeUnit.MINUTES, Clock.defaultClock());
+	}
+
+	/**
+	 * Opens or creates reservoir. Existing file keeps size it was created with.
+	 *
+	 * @param file file of reservoir
+	 * @param size number of values in ring of new file
+	 * @param window how long values are kept in snapshot
+	 * @param unit unit of window
+	 * @param clock clock used to timestamp values
+	 */
+	public MappedReservoir(File file, int size, long window, TimeUnit unit, Clock clock) {
+		this.file = file;
+		this.window = unit.toMillis(window);
+		this.clock = clock;
+		boolean created;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				created = raf.length() < HEADER_SIZE;
+				if (!created) {
+					if (raf.readInt() != MAGIC) {
+						throw new IllegalArgumentException("Not a reservoir file: " + file);
+					}
+					size = raf.readInt();
+				}
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) size * ENTRY_SIZE);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't map reservoir file " + file, e);
+		}
+		this.size = size;
+		if (created) {
+			buffer.putInt(4, size);
+			buffer.putInt(0, MAGIC);
+		}
+		// Continue after the latest value
+		long latest = 0;
+		int last = -1;
+		for (int i = 0; i < size; i++) {
+			long time = buffer.getLong(HEADER_SIZE + i * ENTRY_SIZE);
+			if (time > latest) {
+				latest = time;
+				last = i;
+			}
+		}
+		next = new AtomicLong(last + 1);
+	}
+
+	private static MethodHandle fence(String name) {
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			return MethodHandles.lookup().unreflect(c.getMethod(name)).bindTo(f.get(null));
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static void invoke(MethodHandle fence) {
+		try {
+			fence.invokeExact();
+		} catch (Throwable e) {
+			throw new IllegalStateException("Can't call " + fence, e);
+		}
+	}
+
+	/**
+	 * Orders stores before fence with stores after it.
+	 */
+	private void storeFence() {
+		if (STORE_FENCE != null) {
+			invoke(STORE_FENCE);
+		} else {
+			synchronized (this) {
+				// Monitor exit orders stores as fallback
+			}
+		}
+	}
+
+	/**
+	 * Orders loads before fence with loads after it.
+	 */
+	private void loadFence() {
+		if (LOAD_FENCE != null) {
+			invoke(LOAD_FENCE);
+		} else {
+			synchronized (this) {
+				// Monitor enter orders loads as fallback
+			}
+		}
+	}
+
+	@Override
+	public void update(long value) {
+		int offset = HEADER_SIZE + (int) (next.getAndIncrement() % size) * ENTRY_SIZE;
+		buffer.putLong(offset, 0);
+		storeFence();
+		buffer.putLong(offset + 8, value);
+		storeFence();
+		// Time is published last, entry is valid once it is set
+		buffer.putLong(offset, clock.getTime());
+	}
+
+	/**
+	 * @return number of values recorded within window
+	 */
+	@Override
+	public int size() {
+		long from = clock.getTime() - window;
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (buffer.getLong(HEADER_SIZE + i * ENTRY_SIZE) > from) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public Snapshot getSnapshot() {
+		long from = clock.getTime() - window;
+		long[] values = new long[size];
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			int offset = HEADER_SIZE + i * ENTRY_SIZE;
+			long time = buffer.getLong(offset);
+			if (time > from) {
+				loadFence();
+				long value = buffer.getLong(offset + 8);
+				loadFence();
+				// Skip entry overwritten while it was read
+				if (buffer.getLong(offset) == time) {
+					values[n++] = value;
+				}
+			}
+		}
+		return new UniformSnapshot(Arrays.copyOf(values, n));
+	}
+
+	/**
+	 * Does nothing, values are already in mapped file.
+	 */
+	@Override
+	public void save() {
+	}
+
+	/**
+	 * Does nothing, values are already in mapped file.
+	 */
+	@Override
+	public CompletionStage<Void> saveAsync() {
+		return CompletableFuture.completedFuture(null);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Writes changes of mapped file to disk.
+	 */
+	@Override
+	public void close() {
+		buffer.force();
+	}
+
+	/**
+	 * Deletes file of reservoir, without writing pending changes. Reservoir must not be used afterwards.
+	 *
+	 * @return true if file was deleted
+	 */
+	public boolean delete() {
+		return file.delete();
+	}
+}
@@ -0,0 +1,248 @@
+package com.wizecore.metrics;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * Cluster-wide reservoir based on HdrHistogram, which can be merged without losing precision.
+ * <p>
+ * Every node records values into its own histogram and saves it as a shard of the metric
+ * (see {@link MetricStore#putShard(String, String, String, byte[])}), so nodes using the same metric name
+ * never overwrite each other. Snapshot merges histograms of all nodes, so percentiles are cluster-wide.
+ * Histograms of other nodes are re-read at most once per refresh interval. Every shard keeps time of its last save,
+ * shards of other nodes not saved for longer than maximum shard age (e.g. of nodes which are gone) are not merged.
+ * </p>
+ * Unlike {@link com.codahale.metrics.ExponentiallyDecayingReservoir}, values are not decayed,
+ * snapshot covers all values recorded since metric was created. Negative values are recorded as 0.
+ */
+public class MergeableReservoir implements Reservoir, Persistent {
+	private static Logger log = LoggerFactory.getLogger(MergeableReservoir.class);
+
+	/**
+	 * Default number of significant decimal digits of recorded values.
+	 */
+	public static final int DEFAULT_SIGNIFICANT_DIGITS = 2;
+
+	/**
+	 * Default interval in milliseconds between reads of other nodes histograms.
+	 */
+	public static final long DEFAULT_REFRESH_INTERVAL = 5000;
+
+	/**
+	 * Default age in milliseconds after which shard of other node is not merged anymore.
+	 */
+	public static final long DEFAULT_MAX_SHARD_AGE = TimeUnit.DAYS.toMillis(1);
+
+	/**
+	 * Marks shard with time of save, shards saved before it was introduced start with cookie of HdrHistogram.
+	 */
+	private static final int TIMESTAMPED = 0x4d524731;
+
+	private final String name;
+	private final MetricStore store;
+	private final String node;
+	private final int significantDigits;
+	private final long refreshInterval;
+	private final long maxShardAge;
+	private final Recorder recorder;
+	private final Histogram local;
+	private Histogram interval;
+	private Histogram others;
+	private long refreshedAt;
+	private boolean loaded;
+
+	public MergeableReservoir(String name, MetricStore store) {
+		this(name, store, PersistenceUtil.getNodeId(), DEFAULT_SIGNIFICANT_DIGITS, DEFAULT_REFRESH_INTERVAL);
+	}
+
+	/**
+	 * Creates reservoir and loads histograms saved by this and other nodes.
+	 *
+	 * @param name the name of the metric
+	 * @param store store to persist histogram in
+	 * @param node identifier of this node
+	 * @param significantDigits number of significant decimal digits, 0 to 5
+	 * @param refreshInterval interval in milliseconds between reads of other nodes histograms
+	 */
+	public MergeableReservoir(String name, MetricStore store, String node, int significantDigits, long refreshInterval) {
+		this(name, store, node, significantDigits, refreshInterval, DEFAULT_MAX_SHARD_AGE);
+	}
+
+	/**
+	 * Creates reservoir and loads histograms saved by this and other nodes.
+	 *
+	 * @param name the name of the metric
+	 * @param store store to persist histogram in
+	 * @param node identifier of this node
+	 * @param significantDigits number of significant decimal digits, 0 to 5
+	 * @param refreshInterval interval in milliseconds between reads of other nodes histograms
+	 * @param maxShardAge age in milliseconds after which histogram of other node is not merged
+	 */
+	public MergeableReservoir(String name, MetricStore store, String node, int significantDigits, long refreshInterval, long maxShardAge) {
+		this(name, store, node, significantDigits, refreshInterval, maxShardAge, false);
+	}
+
+	/**
+	 * Creates reservoir, which loads histograms on first snapshot or save if it is lazy.
+	 */
+	MergeableReservoir(String name, MetricStore store, String node, int significantDigits, long refreshInterval, long maxShardAge,
+			boolean lazy) {
+		this.name = name;
+		this.store = store;
+		this.node = node;
+		this.significantDigits = significantDigits;
+		this.refreshInterval = refreshInterval;
+		this.maxShardAge = maxShardAge;
+		recorder = new Recorder(significantDigits);
+		local = new Histogram(significantDigits);
+		others = new Histogram(significantDigits);
+		if (!lazy) {
+			loadOwn();
+		}
+	}
+
+	/**
+	 * Adds saved histogram of this node to local one, so it is not overwritten by next save.
+	 */
+	private synchronized void loadOwn() {
+		Histogram own = load(store.getShards(name, MetricStore.SKETCH));
+		if (own != null) {
+			local.add(own);
+		}
+		loaded = true;
+	}
+
+	/**
+	 * Merges histograms of other nodes, skipping stale ones.
+	 *
+	 * @return histogram of this node, if found
+	 */
+	private Histogram load(Map<String, byte[]> shards) {
+		Histogram merged = new Histogram(significantDigits);
+		Histogram own = null;
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, byte[]> e : shards.entrySet()) {
+			boolean isOwn = e.getKey().equals(node);
+			ByteBuffer buf = ByteBuffer.wrap(e.getValue());
+			// Shard without time is saved by older version, its age is unknown
+			if (buf.remaining() >= 12 && buf.getInt(0) == TIMESTAMPED) {
+				long savedAt = buf.getLong(4);
+				if (!isOwn && now - savedAt > maxShardAge) {
+					continue;
+				}
+				buf.position(12);
+			}
+			Histogram h;
+			try {
+				h = Histogram.decodeFromCompressedByteBuffer(buf, 0);
+			} catch (DataFormatException | RuntimeException ex) {
+				log.warn("Can't read histogram of node " + e.getKey() + " for " + name + ": " + ex.getMessage());
+				continue;
+			}
+			if (isOwn) {
+				own = h;
+			} else {
+				merged.add(h);
+			}
+		}
+		others = merged;
+		refreshedAt = System.currentTimeMillis();
+		return own;
+	}
+
+	/**
+	 * Moves values recorded since last call to histogram of this node.
+	 */
+	private void drain() {
+		interval = recorder.getIntervalHistogram(interval);
+		local.add(interval);
+	}
+
+	@Override
+	public void update(long value) {
+		recorder.recordValue(value < 0 ? 0 : value);
+	}
+
+	/**
+	 * @return number of values recorded by all nodes, as of last refresh
+	 */
+	@Override
+	public synchronized int size() {
+		drain();
+		return (int) Math.min(Integer.MAX_VALUE, others.getTotalCount() + local.getTotalCount());
+	}
+
+	/**
+	 * Returns snapshot of values recorded by all nodes.
+	 * Re-reads histograms of other nodes if they are older than refresh interval.
+	 */
+	@Override
+	public synchronized Snapshot getSnapshot() {
+		drain();
+		if (System.currentTimeMillis() - refreshedAt >= refreshInterval) {
+			try {
+				if (loaded) {
+					load(store.getShards(name, MetricStore.SKETCH));
+				} else {
+					loadOwn();
+				}
+			} catch (RuntimeException e) {
+				log.warn("Can't refresh histograms of other nodes for " + name + ": " + e.getMessage());
+				refreshedAt = System.currentTimeMillis();
+			}
+		}
+		Histogram merged = new Histogram(significantDigits);
+		merged.add(others);
+		merged.add(local);
+		return new HdrSnapshot(merged);
+	}
+
+	/**
+	 * Saves histogram of this node, compressed.
+	 */
+	@Override
+	public void save() {
+		store.putShard(name, MetricStore.SKETCH, node, encode());
+	}
+
+	/**
+	 * Saves histogram of this node without waiting for store.
+	 */
+	@Override
+	public CompletionStage<Void> saveAsync() {
+		return store.putShardAsync(name, MetricStore.SKETCH, node, encode());
+	}
+
+	/**
+	 * Encodes histogram of this node, compressed, after time of save.
+	 */
+	private synchronized byte[] encode() {
+		if (!loaded) {
+			loadOwn();
+		}
+		drain();
+		ByteBuffer buf = ByteBuffer.allocate(12 + local.getNeededByteBufferCapacity());
+		buf.putInt(TIMESTAMPED);
+		buf.putLong(System.currentTimeMillis());
+		int size = 12 + local.encodeIntoCompressedByteBuffer(buf);
+		byte[] data = new byte[size];
+		buf.position(0);
+		buf.get(data);
+		return data;
+	}
+
+	public String getNode() {
+		return node;
+	}
+}
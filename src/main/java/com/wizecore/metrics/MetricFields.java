@@ -0,0 +1,197 @@
+package com.wizecore.metrics;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import com.codahale.metrics.EWMA;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+import com.codahale.metrics.WeightedSnapshot;
+
+/**
+ * Reflective access to private state of Dropwizard metrics, used by {@link BinaryStateCodec}
+ * to read and restore only fields required to rebuild metric.
+ * If fields are not accessible (different metrics-core version, security manager),
+ * {@link #AVAILABLE} is false and codec falls back to XStream.
+ */
+final class MetricFields {
+	static final boolean AVAILABLE;
+
+	static Field METER_M1;
+	static Field METER_M5;
+	static Field METER_M15;
+	static Field METER_COUNT;
+	static Field METER_START_TIME;
+	static Field METER_LAST_TICK;
+	static Field METER_CLOCK;
+
+	static Field EWMA_INITIALIZED;
+	static Field EWMA_RATE;
+	static Field EWMA_UNCOUNTED;
+
+	static Field HISTOGRAM_RESERVOIR;
+	static Field HISTOGRAM_COUNT;
+
+	static Field TIMER_METER;
+	static Field TIMER_HISTOGRAM;
+
+	static Field EDR_VALUES;
+	static Field EDR_COUNT;
+	static Field EDR_START_TIME;
+	static Field EDR_NEXT_SCALE_TIME;
+	static Field EDR_CLOCK;
+
+	static Field UNIFORM_COUNT;
+	static Field UNIFORM_VALUES;
+
+	static Field SLIDING_MEASUREMENTS;
+	static Field SLIDING_COUNT;
+
+	static Field SNAPSHOT_NORM_WEIGHTS;
+
+	private static Method ADDER_SUM;
+	private static Method ADDER_ADD;
+
+	static {
+		boolean ok = false;
+		try {
+			METER_M1 = field(Meter.class, "m1Rate");
+			METER_M5 = field(Meter.class, "m5Rate");
+			METER_M15 = field(Meter.class, "m15Rate");
+			METER_COUNT = field(Meter.class, "count");
+			METER_START_TIME = field(Meter.class, "startTime");
+			METER_LAST_TICK = field(Meter.class, "lastTick");
+			METER_CLOCK = field(Meter.class, "clock");
+
+			EWMA_INITIALIZED = field(EWMA.class, "initialized");
+			EWMA_RATE = field(EWMA.class, "rate");
+			EWMA_UNCOUNTED = field(EWMA.class, "uncounted");
+
+			HISTOGRAM_RESERVOIR = field(Histogram.class, "reservoir");
+			HISTOGRAM_COUNT = field(Histogram.class, "count");
+
+			TIMER_METER = field(Timer.class, "meter");
+			TIMER_HISTOGRAM = field(Timer.class, "histogram");
+
+			EDR_VALUES = field(ExponentiallyDecayingReservoir.class, "values");
+			EDR_COUNT = field(ExponentiallyDecayingReservoir.class, "count");
+			EDR_START_TIME = field(ExponentiallyDecayingReservoir.class, "startTime");
+			EDR_NEXT_SCALE_TIME = field(ExponentiallyDecayingReservoir.class, "nextScaleTime");
+			EDR_CLOCK = field(ExponentiallyDecayingReservoir.class, "clock");
+
+			UNIFORM_COUNT = field(UniformReservoir.class, "count");
+			UNIFORM_VALUES = field(UniformReservoir.class, "values");
+
+			SLIDING_MEASUREMENTS = field(SlidingWindowReservoir.class, "measurements");
+			SLIDING_COUNT = field(SlidingWindowReservoir.class, "count");
+
+			SNAPSHOT_NORM_WEIGHTS = field(WeightedSnapshot.class, "normWeights");
+
+			Class<?> adder = Class.forName("com.codahale.metrics.LongAdderAdapter");
+			ADDER_SUM = method(adder, "sum");
+			ADDER_ADD = method(adder, "add", long.class);
+			ok = true;
+		} catch (Exception e) {
+			ok = false;
+		}
+		AVAILABLE = ok;
+	}
+
+	private MetricFields() {
+	}
+
+	private static Field field(Class<?> c, String name) throws NoSuchFieldException {
+		Field f = c.getDeclaredField(name);
+		f.setAccessible(true);
+		return f;
+	}
+
+	private static Method method(Class<?> c, String name, Class<?>... args) throws NoSuchMethodException {
+		Method m = c.getDeclaredMethod(name, args);
+		m.setAccessible(true);
+		return m;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T get(Field f, Object o) {
+		try {
+			return (T) f.get(o);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Can't read " + f, e);
+		}
+	}
+
+	static long getLong(Field f, Object o) {
+		try {
+			return f.getLong(o);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Can't read " + f, e);
+		}
+	}
+
+	static double getDouble(Field f, Object o) {
+		try {
+			return f.getDouble(o);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Can't read " + f, e);
+		}
+	}
+
+	static boolean getBoolean(Field f, Object o) {
+		try {
+			return f.getBoolean(o);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Can't read " + f, e);
+		}
+	}
+
+	static void setLong(Field f, Object o, long v) {
+		try {
+			f.setLong(o, v);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Can't write " + f, e);
+		}
+	}
+
+	static void setDouble(Field f, Object o, double v) {
+		try {
+			f.setDouble(o, v);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Can't write " + f, e);
+		}
+	}
+
+	static void setBoolean(Field f, Object o, boolean v) {
+		try {
+			f.setBoolean(o, v);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Can't write " + f, e);
+		}
+	}
+
+	/**
+	 * Sum of package private LongAdderAdapter stored in given field.
+	 */
+	static long sum(Field f, Object o) {
+		return (Long) invoke(ADDER_SUM, get(f, o));
+	}
+
+	/**
+	 * Adds to package private LongAdderAdapter stored in given field.
+	 */
+	static void add(Field f, Object o, long v) {
+		invoke(ADDER_ADD, get(f, o), v);
+	}
+
+	private static Object invoke(Method m, Object o, Object... args) {
+		try {
+			return m.invoke(o, args);
+		} catch (Exception e) {
+			throw new IllegalStateException("Can't call " + m, e);
+		}
+	}
+}
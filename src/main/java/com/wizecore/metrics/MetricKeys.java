@@ -0,0 +1,44 @@
+package com.wizecore.metrics;
+
+/**
+ * Names of keys under which stores keep metrics, <code>name.field</code> for exported values,
+ * and parsing of them back into metric name and field.
+ */
+final class MetricKeys {
+	static final String STATE_SUFFIX = "." + MetricStore.STATE;
+	static final String LEGACY_SUFFIX = ".xml";
+	static final String HASH_SUFFIX = ".hash";
+	static final String SHARED_SUFFIX = ".shared";
+	static final String OPS_SUFFIX = ".ops";
+
+	private MetricKeys() {
+	}
+
+	/**
+	 * Determines field of value from its key.
+	 *
+	 * @param key key without prefix
+	 * @return field or null if key is not an exported value (state, shards, time series)
+	 */
+	static String fieldOf(String key) {
+		if (key.endsWith(STATE_SUFFIX) || key.endsWith(LEGACY_SUFFIX) || key.endsWith(HASH_SUFFIX) || key.endsWith(SHARED_SUFFIX) || key.endsWith(OPS_SUFFIX)
+				|| key.endsWith("." + MetricStore.SKETCH) || key.contains("." + MetricStore.HISTORY + ".")) {
+			return null;
+		}
+		for (String field : MetricStore.FIELDS) {
+			if (field.length() > 0 && key.endsWith("." + field)) {
+				return field;
+			}
+		}
+		return MetricStore.VALUE;
+	}
+
+	/**
+	 * Name of metric whose exported value is stored under key.
+	 *
+	 * @param field field of value, see {@link #fieldOf(String)}
+	 */
+	static String nameOf(String key, String field) {
+		return field.length() == 0 ? key : key.substring(0, key.length() - field.length() - 1);
+	}
+}
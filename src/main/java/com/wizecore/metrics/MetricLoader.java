@@ -0,0 +1,109 @@
+package com.wizecore.metrics;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads persisted state of metrics in background threads, so thread creating metric doesn't wait for store.
+ * Until loaded, metric buffers updates and is not saved, so state it has never read never overwrites stored one.
+ * Failed loads are retried while loader is open, after {@link #MAX_ATTEMPTS} failures interval between retries
+ * is doubled up to {@link #MAX_RETRY_INTERVAL}.
+ */
+class MetricLoader implements Closeable {
+	private static Logger log = LoggerFactory.getLogger(MetricLoader.class);
+
+	/**
+	 * Default number of loading threads.
+	 */
+	static final int DEFAULT_THREADS = 4;
+
+	/**
+	 * Default interval in milliseconds between retries of failed load.
+	 */
+	static final long RETRY_INTERVAL = 1000;
+
+	/**
+	 * Maximum interval in milliseconds between retries once loader backs off.
+	 */
+	static final long MAX_RETRY_INTERVAL = 60000;
+
+	/**
+	 * Number of failed loads after which error is logged and retries back off.
+	 */
+	static final int MAX_ATTEMPTS = 30;
+
+	/**
+	 * Maximum number of histogram or timer values kept while metric is loading, more are sampled.
+	 */
+	static final int MAX_BUFFERED = 1028;
+
+	private final ScheduledExecutorService executor;
+	private volatile long retryInterval = RETRY_INTERVAL;
+
+	MetricLoader(int threads) {
+		executor = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "persistent-metrics-loader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @param retryInterval interval in milliseconds between retries of failed load
+	 */
+	void setRetryInterval(long retryInterval) {
+		this.retryInterval = retryInterval;
+	}
+
+	/**
+	 * Runs load of metric, retrying until it succeeds or loader is closed.
+	 *
+	 * @param name the name of the metric
+	 * @param load reads state from store and merges it into metric
+	 */
+	void submit(final String name, final Runnable load) {
+		Runnable task = new Runnable() {
+			private int attempts;
+			private long delay;
+
+			@Override
+			public void run() {
+				try {
+					load.run();
+				} catch (RuntimeException e) {
+					attempts++;
+					if (attempts < MAX_ATTEMPTS) {
+						delay = retryInterval;
+						log.warn("Failed to load metric " + name + ", will retry: " + e);
+					} else {
+						if (attempts == MAX_ATTEMPTS) {
+							log.error("Failed to load metric " + name + " " + attempts + " times, it is not saved until loaded, retrying less often: " + e);
+						}
+						delay = Math.min(delay * 2, Math.max(MAX_RETRY_INTERVAL, retryInterval));
+					}
+					try {
+						executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+					} catch (RejectedExecutionException closed) {
+						log.warn("Metric " + name + " was not loaded before close");
+					}
+				}
+			}
+		};
+		executor.execute(task);
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,243 @@
+package com.wizecore.metrics;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Storage backend for persistent metrics.
+ * Every metric has serialized state, used to restore it, and exported values (count, rates, snapshot),
+ * which are written for external readers and never read back by metric itself.
+ *
+ * @see RedisMetricStore
+ * @see LocalMetricStore
+ */
+public interface MetricStore {
+	/**
+	 * Field of serialized metric state.
+	 */
+	String STATE = "state";
+
+	/**
+	 * Field of metric own value, e.g. counter count. Stored under metric name itself.
+	 */
+	String VALUE = "";
+
+	String COUNT = "count";
+	String MEAN_RATE = "meanRate";
+	String M1_RATE = "m1Rate";
+	String M5_RATE = "m5Rate";
+	String M15_RATE = "m15Rate";
+	String SNAPSHOT = "snapshot";
+	String GAUGE = "gauge";
+	String SKETCH = "sketch";
+
+	/**
+	 * Prefix of time series names, see {@link HistoryRecorder}.
+	 */
+	String HISTORY = "history";
+
+	/**
+	 * All fields of metric, except state.
+	 */
+	List<String> FIELDS = Collections.unmodifiableList(Arrays.asList(VALUE, COUNT, MEAN_RATE, M1_RATE, M5_RATE, M15_RATE, SNAPSHOT, GAUGE, SKETCH));
+
+	/**
+	 * Codec used by metrics to serialize state for this store.
+	 */
+	StateCodec getCodec();
+
+	/**
+	 * Reads serialized state of metric.
+	 *
+	 * @return state or null if metric was never saved
+	 */
+	byte[] getState(String name);
+
+	/**
+	 * Reads serialized state of all metrics in this store.
+	 *
+	 * @param batchSize hint for number of metrics fetched per round trip
+	 * @return metric name to state
+	 */
+	Map<String, byte[]> getAllStates(int batchSize);
+
+	/**
+	 * Reads serialized state of metrics with names starting with given prefix.
+	 * Stores should enumerate only matching metrics.
+	 *
+	 * @param namePrefix start of metric names
+	 * @param batchSize hint for number of metrics fetched per round trip
+	 * @return metric name, including prefix, to state
+	 */
+	default Map<String, byte[]> getAllStates(String namePrefix, int batchSize) {
+		Map<String, byte[]> states = new HashMap<String, byte[]>();
+		for (Map.Entry<String, byte[]> e : getAllStates(batchSize).entrySet()) {
+			if (e.getKey().startsWith(namePrefix)) {
+				states.put(e.getKey(), e.getValue());
+			}
+		}
+		return states;
+	}
+
+	/**
+	 * Saves state and exported values of metric at once.
+	 *
+	 * @param name the name of the metric
+	 * @param state serialized state
+	 * @param values exported values by field, {@link Long}, {@link Double}, <code>byte[]</code> or any other serializable object
+	 */
+	void save(String name, byte[] state, Map<String, Object> values);
+
+	/**
+	 * Saves state and exported values without waiting for store. By default saves synchronously.
+	 *
+	 * @return stage completed when values are saved
+	 * @see #save(String, byte[], Map)
+	 */
+	default CompletionStage<Void> saveAsync(String name, byte[] state, Map<String, Object> values) {
+		return Futures.run(() -> save(name, state, values));
+	}
+
+	/**
+	 * Atomically adds delta to integer value. Missing value is treated as 0.
+	 *
+	 * @return new value
+	 */
+	long addAndGet(String name, String field, long delta);
+
+	/**
+	 * Atomically adds delta to integer value at most once per operation. If called again with the same writer and operation id,
+	 * e.g. retried after timeout when it is unknown whether delta was added, returns current value without adding delta again.
+	 * Only last operation of each writer is remembered. By default adds with {@link #addAndGet(String, String, long)},
+	 * which is enough for stores whose failed add is never applied.
+	 *
+	 * @param writer stable identifier of writer, e.g. node, so store keeps bounded number of writers per metric;
+	 *        writer makes one operation at a time
+	 * @param id identifier of operation, unique for writer
+	 * @return new value
+	 */
+	default long addAndGetOnce(String name, String field, long delta, String writer, String id) {
+		return addAndGet(name, field, delta);
+	}
+
+	/**
+	 * Atomically adds marks to meter shared by all nodes and advances its rates by time of store,
+	 * see {@link SharedMeter}. Count and rates are saved as exported values of metric.
+	 * Like {@link #addAndGetOnce(String, String, long, String, String)}, marks are added at most once per operation,
+	 * if called again with the same writer and operation id only rates are advanced.
+	 *
+	 * @param n number of marks, 0 to only advance rates
+	 * @param writer stable identifier of writer, e.g. node
+	 * @param id identifier of operation, unique for writer
+	 * @return new values: count, mean rate and 1, 5 and 15 minute rates per second
+	 * @throws UnsupportedOperationException if store doesn't support shared meters
+	 */
+	default Map<String, Object> markShared(String name, long n, String writer, String id) {
+		throw new UnsupportedOperationException("Shared meters are not supported by " + getClass().getName());
+	}
+
+	/**
+	 * Sets single exported value.
+	 */
+	void setValue(String name, String field, Object value);
+
+	/**
+	 * Sets single exported value without waiting for store. By default sets synchronously.
+	 *
+	 * @return stage completed when value is saved
+	 */
+	default CompletionStage<Void> setValueAsync(String name, String field, Object value) {
+		return Futures.run(() -> setValue(name, field, value));
+	}
+
+	/**
+	 * Saves part of value owned by single node. Each node overwrites only its own part,
+	 * so parts written by different nodes never conflict.
+	 *
+	 * @param node node identifier, see {@link PersistenceUtil#getNodeId()}
+	 */
+	void putShard(String name, String field, String node, byte[] data);
+
+	/**
+	 * Saves part of value owned by single node without waiting for store. By default saves synchronously.
+	 *
+	 * @return stage completed when value is saved
+	 */
+	default CompletionStage<Void> putShardAsync(String name, String field, String node, byte[] data) {
+		return Futures.run(() -> putShard(name, field, node, data));
+	}
+
+	/**
+	 * Reads parts of value saved by all nodes.
+	 *
+	 * @return node identifier to data, empty if nothing was saved
+	 */
+	Map<String, byte[]> getShards(String name, String field);
+
+	/**
+	 * Reads exported values of all metrics in this store.
+	 * Integers are returned as {@link Long}, rates as {@link Double}, snapshots as <code>byte[]</code>.
+	 *
+	 * @param batchSize hint for number of values fetched per round trip
+	 * @return metric name to values by field
+	 */
+	Map<String, Map<String, Object>> getAllValues(int batchSize);
+
+	/**
+	 * Adds point to time series of metric and removes points older than retention.
+	 *
+	 * @param series name of series, e.g. its resolution
+	 * @param time time of point in milliseconds
+	 * @param point encoded point
+	 * @param retention how long points are kept, in milliseconds
+	 * @see HistoryRecorder
+	 */
+	void addPoint(String name, String series, long time, String point, long retention);
+
+	/**
+	 * Reads points of time series.
+	 *
+	 * @param from start time in milliseconds, inclusive
+	 * @param to end time in milliseconds, inclusive
+	 * @return points ordered by time
+	 */
+	List<String> getPoints(String name, String series, long from, long to);
+
+	/**
+	 * Adds points of many metrics with the same time to time series, see {@link #addPoint(String, String, long, String, long)}.
+	 * Stores should write them in one round trip.
+	 *
+	 * @param points encoded point by metric name
+	 */
+	default void addPoints(String series, long time, Map<String, String> points, long retention) {
+		for (Map.Entry<String, String> e : points.entrySet()) {
+			addPoint(e.getKey(), series, time, e.getValue(), retention);
+		}
+	}
+
+	/**
+	 * Reads points of time series of many metrics, see {@link #getPoints(String, String, long, long)}.
+	 * Stores should read them in one round trip.
+	 *
+	 * @return points ordered by time, by metric name
+	 */
+	default Map<String, List<String>> getPoints(Collection<String> names, String series, long from, long to) {
+		Map<String, List<String>> points = new HashMap<String, List<String>>();
+		for (String name : names) {
+			points.put(name, getPoints(name, series, from, to));
+		}
+		return points;
+	}
+
+	/**
+	 * Deletes state and all values of metrics.
+	 *
+	 * @param names names of metrics
+	 */
+	void delete(Collection<String> names);
+}
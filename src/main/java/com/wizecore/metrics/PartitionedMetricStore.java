@@ -0,0 +1,301 @@
+package com.wizecore.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionStage;
+
+import com.codahale.metrics.UniformSnapshot;
+
+/**
+ * Store which keeps metrics of every node under its own key segment, <code>node:&lt;node&gt;/&lt;name&gt;</code>,
+ * so nodes sharing metric names never overwrite each other and save without contention.
+ * <p>
+ * Node reads and writes only its own metrics, so it restores what it has saved itself.
+ * {@link #getAllValues(int)} returns values of all nodes aggregated by metric name: counts, values and rates are summed,
+ * snapshots are merged, gauge is taken from one of nodes. Values are read from underlying store in one pipelined pass,
+ * so {@link ClusterMetricRegistry} on top of this store reports the whole cluster. Values saved under plain names,
+ * e.g. before partitioning was enabled, are added to aggregates too. Once metric has values saved by nodes,
+ * only count and value saved under plain name are added, its rates, snapshot and gauge are stale.
+ * </p>
+ * Shards are already owned by nodes and are stored under plain metric name.
+ */
+public class PartitionedMetricStore implements MetricStore {
+	/**
+	 * Start of node segment in names of underlying store.
+	 */
+	public static final String NODE_PREFIX = "node:";
+
+	private static final String SEPARATOR = "/";
+
+	/**
+	 * Fields summed across nodes.
+	 */
+	private static final List<String> SUMMED = Arrays.asList(VALUE, COUNT, MEAN_RATE, M1_RATE, M5_RATE, M15_RATE);
+
+	/**
+	 * Fields saved under plain name which are still added once nodes save metric.
+	 */
+	private static final List<String> TOTALS = Arrays.asList(VALUE, COUNT);
+
+	private final MetricStore store;
+	private final String node;
+	private final String partition;
+
+	/**
+	 * Creates store for this node, see {@link PersistenceUtil#getNodeId()}.
+	 */
+	public PartitionedMetricStore(MetricStore store) {
+		this(store, PersistenceUtil.getNodeId());
+	}
+
+	/**
+	 * Creates store for given node.
+	 *
+	 * @param store underlying store
+	 * @param node node identifier, slashes are replaced
+	 */
+	public PartitionedMetricStore(MetricStore store, String node) {
+		this.store = store;
+		this.node = node.replace(SEPARATOR, "_");
+		this.partition = NODE_PREFIX + this.node + SEPARATOR;
+	}
+
+	/**
+	 * @return underlying store
+	 */
+	public MetricStore getStore() {
+		return store;
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	/**
+	 * Name of metric of this node in underlying store.
+	 */
+	private String local(String name) {
+		return partition + name;
+	}
+
+	@Override
+	public StateCodec getCodec() {
+		return store.getCodec();
+	}
+
+	@Override
+	public byte[] getState(String name) {
+		return store.getState(local(name));
+	}
+
+	/**
+	 * Reads states of metrics of this node only, other nodes are not enumerated.
+	 */
+	@Override
+	public Map<String, byte[]> getAllStates(int batchSize) {
+		Map<String, byte[]> states = new HashMap<String, byte[]>();
+		for (Map.Entry<String, byte[]> e : store.getAllStates(partition, batchSize).entrySet()) {
+			states.put(e.getKey().substring(partition.length()), e.getValue());
+		}
+		return states;
+	}
+
+	@Override
+	public Map<String, byte[]> getAllStates(String namePrefix, int batchSize) {
+		Map<String, byte[]> states = new HashMap<String, byte[]>();
+		for (Map.Entry<String, byte[]> e : store.getAllStates(partition + namePrefix, batchSize).entrySet()) {
+			states.put(e.getKey().substring(partition.length()), e.getValue());
+		}
+		return states;
+	}
+
+	@Override
+	public void save(String name, byte[] state, Map<String, Object> values) {
+		store.save(local(name), state, values);
+	}
+
+	@Override
+	public CompletionStage<Void> saveAsync(String name, byte[] state, Map<String, Object> values) {
+		return store.saveAsync(local(name), state, values);
+	}
+
+	@Override
+	public long addAndGet(String name, String field, long delta) {
+		return store.addAndGet(local(name), field, delta);
+	}
+
+	@Override
+	public long addAndGetOnce(String name, String field, long delta, String writer, String id) {
+		return store.addAndGetOnce(local(name), field, delta, writer, id);
+	}
+
+	/**
+	 * Shared meter is the same for all nodes, so it is kept under plain name.
+	 */
+	@Override
+	public Map<String, Object> markShared(String name, long n, String writer, String id) {
+		return store.markShared(name, n, writer, id);
+	}
+
+	@Override
+	public void setValue(String name, String field, Object value) {
+		store.setValue(local(name), field, value);
+	}
+
+	@Override
+	public CompletionStage<Void> setValueAsync(String name, String field, Object value) {
+		return store.setValueAsync(local(name), field, value);
+	}
+
+	@Override
+	public void putShard(String name, String field, String node, byte[] data) {
+		store.putShard(name, field, node, data);
+	}
+
+	@Override
+	public CompletionStage<Void> putShardAsync(String name, String field, String node, byte[] data) {
+		return store.putShardAsync(name, field, node, data);
+	}
+
+	@Override
+	public Map<String, byte[]> getShards(String name, String field) {
+		return store.getShards(name, field);
+	}
+
+	/**
+	 * Reads values of all nodes, aggregated by metric name.
+	 */
+	@Override
+	public Map<String, Map<String, Object>> getAllValues(int batchSize) {
+		Map<String, Map<String, Object>> all = new HashMap<String, Map<String, Object>>();
+		for (Map.Entry<String, Map<String, Map<String, Object>>> e : getNodeValues(batchSize).entrySet()) {
+			all.put(e.getKey(), aggregate(e.getValue()));
+		}
+		return all;
+	}
+
+	/**
+	 * Reads values of all nodes, not aggregated.
+	 *
+	 * @param batchSize hint for number of values fetched per round trip
+	 * @return metric name to node to values by field, values saved under plain name have empty node
+	 */
+	public Map<String, Map<String, Map<String, Object>>> getNodeValues(int batchSize) {
+		Map<String, Map<String, Map<String, Object>>> all = new HashMap<String, Map<String, Map<String, Object>>>();
+		for (Map.Entry<String, Map<String, Object>> e : store.getAllValues(batchSize).entrySet()) {
+			String key = e.getKey();
+			String name = key;
+			String owner = "";
+			if (key.startsWith(NODE_PREFIX)) {
+				int i = key.indexOf(SEPARATOR, NODE_PREFIX.length());
+				if (i > 0) {
+					owner = key.substring(NODE_PREFIX.length(), i);
+					name = key.substring(i + SEPARATOR.length());
+				}
+			}
+			Map<String, Map<String, Object>> nodes = all.get(name);
+			if (nodes == null) {
+				nodes = new TreeMap<String, Map<String, Object>>();
+				all.put(name, nodes);
+			}
+			nodes.put(owner, e.getValue());
+		}
+		return all;
+	}
+
+	/**
+	 * Sums counts and rates, merges snapshot values and takes gauge of first node.
+	 * If nodes saved metric, only totals saved under plain name are added.
+	 */
+	private Map<String, Object> aggregate(Map<String, Map<String, Object>> nodes) {
+		if (nodes.size() == 1) {
+			return nodes.values().iterator().next();
+		}
+		Map<String, Object> values = new HashMap<String, Object>();
+		List<long[]> snapshots = new ArrayList<long[]>();
+		int size = 0;
+		for (Map.Entry<String, Map<String, Object>> n : nodes.entrySet()) {
+			boolean plain = n.getKey().isEmpty();
+			for (Map.Entry<String, Object> e : n.getValue().entrySet()) {
+				String field = e.getKey();
+				if (plain && !TOTALS.contains(field)) {
+					continue;
+				}
+				Object value = e.getValue();
+				Object current = values.get(field);
+				if (SUMMED.contains(field) && value instanceof Number) {
+					if (value instanceof Long || value instanceof Integer) {
+						values.put(field, (current instanceof Number ? ((Number) current).longValue() : 0) + ((Number) value).longValue());
+					} else {
+						values.put(field, (current instanceof Number ? ((Number) current).doubleValue() : 0) + ((Number) value).doubleValue());
+					}
+				} else if (field.equals(SNAPSHOT) && value instanceof byte[]) {
+					long[] sample = getCodec().decodeSnapshot((byte[]) value).getValues();
+					snapshots.add(sample);
+					size += sample.length;
+				} else if (current == null) {
+					values.put(field, value);
+				}
+			}
+		}
+		if (!snapshots.isEmpty()) {
+			long[] merged = new long[size];
+			int n = 0;
+			for (long[] sample : snapshots) {
+				System.arraycopy(sample, 0, merged, n, sample.length);
+				n += sample.length;
+			}
+			values.put(SNAPSHOT, getCodec().encodeSnapshot(new UniformSnapshot(merged)));
+		}
+		return values;
+	}
+
+	@Override
+	public void addPoint(String name, String series, long time, String point, long retention) {
+		store.addPoint(local(name), series, time, point, retention);
+	}
+
+	@Override
+	public List<String> getPoints(String name, String series, long from, long to) {
+		return store.getPoints(local(name), series, from, to);
+	}
+
+	@Override
+	public void addPoints(String series, long time, Map<String, String> points, long retention) {
+		Map<String, String> local = new HashMap<String, String>();
+		for (Map.Entry<String, String> e : points.entrySet()) {
+			local.put(local(e.getKey()), e.getValue());
+		}
+		store.addPoints(series, time, local, retention);
+	}
+
+	@Override
+	public Map<String, List<String>> getPoints(Collection<String> names, String series, long from, long to) {
+		List<String> local = new ArrayList<String>();
+		for (String name : names) {
+			local.add(local(name));
+		}
+		Map<String, List<String>> points = new HashMap<String, List<String>>();
+		for (Map.Entry<String, List<String>> e : store.getPoints(local, series, from, to).entrySet()) {
+			points.put(e.getKey().substring(partition.length()), e.getValue());
+		}
+		return points;
+	}
+
+	/**
+	 * Deletes metrics of this node only.
+	 */
+	@Override
+	public void delete(Collection<String> names) {
+		List<String> local = new ArrayList<String>();
+		for (String name : names) {
+			local.add(local(name));
+		}
+		store.delete(local);
+	}
+}
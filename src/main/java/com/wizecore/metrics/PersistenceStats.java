@@ -0,0 +1,205 @@
+package com.wizecore.metrics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.SlidingTimeWindowReservoir;
+import com.codahale.metrics.Timer;
+
+/**
+ * Metrics of persistence layer itself: serialization and save latency, bytes written per metric type,
+ * flush batch sizes, queue depth, dropped writes, hydration time and store errors.
+ * All metrics are plain in-memory ones and are never persisted, names are relative to {@link #PREFIX}.
+ */
+public class PersistenceStats implements MetricSet {
+	/**
+	 * Reserved prefix of persistence metrics in registry.
+	 */
+	public static final String PREFIX = "persistent-metrics";
+
+	private final Timer serialize = new Timer();
+	private final Timer save = new Timer();
+	private final Timer hydrate = new Timer();
+	private final Histogram flushBatch = new Histogram(new SlidingTimeWindowReservoir(5, TimeUnit.MINUTES));
+	private final Counter errors = new Counter();
+	private final Map<String, Metric> metrics = new HashMap<String, Metric>();
+	private final Map<String, Histogram> bytes = new HashMap<String, Histogram>();
+
+	public PersistenceStats() {
+		metrics.put("serialize", serialize);
+		metrics.put("save", save);
+		metrics.put("hydrate", hydrate);
+		metrics.put("flush.batch", flushBatch);
+		metrics.put("errors", errors);
+		for (String type : new String[] { "counter", "meter", "histogram", "timer", "snapshot", "other" }) {
+			Histogram h = new Histogram(new SlidingTimeWindowReservoir(5, TimeUnit.MINUTES));
+			bytes.put(type, h);
+			metrics.put("bytes." + type, h);
+		}
+	}
+
+	/**
+	 * Adds gauges of queue depth and dropped writes of stores in chain,
+	 * walking through partitioned, instrumented, asynchronous and journaling stores.
+	 * If chain has several stores of the same kind, gauges of outer one are added.
+	 */
+	void watch(MetricStore store) {
+		while (store != null) {
+			if (store instanceof AsyncMetricStore) {
+				watch((AsyncMetricStore) store);
+				store = ((AsyncMetricStore) store).getStore();
+			} else if (store instanceof JournalingMetricStore) {
+				watch((JournalingMetricStore) store);
+				store = ((JournalingMetricStore) store).getStore();
+			} else if (store instanceof PartitionedMetricStore) {
+				store = ((PartitionedMetricStore) store).getStore();
+			} else if (store instanceof InstrumentedMetricStore) {
+				store = ((InstrumentedMetricStore) store).getStore();
+			} else {
+				store = null;
+			}
+		}
+	}
+
+	private void watch(final AsyncMetricStore async) {
+		if (metrics.containsKey("async.inFlight")) {
+			return;
+		}
+		metrics.put("async.inFlight", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return async.getInFlight();
+			}
+		});
+		metrics.put("async.queued", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return async.getQueued();
+			}
+		});
+		metrics.put("async.dropped", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return async.getDropped();
+			}
+		});
+	}
+
+	private void watch(final JournalingMetricStore journal) {
+		if (metrics.containsKey("journal.available")) {
+			return;
+		}
+		metrics.put("journal.available", new Gauge<Boolean>() {
+			@Override
+			public Boolean getValue() {
+				return journal.isAvailable();
+			}
+		});
+	}
+
+	/**
+	 * Adds gauges of number of metrics waiting for flush and of update capture, if any.
+	 */
+	void watch(final WriteBehindFlusher flusher) {
+		metrics.put("flush.queue", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return flusher.getDirtyCount();
+			}
+		});
+		final UpdateCapture capture = flusher.getCapture();
+		if (capture != null) {
+			metrics.put("capture.pending", new Gauge<Integer>() {
+				@Override
+				public Integer getValue() {
+					return capture.getPending();
+				}
+			});
+			metrics.put("capture.overflows", new Gauge<Long>() {
+				@Override
+				public Long getValue() {
+					return capture.getOverflows();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Records serialization of state.
+	 *
+	 * @param type metric type, e.g. <code>counter</code>
+	 */
+	void serialized(String type, long nanos, int size) {
+		serialize.update(nanos, TimeUnit.NANOSECONDS);
+		Histogram h = bytes.get(type);
+		(h != null ? h : bytes.get("other")).update(size);
+	}
+
+	/**
+	 * Records write to store.
+	 */
+	void saved(long nanos) {
+		save.update(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	void flushed(int count) {
+		flushBatch.update(count);
+	}
+
+	void hydrated(long millis) {
+		hydrate.update(millis, TimeUnit.MILLISECONDS);
+	}
+
+	void failed() {
+		errors.inc();
+	}
+
+	/**
+	 * Time spent encoding metric state.
+	 */
+	public Timer getSerialize() {
+		return serialize;
+	}
+
+	/**
+	 * Time spent writing to store, excluding serialization.
+	 */
+	public Timer getSave() {
+		return save;
+	}
+
+	public Timer getHydrate() {
+		return hydrate;
+	}
+
+	public Histogram getFlushBatch() {
+		return flushBatch;
+	}
+
+	/**
+	 * Number of failed store operations.
+	 */
+	public Counter getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Size of serialized state by metric type: <code>counter</code>, <code>meter</code>, <code>histogram</code>,
+	 * <code>timer</code>, <code>snapshot</code> or <code>other</code>.
+	 */
+	public Histogram getBytes(String type) {
+		return bytes.get(type);
+	}
+
+	@Override
+	public Map<String, Metric> getMetrics() {
+		return Collections.unmodifiableMap(metrics);
+	}
+}
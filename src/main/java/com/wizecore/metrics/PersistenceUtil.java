@@ -2,6 +2,8 @@ package com.wizecore.metrics;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
 
 import org.redisson.Redisson;
 import org.redisson.api.RAtomicDouble;
@@ -51,6 +53,54 @@ public class PersistenceUtil {
 	 */
 	private static String metricPrefix = null;
 	
+	/**
+	 * Codec for metric state. Can be specified in environment variable METRIC_CODEC,
+	 * <code>binary</code> (default, see {@link BinaryStateCodec}) or <code>xstream</code> (see {@link XStreamStateCodec}).
+	 */
+	private static StateCodec stateCodec = null;
+	
+	/**
+	 * Identifier of this node, used to keep parts of metric owned by this node separate from other nodes.
+	 * Can be specified in environment variable METRIC_NODE, by default host name.
+	 * Must be unique if several JVMs run on the same host.
+	 */
+	private static String nodeId = null;
+	
+	/**
+	 * Layout of values in Redis. Can be specified in environment variable METRIC_LAYOUT,
+	 * <code>keys</code> (default) or <code>hash</code>, see {@link RedisMetricStore.Layout}.
+	 */
+	private static RedisMetricStore.Layout layout = null;
+	
+	/**
+	 * Retention of metrics in Redis, in seconds. Can be specified in environment variable METRIC_RETENTION.
+	 * If positive, values of metric expire if it was not saved for this time. By default values never expire.
+	 */
+	private static Long retention = null;
+	
+	/**
+	 * Optional journal directory. Use METRIC_JOURNAL environment variable to set.
+	 * If set, default store writes to local journal when Redis is not available, see {@link JournalingMetricStore}.
+	 */
+	private static String journalDir = null;
+	
+	/**
+	 * Optional file of local store. Use METRIC_FILE environment variable to set.
+	 * If set, default store keeps metrics in this memory-mapped file instead of Redis, see {@link MappedMetricStore}.
+	 */
+	private static String storeFile = null;
+	
+	/**
+	 * Whether every node saves metrics under its own key segment. Can be specified in environment variable METRIC_PARTITIONED,
+	 * <code>true</code> or <code>false</code> (default), see {@link PartitionedMetricStore}.
+	 */
+	private static Boolean partitioned = null;
+	
+	/**
+	 * Default store.
+	 */
+	private static MetricStore store = null;
+	
 	/**
 	 * Makes lazy initialization of redis client.
 	 */
@@ -157,6 +207,62 @@ public class PersistenceUtil {
 		init();
 		return redis.getBucket(metricPrefix + name);
 	}
+	
+	/**
+	 * Shared Redis client, initialized on first call.
+	 */
+	public static RedissonClient getRedis() {
+		init();
+		return redis;
+	}
+	
+	/**
+	 * Default store, used by metrics and registries created without explicit store.
+	 * By default it is {@link RedisMetricStore} using shared Redis client,
+	 * wrapped in {@link JournalingMetricStore} if journal directory is configured,
+	 * or {@link MappedMetricStore} if store file is configured.
+	 */
+	public static synchronized MetricStore getStore() {
+		if (store == null) {
+			if (storeFile == null) {
+				storeFile = System.getenv("METRIC_FILE");
+			}
+			if (journalDir == null) {
+				journalDir = System.getenv("METRIC_JOURNAL");
+			}
+			if (storeFile != null && !storeFile.equals("")) {
+				store = new MappedMetricStore(new File(storeFile));
+			} else if (journalDir != null && !journalDir.equals("")) {
+				store = new JournalingMetricStore(new RedisMetricStore(), new File(journalDir));
+			} else {
+				store = new RedisMetricStore();
+			}
+			if (isPartitioned()) {
+				store = new PartitionedMetricStore(store);
+			}
+		}
+		return store;
+	}
+	
+	public static synchronized void setStore(MetricStore store) {
+		PersistenceUtil.store = store;
+	}
+
+	public static String getStoreFile() {
+		return storeFile;
+	}
+
+	public static void setStoreFile(String storeFile) {
+		PersistenceUtil.storeFile = storeFile;
+	}
+
+	public static String getJournalDir() {
+		return journalDir;
+	}
+
+	public static void setJournalDir(String journalDir) {
+		PersistenceUtil.journalDir = journalDir;
+	}
 
 	public static String getRedisConfig() {
 		return redisConfig;
@@ -182,6 +288,22 @@ public class PersistenceUtil {
 		PersistenceUtil.metricPrefix = metricPrefix;
 	}
 
+	public static StateCodec getStateCodec() {
+		if (stateCodec == null) {
+			String codec = System.getenv("METRIC_CODEC");
+			if (codec != null && codec.equalsIgnoreCase("xstream")) {
+				stateCodec = new XStreamStateCodec();
+			} else {
+				stateCodec = new BinaryStateCodec();
+			}
+		}
+		return stateCodec;
+	}
+
+	public static void setStateCodec(StateCodec stateCodec) {
+		PersistenceUtil.stateCodec = stateCodec;
+	}
+
 	public static String getRedisPassword() {
 		return redisPassword;
 	}
@@ -189,4 +311,68 @@ public class PersistenceUtil {
 	public static void setRedisPassword(String redisPassword) {
 		PersistenceUtil.redisPassword = redisPassword;
 	}
+
+	public static synchronized String getNodeId() {
+		if (nodeId == null) {
+			nodeId = System.getenv("METRIC_NODE");
+			if (nodeId == null) {
+				try {
+					nodeId = InetAddress.getLocalHost().getHostName();
+				} catch (IOException e) {
+					nodeId = ManagementFactory.getRuntimeMXBean().getName();
+				}
+			}
+		}
+		return nodeId;
+	}
+
+	public static synchronized void setNodeId(String nodeId) {
+		PersistenceUtil.nodeId = nodeId;
+	}
+
+	public static synchronized RedisMetricStore.Layout getLayout() {
+		if (layout == null) {
+			String s = System.getenv("METRIC_LAYOUT");
+			layout = s != null && s.equalsIgnoreCase("hash") ? RedisMetricStore.Layout.HASH : RedisMetricStore.Layout.KEYS;
+		}
+		return layout;
+	}
+
+	public static synchronized void setLayout(RedisMetricStore.Layout layout) {
+		PersistenceUtil.layout = layout;
+	}
+
+	public static synchronized boolean isPartitioned() {
+		if (partitioned == null) {
+			partitioned = Boolean.valueOf(System.getenv("METRIC_PARTITIONED"));
+		}
+		return partitioned;
+	}
+
+	public static synchronized void setPartitioned(boolean partitioned) {
+		PersistenceUtil.partitioned = partitioned;
+	}
+
+	public static synchronized long getRetention() {
+		if (retention == null) {
+			String s = System.getenv("METRIC_RETENTION");
+			retention = 0L;
+			if (s != null && !s.trim().equals("")) {
+				try {
+					retention = Long.parseLong(s.trim());
+				} catch (NumberFormatException e) {
+					log.warn("Invalid METRIC_RETENTION " + s + ", metrics are kept forever: " + e);
+				}
+				if (retention < 0) {
+					log.warn("Negative METRIC_RETENTION " + s + ", metrics are kept forever");
+					retention = 0L;
+				}
+			}
+		}
+		return retention;
+	}
+
+	public static synchronized void setRetention(long retention) {
+		PersistenceUtil.retention = retention;
+	}
 }
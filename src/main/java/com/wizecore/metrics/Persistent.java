@@ -1,9 +1,20 @@
 package com.wizecore.metrics;
 
+import java.util.concurrent.CompletionStage;
+
 /**
  * Mark interface as persistent.
  */
 public interface Persistent {
 
 	void save();
+
+	/**
+	 * Saves without waiting for store, if store supports it. By default saves synchronously.
+	 *
+	 * @return stage completed when value is saved
+	 */
+	default CompletionStage<Void> saveAsync() {
+		return Futures.run(this::save);
+	}
 }
@@ -1,36 +1,148 @@
 package com.wizecore.metrics;
 
-import org.redisson.api.RAtomicLong;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import com.codahale.metrics.Counter;
-import com.thoughtworks.xstream.XStream;
 
 /**
- * A persistent wrapper around {@link Counter} instance.
+ * A persistent {@link Counter}. Count is kept by counter itself, without wrapped instance.
  */
-public class PersistentCounter extends Counter implements Persistent {
-    private Counter value;
-    private RAtomicLong counter;
-    private String key;
+public class PersistentCounter extends Counter implements Persistent, UpdateCapture.Target {
+    private String name;
+    private MetricStore store;
+    private WriteBehindFlusher flusher;
+    private volatile boolean loading;
+    private long pending;
 
     public PersistentCounter(String name) {
-    	XStream x = new XStream();
-    	key = name + ".xml";
-		String xml = PersistenceUtil.getValue(key);
-		counter = PersistenceUtil.createAtomicLong(name);
-    	if (xml != null) {
-    		value = (Counter) x.fromXML(xml);
+    	this(name, PersistenceUtil.getStore(), null);
+    }
+
+    /**
+     * Creates counter.
+     *
+     * @param name the name of the metric
+     * @param store store to persist metric in
+     * @param flusher write-behind flusher, if null every update is saved immediately
+     */
+    public PersistentCounter(String name, MetricStore store, WriteBehindFlusher flusher) {
+    	this(name, store, flusher, store.getState(name));
+    }
+
+    /**
+     * Creates counter.
+     *
+     * @param name the name of the metric
+     * @param store store to persist metric in
+     * @param flusher write-behind flusher, if null every update is saved immediately
+     * @param state persisted state, as returned by {@link MetricStore#getState(String)}, or null if metric is new
+     */
+    public PersistentCounter(String name, MetricStore store, WriteBehindFlusher flusher, byte[] state) {
+    	this.name = name;
+    	this.store = store;
+    	this.flusher = flusher;
+    	if (state != null) {
+    		restore(state);
+    	} else {
+        	changed();
+    	}
+    }
+    
+    /**
+     * Creates counter which is usable immediately, while its state is loaded by loader.
+     * Until loaded, counter is not saved and counts only local updates, which are added to loaded count.
+     */
+    PersistentCounter(String name, MetricStore store, WriteBehindFlusher flusher, MetricLoader loader) {
+    	this.name = name;
+    	this.store = store;
+    	this.flusher = flusher;
+    	loading = true;
+    	loader.submit(name, new Runnable() {
+    		@Override
+    		public void run() {
+    			load(PersistentCounter.this.store.getState(PersistentCounter.this.name));
+    		}
+    	});
+    }
+
+    private synchronized void load(byte[] state) {
+    	if (state != null) {
+    		restore(state);
+    	}
+    	super.inc(pending);
+    	pending = 0;
+    	loading = false;
+    	changed();
+    }
+
+    private void restore(byte[] state) {
+    	super.inc(((Counter) store.getCodec().decode(state, new Counter())).getCount());
+    }
+
+    /**
+     * Keeps update until counter is loaded.
+     *
+     * @return false if counter is already loaded
+     */
+    private synchronized boolean buffer(long n) {
+    	if (loading) {
+    		pending += n;
+    		return true;
+    	}
+    	return false;
+    }
+
+    /**
+     * Saves value immediately, or marks it for background save in write-behind mode.
+     */
+    protected void changed() {
+    	if (loading) {
+    		return;
+    	}
+    	if (flusher != null) {
+    		flusher.markDirty(this);
     	} else {
-    		value = new Counter();
-        	save();
+    		save();
     	}
     }
     
+    /**
+     * Saves state and exported count at once.
+     */
     public void save() {
-    	XStream x = new XStream();
-    	String xml = x.toXML(value);
-    	PersistenceUtil.setValue(key, xml);
-    	counter.set(getCount());
+    	if (loading) {
+    		return;
+    	}
+    	long started = System.nanoTime();
+    	byte[] state = store.getCodec().encode(this);
+    	Map<String, Object> values = values();
+    	long encoded = System.nanoTime();
+    	store.save(name, state, values);
+    	Tracing.saved(name, state, values, encoded - started, System.nanoTime() - encoded);
+    }
+
+    /**
+     * Saves state and exported count without waiting for store.
+     */
+    @Override
+    public CompletionStage<Void> saveAsync() {
+    	if (loading) {
+    		return CompletableFuture.completedFuture(null);
+    	}
+    	long started = System.nanoTime();
+    	byte[] state = store.getCodec().encode(this);
+    	Map<String, Object> values = values();
+    	long encoded = System.nanoTime();
+    	return Tracing.saved(name, state, values, encoded - started, encoded, store.saveAsync(name, state, values));
+    }
+
+    private Map<String, Object> values() {
+    	Map<String, Object> values = new HashMap<String, Object>();
+    	values.put(MetricStore.VALUE, getCount());
+    	return values;
     }
 
     /**
@@ -46,8 +158,9 @@ public class PersistentCounter extends Counter implements Persistent {
      * @param n the amount by which the counter will be increased
      */
     public void inc(long n) {
-        value.inc(n);
-        save();
+        if (flusher == null || !flusher.capture(this, n)) {
+            apply(n);
+        }
     }
 
     /**
@@ -55,7 +168,6 @@ public class PersistentCounter extends Counter implements Persistent {
      */
     public void dec() {
         dec(1);
-        save();
     }
 
     /**
@@ -64,8 +176,20 @@ public class PersistentCounter extends Counter implements Persistent {
      * @param n the amount by which the counter will be decreased
      */
     public void dec(long n) {
-        value.dec(n);
-        save();
+        if (flusher == null || !flusher.capture(this, -n)) {
+            apply(-n);
+        }
+    }
+
+    /**
+     * Applies increment, directly or as captured by {@link UpdateCapture}.
+     */
+    @Override
+    public void apply(long n) {
+        if (!loading || !buffer(n)) {
+            super.inc(n);
+        }
+        changed();
     }
 
     /**
@@ -75,6 +199,11 @@ public class PersistentCounter extends Counter implements Persistent {
      */
     @Override
     public long getCount() {
-        return value.getCount();
+        if (loading) {
+            synchronized (this) {
+                return super.getCount() + pending;
+            }
+        }
+        return super.getCount();
     }
 }
@@ -0,0 +1,170 @@
+package com.wizecore.metrics;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.codahale.metrics.Counter;
+
+/**
+ * A cluster-wide {@link Counter} stored as native Redis integer.
+ * Updates are accumulated locally in {@link LongAdder} and added to Redis value
+ * with atomic <code>INCRBY</code> on save, so increments from concurrent threads and nodes are never lost.
+ * Redis value is the source of truth for the total, {@link #getCount()} returns last known total
+ * plus local updates not yet saved.
+ * <p>
+ * Each add is made with {@link MetricStore#addAndGetOnce(String, String, long, String, String)}. If it fails,
+ * e.g. times out after Redis has applied it, the same add is retried with the same operation id on next save,
+ * so it is never applied twice. Operations are recorded per node (see {@link PersistenceUtil#getNodeId()}),
+ * so store keeps one last operation id per node and metric, node identifiers must be unique in cluster.
+ * </p>
+ * <p>
+ * Uses the same key as exported count of {@link PersistentCounter}, so existing counters keep their values.
+ * Use in write-behind mode, otherwise every update makes a round trip to Redis.
+ * </p>
+ */
+public class PersistentDeltaCounter extends Counter implements Persistent {
+    /**
+     * Minimum interval in milliseconds between refreshes of total when there are no local updates to add.
+     */
+    public static final long REFRESH_INTERVAL = 5000;
+
+    private final LongAdder pending = new LongAdder();
+    private volatile long total;
+    private String name;
+    private MetricStore store;
+    private WriteBehindFlusher flusher;
+    private final String writer = PersistenceUtil.getNodeId();
+    // Operation ids are unique per counter instance, so sequence restarted after restart never matches last id
+    private final String instance = UUID.randomUUID().toString();
+    private long sequence;
+    private long refreshedAt;
+    private volatile long unsent;
+    private String unsentId;
+
+    public PersistentDeltaCounter(String name) {
+    	this(name, PersistenceUtil.getStore(), null);
+    }
+
+    /**
+     * Creates counter.
+     *
+     * @param name the name of the metric
+     * @param store store to persist metric in
+     * @param flusher write-behind flusher, if null every update is saved immediately
+     */
+    public PersistentDeltaCounter(String name, MetricStore store, WriteBehindFlusher flusher) {
+    	this.name = name;
+    	this.store = store;
+    	this.flusher = flusher;
+    	total = store.addAndGet(name, MetricStore.VALUE, 0);
+    	refreshedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Creates counter which is usable immediately, while its total is read by loader.
+     * Local updates are counted and saved as usual meanwhile.
+     */
+    PersistentDeltaCounter(String name, MetricStore store, WriteBehindFlusher flusher, MetricLoader loader) {
+    	this.name = name;
+    	this.store = store;
+    	this.flusher = flusher;
+    	loader.submit(name, new Runnable() {
+    		@Override
+    		public void run() {
+    			load();
+    		}
+    	});
+    }
+
+    private synchronized void load() {
+    	total = store.addAndGet(name, MetricStore.VALUE, 0);
+    	refreshedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Saves value immediately, or marks it for background save in write-behind mode.
+     */
+    protected void changed() {
+    	if (flusher != null) {
+    		flusher.markDirty(this);
+    	} else {
+    		save();
+    	}
+    }
+
+    /**
+     * Adds local updates to Redis value and refreshes total.
+     * If add fails, it is retried with the same operation id on next save, before any newer updates are added.
+     * Without local updates total is refreshed at most once per {@link #REFRESH_INTERVAL}.
+     */
+    public synchronized void save() {
+    	if (unsentId != null) {
+    		total = store.addAndGetOnce(name, MetricStore.VALUE, unsent, writer, unsentId);
+    		refreshedAt = System.currentTimeMillis();
+    		unsentId = null;
+    		unsent = 0;
+    	}
+    	long delta = pending.sumThenReset();
+    	if (delta == 0) {
+    		if (System.currentTimeMillis() - refreshedAt >= REFRESH_INTERVAL) {
+    			total = store.addAndGet(name, MetricStore.VALUE, 0);
+    			refreshedAt = System.currentTimeMillis();
+    		}
+    		return;
+    	}
+    	String id = instance + ":" + (++sequence);
+    	try {
+    		total = store.addAndGetOnce(name, MetricStore.VALUE, delta, writer, id);
+    		refreshedAt = System.currentTimeMillis();
+    	} catch (RuntimeException e) {
+    		// Might have been applied, e.g. on timeout, retry exactly this add
+    		unsent = delta;
+    		unsentId = id;
+    		throw e;
+    	}
+    }
+
+    /**
+     * Increment the counter by one.
+     */
+    public void inc() {
+        inc(1);
+    }
+
+    /**
+     * Increment the counter by {@code n}.
+     *
+     * @param n the amount by which the counter will be increased
+     */
+    public void inc(long n) {
+        pending.add(n);
+        changed();
+    }
+
+    /**
+     * Decrement the counter by one.
+     */
+    public void dec() {
+        dec(1);
+    }
+
+    /**
+     * Decrement the counter by {@code n}.
+     *
+     * @param n the amount by which the counter will be decreased
+     */
+    public void dec(long n) {
+        pending.add(-n);
+        changed();
+    }
+
+    /**
+     * Returns last known cluster-wide total plus local updates not yet saved.
+     *
+     * @return the counter's current value
+     */
+    @Override
+    public long getCount() {
+        return total + unsent + pending.sum();
+    }
+}
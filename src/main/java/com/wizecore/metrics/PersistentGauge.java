@@ -0,0 +1,68 @@
+package com.wizecore.metrics;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * A persistent wrapper around {@link Gauge}. Value is sampled by {@link GaugeSampler}
+ * and saved only if it was changed since last save. {@link #getValue()} returns last sample
+ * and never calls store.
+ */
+public class PersistentGauge<T> implements Gauge<T>, Persistent {
+	private final String name;
+	private final Gauge<T> source;
+	private final MetricStore store;
+	private volatile T sample;
+	private Object saved;
+	private boolean dirty = true;
+
+	/**
+	 * Creates gauge and takes first sample.
+	 *
+	 * @param name the name of the metric
+	 * @param source gauge providing values
+	 * @param store store to persist values in
+	 */
+	public PersistentGauge(String name, Gauge<T> source, MetricStore store) {
+		this.name = name;
+		this.source = source;
+		this.store = store;
+		sample();
+	}
+
+	/**
+	 * Reads value from source gauge.
+	 *
+	 * @return true if value differs from last saved one
+	 */
+	public synchronized boolean sample() {
+		T v = source.getValue();
+		sample = v;
+		if (saved == null ? v != null : !saved.equals(v)) {
+			dirty = true;
+		}
+		return dirty;
+	}
+
+	/**
+	 * Saves last sample.
+	 */
+	@Override
+	public synchronized void save() {
+		T v = sample;
+		store.setValue(name, MetricStore.GAUGE, v);
+		saved = v;
+		dirty = false;
+	}
+
+	/**
+	 * @return last sampled value
+	 */
+	@Override
+	public T getValue() {
+		return sample;
+	}
+
+	public Gauge<T> getSource() {
+		return source;
+	}
+}
@@ -1,21 +1,25 @@
 package com.wizecore.metrics;
 
-import org.redisson.api.RAtomicLong;
-import org.redisson.api.RBucket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Reservoir;
-import com.codahale.metrics.Snapshot;
-import com.thoughtworks.xstream.XStream;
+import com.codahale.metrics.UniformReservoir;
 
 /**
- * A persistent wrapper around {@link Histogram} instance.
+ * A persistent {@link Histogram}. Count and reservoir are kept by histogram itself, without wrapped instance.
  */
-public class PersistentHistogram extends Histogram implements Persistent {
-    private Histogram value;
-    private String key;
-    private RAtomicLong count;
-    private RBucket<Object> snapshot;
+public class PersistentHistogram extends Histogram implements Persistent, UpdateCapture.Target {
+    private Persistent persistentReservoir;
+    private String name;
+    private MetricStore store;
+    private WriteBehindFlusher flusher;
+    private volatile boolean loading;
+    private UniformReservoir buffered;
+    private long bufferedCount;
 
     /**
      * Creates a new {@link Histogram} with the given reservoir.
@@ -23,27 +27,181 @@ public class PersistentHistogram extends Histogram implements Persistent {
      * @param reservoir the reservoir to create a histogram from
      */
     public PersistentHistogram(String name, Reservoir reservoir) {
+    	this(name, reservoir, PersistenceUtil.getStore(), null);
+    }
+
+    /**
+     * Creates a new {@link Histogram} with the given reservoir.
+     *
+     * @param reservoir the reservoir to create a histogram from
+     * @param store store to persist metric in
+     * @param flusher write-behind flusher, if null every update is saved immediately
+     */
+    public PersistentHistogram(String name, Reservoir reservoir, MetricStore store, WriteBehindFlusher flusher) {
+    	this(name, reservoir, store, flusher, store.getState(name));
+    }
+
+    /**
+     * Creates a new {@link Histogram} with the given reservoir.
+     *
+     * @param reservoir the reservoir to create a histogram from
+     * @param store store to persist metric in
+     * @param flusher write-behind flusher, if null every update is saved immediately
+     * @param state persisted state, as returned by {@link MetricStore#getState(String)}, or null if metric is new
+     */
+    public PersistentHistogram(String name, Reservoir reservoir, MetricStore store, WriteBehindFlusher flusher, byte[] state) {
     	super(reservoir);
-    	XStream x = new XStream();
-    	key = name + ".xml";
-		String xml = PersistenceUtil.getValue(key);
-    	count = PersistenceUtil.createAtomicLong(name + ".count");
-    	snapshot = PersistenceUtil.createBucket(name + ".snapshot");
-    	if (xml != null) {
-    		value = (Histogram) x.fromXML(xml);
+    	this.persistentReservoir = reservoir instanceof Persistent ? (Persistent) reservoir : null;
+    	this.name = name;
+    	this.store = store;
+    	this.flusher = flusher;
+    	if (state != null) {
+    		restore(state);
     	} else {
-    		value = new Histogram(reservoir);
-        	save();
+        	changed();
     	}
     }
     
+    /**
+     * Creates histogram which is usable immediately, while its state is loaded by loader.
+     * Until loaded, histogram is not saved and buffers sample of local updates, which is replayed into loaded histogram.
+     * Snapshot is empty until loaded.
+     *
+     * @param reservoir the reservoir to create a histogram from, which should load its own state lazily
+     */
+    PersistentHistogram(String name, Reservoir reservoir, MetricStore store, WriteBehindFlusher flusher, MetricLoader loader) {
+    	super(reservoir);
+    	this.persistentReservoir = reservoir instanceof Persistent ? (Persistent) reservoir : null;
+    	this.name = name;
+    	this.store = store;
+    	this.flusher = flusher;
+    	buffered = new UniformReservoir(MetricLoader.MAX_BUFFERED);
+    	loading = true;
+    	loader.submit(name, new Runnable() {
+    		@Override
+    		public void run() {
+    			load(PersistentHistogram.this.store.getState(PersistentHistogram.this.name));
+    		}
+    	});
+    }
+
+    private synchronized void load(byte[] state) {
+    	if (state != null) {
+    		restore(state);
+    	}
+    	long[] sample = buffered.getSnapshot().getValues();
+    	for (long v : sample) {
+    		super.update(v);
+    	}
+    	if (bufferedCount > sample.length) {
+    		addCount(bufferedCount - sample.length);
+    	}
+    	buffered = null;
+    	bufferedCount = 0;
+    	loading = false;
+    	changed();
+    }
+
+    /**
+     * Adds updates dropped from sample while loading to count, if count is accessible.
+     */
+    private void addCount(long n) {
+    	if (MetricFields.AVAILABLE) {
+    		MetricFields.add(MetricFields.HISTOGRAM_COUNT, this, n);
+    	}
+    }
+
+    /**
+     * Restores state into this histogram. If codec returns new instance instead, only its snapshot values are kept.
+     */
+    private void restore(byte[] state) {
+    	Histogram restored = (Histogram) store.getCodec().decode(state, this);
+    	if (restored != this) {
+    		for (long v : restored.getSnapshot().getValues()) {
+    			super.update(v);
+    		}
+    	}
+    }
+
+    /**
+     * Keeps update until histogram is loaded.
+     *
+     * @return false if histogram is already loaded
+     */
+    private synchronized boolean buffer(long value) {
+    	if (loading) {
+    		buffered.update(value);
+    		bufferedCount++;
+    		return true;
+    	}
+    	return false;
+    }
+
+    /**
+     * @return reservoir if it persists itself, otherwise null
+     */
+    Persistent getPersistentReservoir() {
+    	return persistentReservoir;
+    }
+
+    /**
+     * Saves value immediately, or marks it for background save in write-behind mode.
+     */
+    protected void changed() {
+    	if (loading) {
+    		return;
+    	}
+    	if (flusher != null) {
+    		flusher.markDirty(this);
+    	} else {
+    		save();
+    	}
+    }
+    
+    /**
+     * Saves state, count and snapshot at once.
+     * Reservoir implementing {@link Persistent} is saved first.
+     */
     @Override
     public void save() {
-    	XStream x = new XStream();
-    	String xml = x.toXML(value);
-    	PersistenceUtil.setValue(key, xml);
-    	count.set(getCount());
-    	snapshot.set(x.toXML(value.getSnapshot()));
+    	if (loading) {
+    		return;
+    	}
+    	long started = System.nanoTime();
+    	byte[] state = store.getCodec().encode(this);
+    	Map<String, Object> values = values();
+    	long encoded = System.nanoTime();
+    	if (persistentReservoir != null) {
+    		persistentReservoir.save();
+    	}
+    	store.save(name, state, values);
+    	Tracing.saved(name, state, values, encoded - started, System.nanoTime() - encoded);
+    }
+
+    /**
+     * Saves reservoir, state, count and snapshot without waiting for store.
+     */
+    @Override
+    public CompletionStage<Void> saveAsync() {
+    	if (loading) {
+    		return CompletableFuture.completedFuture(null);
+    	}
+    	long started = System.nanoTime();
+    	byte[] state = store.getCodec().encode(this);
+    	Map<String, Object> values = values();
+    	long encoded = System.nanoTime();
+    	CompletionStage<Void> f = store.saveAsync(name, state, values);
+    	if (persistentReservoir != null) {
+    		f = Futures.both(f, persistentReservoir.saveAsync());
+    	}
+    	return Tracing.saved(name, state, values, encoded - started, encoded, f);
+    }
+
+    private Map<String, Object> values() {
+    	Map<String, Object> values = new HashMap<String, Object>();
+    	values.put(MetricStore.COUNT, getCount());
+    	values.put(MetricStore.SNAPSHOT, store.getCodec().encodeSnapshot(getSnapshot()));
+    	return values;
     }
 
     /**
@@ -61,8 +219,20 @@ public class PersistentHistogram extends Histogram implements Persistent {
      * @param value the length of the value
      */
     public void update(long value) {
-        this.value.update(value);
-        save();
+        if (flusher == null || !flusher.capture(this, value)) {
+            apply(value);
+        }
+    }
+
+    /**
+     * Applies recorded value, directly or as captured by {@link UpdateCapture}.
+     */
+    @Override
+    public void apply(long value) {
+        if (!loading || !buffer(value)) {
+            super.update(value);
+        }
+        changed();
     }
 
     /**
@@ -72,11 +242,11 @@ public class PersistentHistogram extends Histogram implements Persistent {
      */
     @Override
     public long getCount() {
-        return value.getCount();
-    }
-
-    @Override
-    public Snapshot getSnapshot() {
-        return value.getSnapshot();
+        if (loading) {
+            synchronized (this) {
+                return super.getCount() + bufferedCount;
+            }
+        }
+        return super.getCount();
     }
 }
@@ -1,56 +1,168 @@
 package com.wizecore.metrics;
 
-import org.redisson.api.RAtomicDouble;
-import org.redisson.api.RAtomicLong;
-
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import com.codahale.metrics.Clock;
 import com.codahale.metrics.Meter;
-import com.thoughtworks.xstream.XStream;
 
 /**
- * A persistent wrapper around {@link Meter} instance.
+ * A persistent {@link Meter}. Count and rates are kept by meter itself, without wrapped instance.
  */
-public class PersistentMeter extends Meter implements Persistent {
-	private Meter value;
-	private String key;
-	private RAtomicLong count;
-	private RAtomicDouble meanRate;
-	private RAtomicDouble m1Rate;
-	private RAtomicDouble m5Rate;
-	private RAtomicDouble m15Rate;
+public class PersistentMeter extends Meter implements Persistent, UpdateCapture.Target {
+	private String name;
+	private MetricStore store;
+	private WriteBehindFlusher flusher;
+	private volatile boolean loading;
+	private long pending;
 	
 	public PersistentMeter(String name) {
 		 this(name, Clock.defaultClock());
 	}
 
 	public PersistentMeter(String name, Clock clock) {
+		this(name, clock, PersistenceUtil.getStore(), null);
+	}
+
+	/**
+	 * Creates meter.
+	 *
+	 * @param name the name of the metric
+	 * @param clock the clock to use for the meter ticks
+	 * @param store store to persist metric in
+	 * @param flusher write-behind flusher, if null every update is saved immediately
+	 */
+	public PersistentMeter(String name, Clock clock, MetricStore store, WriteBehindFlusher flusher) {
+		this(name, clock, store, flusher, store.getState(name));
+	}
+
+	/**
+	 * Creates meter.
+	 *
+	 * @param name the name of the metric
+	 * @param clock the clock to use for the meter ticks
+	 * @param store store to persist metric in
+	 * @param flusher write-behind flusher, if null every update is saved immediately
+	 * @param state persisted state, as returned by {@link MetricStore#getState(String)}, or null if metric is new
+	 */
+	public PersistentMeter(String name, Clock clock, MetricStore store, WriteBehindFlusher flusher, byte[] state) {
 		super(clock);
-		XStream x = new XStream();
-    	key = name + ".xml";
-		String xml = PersistenceUtil.getValue(key);
-		count = PersistenceUtil.createAtomicLong(name + ".count");
-		meanRate = PersistenceUtil.createAtomicDouble(name + ".meanRate");
-		m1Rate = PersistenceUtil.createAtomicDouble(name + ".m1Rate");
-		m5Rate = PersistenceUtil.createAtomicDouble(name + ".m5Rate");
-		m15Rate = PersistenceUtil.createAtomicDouble(name + ".m15Rate");
-    	if (xml != null) {
-    		value = (Meter) x.fromXML(xml);
+		this.name = name;
+		this.store = store;
+		this.flusher = flusher;
+    	if (state != null) {
+    		restore(state);
     	} else {
-    		value = new Meter(clock);
-        	save();
+        	changed();
     	}
 	}
+	
+	/**
+	 * Creates meter which is usable immediately, while its state is loaded by loader.
+	 * Until loaded, meter is not saved and counts only local marks, which are added to loaded meter.
+	 * Rates are zero until loaded.
+	 */
+	PersistentMeter(String name, Clock clock, MetricStore store, WriteBehindFlusher flusher, MetricLoader loader) {
+		super(clock);
+		this.name = name;
+		this.store = store;
+		this.flusher = flusher;
+		loading = true;
+		loader.submit(name, new Runnable() {
+			@Override
+			public void run() {
+				load(PersistentMeter.this.store.getState(PersistentMeter.this.name));
+			}
+		});
+	}
+
+	private synchronized void load(byte[] state) {
+		if (state != null) {
+			restore(state);
+		}
+		super.mark(pending);
+		pending = 0;
+		loading = false;
+		changed();
+	}
+
+	/**
+	 * Restores state into this meter. If codec returns new instance instead, only its count is kept.
+	 */
+	private void restore(byte[] state) {
+		Meter restored = (Meter) store.getCodec().decode(state, this);
+		if (restored != this) {
+			super.mark(restored.getCount());
+		}
+	}
+
+	/**
+	 * Keeps marks until meter is loaded.
+	 *
+	 * @return false if meter is already loaded
+	 */
+	private synchronized boolean buffer(long n) {
+		if (loading) {
+			pending += n;
+			return true;
+		}
+		return false;
+	}
+
+    /**
+     * Saves value immediately, or marks it for background save in write-behind mode.
+     */
+    protected void changed() {
+    	if (loading) {
+    		return;
+    	}
+    	if (flusher != null) {
+    		flusher.markDirty(this);
+    	} else {
+    		save();
+    	}
+    }
 	 
+    /**
+     * Saves state and all exported values at once.
+     */
     @Override
     public void save() {
-    	XStream x = new XStream();
-    	String xml = x.toXML(value);
-    	PersistenceUtil.setValue(key, xml);
-    	count.set(getCount());
-    	meanRate.set(value.getMeanRate());
-    	m1Rate.set(value.getOneMinuteRate());
-    	m5Rate.set(value.getFiveMinuteRate());
-    	m15Rate.set(value.getFifteenMinuteRate());
+    	if (loading) {
+    		return;
+    	}
+    	long started = System.nanoTime();
+    	byte[] state = store.getCodec().encode(this);
+    	Map<String, Object> values = values();
+    	long encoded = System.nanoTime();
+    	store.save(name, state, values);
+    	Tracing.saved(name, state, values, encoded - started, System.nanoTime() - encoded);
+    }
+
+    /**
+     * Saves state and all exported values without waiting for store.
+     */
+    @Override
+    public CompletionStage<Void> saveAsync() {
+    	if (loading) {
+    		return CompletableFuture.completedFuture(null);
+    	}
+    	long started = System.nanoTime();
+    	byte[] state = store.getCodec().encode(this);
+    	Map<String, Object> values = values();
+    	long encoded = System.nanoTime();
+    	return Tracing.saved(name, state, values, encoded - started, encoded, store.saveAsync(name, state, values));
+    }
+
+    private Map<String, Object> values() {
+    	Map<String, Object> values = new HashMap<String, Object>();
+    	values.put(MetricStore.COUNT, getCount());
+    	values.put(MetricStore.MEAN_RATE, getMeanRate());
+    	values.put(MetricStore.M1_RATE, getOneMinuteRate());
+    	values.put(MetricStore.M5_RATE, getFiveMinuteRate());
+    	values.put(MetricStore.M15_RATE, getFifteenMinuteRate());
+    	return values;
     }
 
 	@Override
@@ -60,32 +172,29 @@ public class PersistentMeter extends Meter implements Persistent {
 
 	@Override
 	public void mark(long n) {
-		value.mark(n);
-		save();
-	}
-
-	@Override
-	public long getCount() {
-		return value.getCount();
-	}
-
-	@Override
-	public double getFifteenMinuteRate() {
-		return value.getFifteenMinuteRate();
+		if (flusher == null || !flusher.capture(this, n)) {
+			apply(n);
+		}
 	}
 
+	/**
+	 * Applies mark, directly or as captured by {@link UpdateCapture}.
+	 */
 	@Override
-	public double getFiveMinuteRate() {
-		return value.getFiveMinuteRate();
+	public void apply(long n) {
+		if (!loading || !buffer(n)) {
+			super.mark(n);
+		}
+		changed();
 	}
 
 	@Override
-	public double getMeanRate() {
-		return value.getMeanRate();
-	}
-
-	@Override
-	public double getOneMinuteRate() {
-		return value.getOneMinuteRate();
+	public long getCount() {
+		if (loading) {
+			synchronized (this) {
+				return super.getCount() + pending;
+			}
+		}
+		return super.getCount();
 	}
 }
@@ -1,18 +1,29 @@
 package com.wizecore.metrics;
 
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
-import org.redisson.api.RBucket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Clock;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.ExponentiallyDecayingReservoir;
 import com.codahale.metrics.Gauge;
@@ -23,12 +34,31 @@ import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.MetricRegistryListener;
 import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Reservoir;
 import com.codahale.metrics.Timer;
 
 /**
- * A persistent registry of metric instances. All instances created are persistent in Redis.
+ * A persistent registry of metric instances. All instances created are persistent in {@link MetricStore},
+ * Redis by default.
  */
 public class PersistentMetricRegistry extends MetricRegistry {
+    private static Logger log = LoggerFactory.getLogger(PersistentMetricRegistry.class);
+
+    /**
+     * Marker of state which can't be read now, metric is loaded in background then.
+     */
+    private static final byte[] UNAVAILABLE = new byte[0];
+
+    /**
+     * Default number of keys per <code>SCAN</code> and per pipelined batch in {@link #hydrate()}.
+     */
+    public static final int DEFAULT_HYDRATE_BATCH_SIZE = 1000;
+
+    /**
+     * Default interval in seconds between gauge samples.
+     */
+    public static final long DEFAULT_GAUGE_SAMPLE_INTERVAL = 1;
+
     /**
      * Concatenates elements to form a dotted name, eliding any null values or empty strings.
      *
@@ -69,14 +99,98 @@ public class PersistentMetricRegistry extends MetricRegistry {
     }
 
     private final ConcurrentMap<String, Metric> metrics;
+
+    /**
+     * Metrics sorted by name, all and by type, kept in sync with {@link #metrics}.
+     */
+    private final ConcurrentSkipListMap<String, Metric> sorted = new ConcurrentSkipListMap<String, Metric>();
+    private final Map<Class<?>, ConcurrentSkipListMap<String, Metric>> indexes = new HashMap<Class<?>, ConcurrentSkipListMap<String, Metric>>();
     private final List<MetricRegistryListener> listeners;
+    private final MetricStore store;
+    private final PersistenceStats stats = new PersistenceStats();
+    private final WriteBehindFlusher flusher;
+    private volatile boolean deltaCounters;
+    private volatile boolean sharedMeters;
+    private volatile boolean mergeableHistograms;
+    private volatile File reservoirDir;
+    private volatile boolean lazyLoading;
+    private MetricLoader loader;
+    private final JournalingMetricStore journal;
+    private long loadRetryInterval = MetricLoader.RETRY_INTERVAL;
+    private long gaugeSampleInterval = DEFAULT_GAUGE_SAMPLE_INTERVAL;
+    private TimeUnit gaugeSampleUnit = TimeUnit.SECONDS;
+    private GaugeSampler sampler;
 
     /**
-     * Creates a new {@link PersistentMetricRegistry}.
+     * Creates a new {@link PersistentMetricRegistry} using default store, see {@link PersistenceUtil#getStore()}.
+     * Every metric update is saved immediately.
      */
     public PersistentMetricRegistry() {
+        this(PersistenceUtil.getStore());
+    }
+
+    /**
+     * Creates a new {@link PersistentMetricRegistry} using default store in write-behind mode.
+     *
+     * @param flushInterval how often changed metrics are saved
+     * @param unit unit of {@code flushInterval}
+     * @see #PersistentMetricRegistry(MetricStore, long, TimeUnit)
+     */
+    public PersistentMetricRegistry(long flushInterval, TimeUnit unit) {
+        this(PersistenceUtil.getStore(), flushInterval, unit);
+    }
+
+    /**
+     * Creates a new {@link PersistentMetricRegistry} using given store. Every metric update is saved immediately.
+     *
+     * @param store store to persist metrics in
+     */
+    public PersistentMetricRegistry(MetricStore store) {
+        this(store, null);
+    }
+
+    /**
+     * Creates a new {@link PersistentMetricRegistry} using given store in write-behind mode. Metric updates
+     * only mark metric as dirty, changed metrics are saved in background every {@code flushInterval}
+     * and on {@link #close()} or JVM shutdown.
+     *
+     * @param store store to persist metrics in
+     * @param flushInterval how often changed metrics are saved
+     * @param unit unit of {@code flushInterval}
+     */
+    public PersistentMetricRegistry(MetricStore store, long flushInterval, TimeUnit unit) {
+        this(store, new WriteBehindFlusher(flushInterval, unit));
+    }
+
+    /**
+     * Creates a new {@link PersistentMetricRegistry} in write-behind mode, with updates of counters, meters,
+     * histograms and timers recorded by {@link UpdateCapture} and applied to metrics in its consumer thread.
+     *
+     * @param store store to persist metrics in
+     * @param flushInterval how often changed metrics are saved
+     * @param unit unit of {@code flushInterval}
+     * @param capture update capture, closed together with registry
+     */
+    public PersistentMetricRegistry(MetricStore store, long flushInterval, TimeUnit unit, UpdateCapture capture) {
+        this(store, new WriteBehindFlusher(flushInterval, unit, capture));
+    }
+
+    private PersistentMetricRegistry(MetricStore store, WriteBehindFlusher flusher) {
         this.metrics = buildMap();
+        for (Class<?> type : new Class<?>[] { Gauge.class, Counter.class, Histogram.class, Meter.class, Timer.class }) {
+            indexes.put(type, new ConcurrentSkipListMap<String, Metric>());
+        }
+        indexes.put(Metric.class, sorted);
         this.listeners = new CopyOnWriteArrayList<MetricRegistryListener>();
+        this.store = new InstrumentedMetricStore(store, stats);
+        this.flusher = flusher;
+        this.journal = journalOf(store);
+        stats.watch(store);
+        if (flusher != null) {
+            flusher.setStats(stats);
+            stats.watch(flusher);
+        }
+        registerAll(PersistenceStats.PREFIX, stats);
     }
 
     /**
@@ -106,6 +220,21 @@ public class PersistentMetricRegistry extends MetricRegistry {
         } else {
             final Metric existing = metrics.putIfAbsent(name, metric);
             if (existing == null) {
+                for (Map.Entry<Class<?>, ConcurrentSkipListMap<String, Metric>> index : indexes.entrySet()) {
+                    if (index.getKey().isInstance(metric)) {
+                        index.getValue().put(name, metric);
+                    }
+                }
+                if (metrics.get(name) != metric) {
+                    // Removed concurrently before it was indexed, undo so index doesn't keep it
+                    for (ConcurrentSkipListMap<String, Metric> index : indexes.values()) {
+                        index.remove(name, metric);
+                    }
+                }
+                if (metric instanceof SharedMeter) {
+                    // Values are refreshed in background, getters only return them
+                    getGaugeSampler().add((SharedMeter) metric);
+                }
                 onMetricAdded(name, metric);
             } else {
                 throw new IllegalArgumentException("A metric named " + name + " already exists");
@@ -132,7 +261,7 @@ public class PersistentMetricRegistry extends MetricRegistry {
      * @return a new or pre-existing {@link Counter}
      */
     public Counter counter(String name) {
-        return getOrAdd(name, MetricBuilder.COUNTERS);
+        return getOrAdd(name, counters);
     }
 
     /**
@@ -164,7 +293,7 @@ public class PersistentMetricRegistry extends MetricRegistry {
      * @return a new or pre-existing {@link Histogram}
      */
     public Histogram histogram(String name) {
-        return getOrAdd(name, MetricBuilder.HISTOGRAMS);
+        return getOrAdd(name, histograms);
     }
 
     /**
@@ -196,7 +325,7 @@ public class PersistentMetricRegistry extends MetricRegistry {
      * @return a new or pre-existing {@link Meter}
      */
     public Meter meter(String name) {
-        return getOrAdd(name, MetricBuilder.METERS);
+        return getOrAdd(name, meters);
     }
 
     /**
@@ -228,7 +357,7 @@ public class PersistentMetricRegistry extends MetricRegistry {
      * @return a new or pre-existing {@link Timer}
      */
     public Timer timer(String name) {
-        return getOrAdd(name, MetricBuilder.TIMERS);
+        return getOrAdd(name, timers);
     }
 
     /**
@@ -261,54 +390,144 @@ public class PersistentMetricRegistry extends MetricRegistry {
      * @return a new or pre-existing {@link Gauge}
      */
     public Gauge gauge(String name, final MetricSupplier<Gauge> supplier) {
-        return getOrAdd(name, new MetricBuilder<Gauge>() {
+        final PersistentGauge<?>[] created = new PersistentGauge<?>[1];
+        Gauge gauge = getOrAdd(name, new MetricBuilder<Gauge>() {
+            @SuppressWarnings("unchecked")
             @Override
             public Gauge newMetric(String name) {
-            	RBucket<Object> vv = PersistenceUtil.createBucket(name + ".gauge");
-            	Gauge val = supplier.newMetric();
-                return new Gauge() {
-                	@Override
-                	public Object getValue() {
-                		Object v = val.getValue();
-                		vv.set(v);
-						return v;
-                	}
-                };
+                created[0] = new PersistentGauge<Object>(name, supplier.newMetric(), store);
+                return created[0];
             }
             @Override
             public boolean isInstance(Metric metric) {
                 return Gauge.class.isInstance(metric);
             }
         });
+        if (gauge == created[0]) {
+            // Sampled only once registered, gauge which lost race for the name is dropped
+            getGaugeSampler().add(created[0]);
+        }
+        return gauge;
     }
 
+    /**
+     * Sampler of gauges created by {@link #gauge(String, MetricSupplier)}, also refreshes shared meters. Created on first use.
+     */
+    public synchronized GaugeSampler getGaugeSampler() {
+        if (sampler == null) {
+            sampler = new GaugeSampler(gaugeSampleInterval, gaugeSampleUnit);
+        }
+        return sampler;
+    }
 
-        /**
-         * Removes the metric with the given name.
-         *
-         * @param name the name of the metric
-         * @return whether or not the metric was removed
-         */
+    /**
+     * Sets how often gauges are sampled and changed values saved, by default every second.
+     * Must be called before first gauge or shared meter is created.
+     *
+     * @param interval interval between samples
+     * @param unit unit of {@code interval}
+     * @throws IllegalStateException if gauges are already sampled
+     */
+    public synchronized void setGaugeSampleInterval(long interval, TimeUnit unit) {
+        if (sampler != null) {
+            throw new IllegalStateException("Gauge sampler is already started");
+        }
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Sample interval must be positive: " + interval);
+        }
+        this.gaugeSampleInterval = interval;
+        this.gaugeSampleUnit = unit;
+    }
+
+    /**
+     * Removes the metric with the given name and deletes its persisted state and values.
+     *
+     * @param name the name of the metric
+     * @return whether or not the metric was removed
+     */
     public boolean remove(String name) {
-        final Metric metric = metrics.remove(name);
+        final Metric metric = unregister(name);
         if (metric != null) {
-            onMetricRemoved(name, metric);
+            if (metric instanceof Persistent) {
+                delete(Collections.singletonList(name));
+                deleteReservoir(metric);
+            }
             return true;
         }
         return false;
     }
 
+    /**
+     * Removes metric from registry, cancels its pending save and notifies listeners.
+     *
+     * @return removed metric or null
+     */
+    private Metric unregister(String name) {
+        final Metric metric = metrics.remove(name);
+        if (metric != null) {
+            for (ConcurrentSkipListMap<String, Metric> index : indexes.values()) {
+                index.remove(name, metric);
+            }
+            if (metric instanceof PersistentGauge) {
+                getGaugeSampler().remove((PersistentGauge<?>) metric);
+            }
+            if (metric instanceof SharedMeter) {
+                getGaugeSampler().remove((SharedMeter) metric);
+            }
+            if (metric instanceof Persistent && flusher != null) {
+                flusher.forget((Persistent) metric);
+            }
+            onMetricRemoved(name, metric);
+        }
+        return metric;
+    }
+
+    /**
+     * Deletes persisted metrics. Failure is logged, metrics are already removed from registry.
+     */
+    private void delete(List<String> names) {
+        try {
+            store.delete(names);
+        } catch (RuntimeException e) {
+            log.warn("Failed to delete " + names.size() + " metrics from store: " + e);
+        }
+    }
+
+    /**
+     * Deletes file of mapped reservoir of removed histogram or timer.
+     */
+    private void deleteReservoir(Metric metric) {
+        Persistent reservoir = null;
+        if (metric instanceof PersistentHistogram) {
+            reservoir = ((PersistentHistogram) metric).getPersistentReservoir();
+        } else if (metric instanceof PersistentTimer) {
+            reservoir = ((PersistentTimer) metric).getPersistentReservoir();
+        }
+        if (reservoir instanceof MappedReservoir && !((MappedReservoir) reservoir).delete()) {
+            log.warn("Failed to delete reservoir file " + ((MappedReservoir) reservoir).getFile());
+        }
+    }
+
     /**
      * Removes all metrics which match the given filter.
+     * Persisted state of removed metrics is deleted in batches.
      *
      * @param filter a filter
      */
     public void removeMatching(MetricFilter filter) {
+        List<String> deleted = new ArrayList<String>();
         for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
             if (filter.matches(entry.getKey(), entry.getValue())) {
-                remove(entry.getKey());
+                Metric metric = unregister(entry.getKey());
+                if (metric instanceof Persistent) {
+                    deleted.add(entry.getKey());
+                    deleteReservoir(metric);
+                }
             }
         }
+        if (!deleted.isEmpty()) {
+            delete(deleted);
+        }
     }
 
     /**
@@ -338,11 +557,37 @@ public class PersistentMetricRegistry extends MetricRegistry {
 
     /**
      * Returns a set of the names of all the metrics in the registry.
+     * Set is a read-only live view, not a copy.
      *
      * @return the names of all the metrics
      */
     public SortedSet<String> getNames() {
-        return Collections.unmodifiableSortedSet(new TreeSet<String>(metrics.keySet()));
+        return Collections.unmodifiableSortedSet(sorted.keySet());
+    }
+
+    /**
+     * Visits metrics of given type in order of names, without copying registry.
+     * Metrics registered or removed during visit may or may not be visited.
+     *
+     * @param type one of {@link Gauge}, {@link Counter}, {@link Histogram}, {@link Meter}, {@link Timer}, or {@link Metric} for all metrics
+     * @param filter which metrics to visit
+     * @param visitor called with name and metric
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Metric> void forEach(Class<T> type, MetricFilter filter, BiConsumer<String, ? super T> visitor) {
+        for (Map.Entry<String, Metric> entry : index(type).entrySet()) {
+            if (filter.matches(entry.getKey(), entry.getValue())) {
+                visitor.accept(entry.getKey(), (T) entry.getValue());
+            }
+        }
+    }
+
+    private ConcurrentSkipListMap<String, Metric> index(Class<?> type) {
+        ConcurrentSkipListMap<String, Metric> index = indexes.get(type);
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown metric type: " + type);
+        }
+        return index;
     }
 
     /**
@@ -442,6 +687,329 @@ public class PersistentMetricRegistry extends MetricRegistry {
         return getMetrics(Timer.class, filter);
     }
 
+    /**
+     * Loads all metrics persisted under metric prefix in bulk and registers them.
+     * Keys are enumerated once with <code>SCAN</code> and states are fetched in pipelined batches,
+     * instead of several round trips per metric on first use. Call once at startup, before metrics are used.
+     * Already registered metrics, gauges and delta counters are not loaded.
+     *
+     * @return number of metrics registered
+     */
+    public int hydrate() {
+        return hydrate(DEFAULT_HYDRATE_BATCH_SIZE);
+    }
+
+    /**
+     * Loads all metrics persisted under metric prefix in bulk and registers them.
+     *
+     * @param batchSize number of keys per <code>SCAN</code> and per pipelined batch
+     * @return number of metrics registered
+     * @see #hydrate()
+     */
+    public int hydrate(int batchSize) {
+        int count = 0;
+        long bytes = 0;
+        long started = System.currentTimeMillis();
+        long readStarted = System.nanoTime();
+        Map<String, byte[]> states = store.getAllStates(batchSize);
+        long read = System.nanoTime();
+        for (Map.Entry<String, byte[]> entry : states.entrySet()) {
+            String name = entry.getKey();
+            if (metrics.containsKey(name)) {
+                continue;
+            }
+            bytes += entry.getValue().length;
+            try {
+                Metric metric = newMetric(name, BinaryStateCodec.typeOf(entry.getValue()), entry.getValue());
+                if (metric != null) {
+                    register(name, metric);
+                    count++;
+                }
+            } catch (RuntimeException e) {
+                log.warn("Failed to load metric " + name + ": " + e.getMessage());
+            }
+        }
+        stats.hydrated(System.currentTimeMillis() - started);
+        Tracing.loaded(count, bytes, System.nanoTime() - read, read - readStarted);
+        log.info("Loaded " + count + " persistent metrics in " + (System.currentTimeMillis() - started) + " ms");
+        return count;
+    }
+
+    /**
+     * Creates metric of given type from persisted state.
+     *
+     * @return new metric or null, if metric of this type can't be loaded from state
+     */
+    private Metric newMetric(String name, Class<? extends Metric> type, byte[] state) {
+        if (type == Counter.class) {
+            return deltaCounters ? null : new PersistentCounter(name, store, flusher, state);
+        } else if (type == Meter.class) {
+            return sharedMeters ? null : new PersistentMeter(name, Clock.defaultClock(), store, flusher, state);
+        } else if (type == Histogram.class) {
+            return new PersistentHistogram(name, newReservoir(name), store, flusher, state);
+        } else if (type == Timer.class) {
+            return new PersistentTimer(name, newReservoir(name), Clock.defaultClock(), store, flusher, state);
+        }
+        return null;
+    }
+
+    /**
+     * Creates reservoir for histogram or timer.
+     */
+    private Reservoir newReservoir(String name) {
+        return newReservoir(name, false);
+    }
+
+    /**
+     * Creates reservoir for histogram or timer.
+     *
+     * @param lazy if true, reservoir doesn't read store until first used, for metrics loaded in background
+     */
+    private Reservoir newReservoir(String name, boolean lazy) {
+        File dir = reservoirDir;
+        if (dir != null) {
+            try {
+                return new MappedReservoir(new File(dir, URLEncoder.encode(name, "UTF-8") + ".reservoir"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (mergeableHistograms) {
+            return new MergeableReservoir(name, store, PersistenceUtil.getNodeId(), MergeableReservoir.DEFAULT_SIGNIFICANT_DIGITS,
+                    MergeableReservoir.DEFAULT_REFRESH_INTERVAL, MergeableReservoir.DEFAULT_MAX_SHARD_AGE, lazy);
+        }
+        return new ExponentiallyDecayingReservoir();
+    }
+
+    /**
+     * Saves all metrics changed since last flush. Does nothing if registry is not in write-behind mode.
+     */
+    public void flush() {
+        if (flusher != null) {
+            flusher.flush();
+        }
+    }
+
+    /**
+     * Saves all persistent metrics without waiting for store.
+     * Use with {@link AsyncMetricStore} to get acknowledgement once all writes are done.
+     *
+     * @return stage completed when all metrics are saved
+     */
+    public CompletionStage<Void> saveAsync() {
+        List<CompletableFuture<Void>> saves = new ArrayList<CompletableFuture<Void>>();
+        for (Metric metric : metrics.values()) {
+            if (metric instanceof Persistent) {
+                saves.add(((Persistent) metric).saveAsync().toCompletableFuture());
+            }
+        }
+        return CompletableFuture.allOf(saves.toArray(new CompletableFuture<?>[saves.size()]));
+    }
+
+    /**
+     * Stops background flushing and saves all pending changes. Stops gauge sampling.
+     * After close metric updates are saved immediately.
+     */
+    public void close() {
+        if (flusher != null) {
+            flusher.close();
+        }
+        synchronized (this) {
+            if (sampler != null) {
+                sampler.close();
+            }
+            if (loader != null) {
+                loader.close();
+            }
+        }
+    }
+
+    /**
+     * @return true if counters are created as {@link PersistentDeltaCounter}
+     */
+    public boolean isDeltaCounters() {
+        return deltaCounters;
+    }
+
+    /**
+     * Enables cluster-wide counters. New counters are created as {@link PersistentDeltaCounter},
+     * which add local updates to Redis value with atomic <code>INCRBY</code> instead of overwriting it.
+     * Affects only counters created after this call.
+     *
+     * @param deltaCounters true to create {@link PersistentDeltaCounter}
+     */
+    public void setDeltaCounters(boolean deltaCounters) {
+        this.deltaCounters = deltaCounters;
+    }
+
+    /**
+     * @return true if meters are created as {@link SharedMeter}
+     */
+    public boolean isSharedMeters() {
+        return sharedMeters;
+    }
+
+    /**
+     * Enables cluster-wide meters. New meters are created as {@link SharedMeter},
+     * so marks from all nodes using the same metric name are counted in single meter, with rates advanced by store time.
+     * Affects only meters created after this call.
+     *
+     * @param sharedMeters true to create {@link SharedMeter}
+     */
+    public void setSharedMeters(boolean sharedMeters) {
+        this.sharedMeters = sharedMeters;
+    }
+
+    /**
+     * @return true if histograms and timers are created with {@link MergeableReservoir}
+     */
+    public boolean isMergeableHistograms() {
+        return mergeableHistograms;
+    }
+
+    /**
+     * Enables cluster-wide histograms. New histograms and timers are created with {@link MergeableReservoir},
+     * so their snapshots merge values recorded by all nodes using the same metric name.
+     * Affects only histograms and timers created after this call.
+     *
+     * @param mergeableHistograms true to create histograms and timers with {@link MergeableReservoir}
+     */
+    public void setMergeableHistograms(boolean mergeableHistograms) {
+        this.mergeableHistograms = mergeableHistograms;
+    }
+
+    /**
+     * @return directory of {@link MappedReservoir} files, or null if they are not used
+     */
+    public File getReservoirDir() {
+        return reservoirDir;
+    }
+
+    /**
+     * Keeps reservoirs of new histograms and timers off-heap, in {@link MappedReservoir} files of given directory.
+     * Reservoir persists itself, so only count and rates of histogram or timer are serialized on save.
+     * Takes precedence over {@link #setMergeableHistograms(boolean)}. Affects only histograms and timers created after this call.
+     *
+     * @param reservoirDir directory of reservoir files, created if missing, or null to keep reservoirs in heap
+     */
+    public void setReservoirDir(File reservoirDir) {
+        if (reservoirDir != null && !reservoirDir.isDirectory() && !reservoirDir.mkdirs()) {
+            throw new IllegalArgumentException("Can't create reservoir directory " + reservoirDir);
+        }
+        this.reservoirDir = reservoirDir;
+    }
+
+    /**
+     * @return true if new metrics are loaded in background
+     */
+    public boolean isLazyLoading() {
+        return lazyLoading;
+    }
+
+    /**
+     * Enables background loading of metrics. New counters, meters, histograms and timers are returned
+     * immediately, without waiting for store, and their persisted state is read by background threads.
+     * Until state is loaded, metric holds only local updates and is not saved, once loaded local updates
+     * are merged into loaded state. Affects only metrics created after this call.
+     *
+     * @param lazyLoading true to load new metrics in background
+     */
+    public void setLazyLoading(boolean lazyLoading) {
+        this.lazyLoading = lazyLoading;
+    }
+
+    /**
+     * Sets interval between retries of failed background loads, 1 second by default.
+     * Metric is retried until loaded, after 30 failures retries back off up to once a minute.
+     *
+     * @param interval interval between retries
+     * @param unit unit of interval
+     */
+    public synchronized void setLoadRetryInterval(long interval, TimeUnit unit) {
+        loadRetryInterval = unit.toMillis(interval);
+        if (loader != null) {
+            loader.setRetryInterval(loadRetryInterval);
+        }
+    }
+
+    /**
+     * Finds journaling store in chain, walking through partitioned, instrumented and asynchronous stores.
+     *
+     * @return journaling store or null
+     */
+    private static JournalingMetricStore journalOf(MetricStore store) {
+        while (store != null) {
+            if (store instanceof JournalingMetricStore) {
+                return (JournalingMetricStore) store;
+            } else if (store instanceof AsyncMetricStore) {
+                store = ((AsyncMetricStore) store).getStore();
+            } else if (store instanceof PartitionedMetricStore) {
+                store = ((PartitionedMetricStore) store).getStore();
+            } else if (store instanceof InstrumentedMetricStore) {
+                store = ((InstrumentedMetricStore) store).getStore();
+            } else {
+                store = null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * New metrics are loaded in background if lazy loading is enabled, or if journaling store is in outage,
+     * so creating metric never waits for or fails because of unavailable store.
+     */
+    private boolean isLazy() {
+        return lazyLoading || (journal != null && !journal.isAvailable());
+    }
+
+    /**
+     * Reads state of new metric, or returns {@link #UNAVAILABLE} if journaling store can't read it,
+     * then metric is loaded in background instead.
+     */
+    private byte[] readState(String name) {
+        try {
+            return store.getState(name);
+        } catch (RuntimeException e) {
+            if (journal == null) {
+                throw e;
+            }
+            log.debug("Loading metric " + name + " in background: " + e);
+            return UNAVAILABLE;
+        }
+    }
+
+    /**
+     * Loader of metrics in lazy loading mode. Created on first use.
+     */
+    private synchronized MetricLoader getLoader() {
+        if (loader == null) {
+            loader = new MetricLoader(MetricLoader.DEFAULT_THREADS);
+            loader.setRetryInterval(loadRetryInterval);
+        }
+        return loader;
+    }
+
+    /**
+     * Metrics of persistence layer, registered under {@link PersistenceStats#PREFIX}.
+     */
+    public PersistenceStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return store metrics are persisted in, wrapped in {@link InstrumentedMetricStore}
+     */
+    public MetricStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return write-behind flusher or null if every update is saved immediately
+     */
+    public WriteBehindFlusher getFlusher() {
+        return flusher;
+    }
+
     @SuppressWarnings("unchecked")
     private <T extends Metric> T getOrAdd(String name, MetricBuilder<T> builder) {
         final Metric metric = metrics.get(name);
@@ -460,16 +1028,22 @@ public class PersistentMetricRegistry extends MetricRegistry {
         throw new IllegalArgumentException(name + " is already used for a different type of metric");
     }
 
+    /**
+     * Returns metrics of given type from index. Without filter returns read-only live view, otherwise copies matching metrics.
+     */
     @SuppressWarnings("unchecked")
     private <T extends Metric> SortedMap<String, T> getMetrics(Class<T> klass, MetricFilter filter) {
-        final TreeMap<String, T> timers = new TreeMap<String, T>();
-        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
-            if (klass.isInstance(entry.getValue()) && filter.matches(entry.getKey(),
-                                                                     entry.getValue())) {
-                timers.put(entry.getKey(), (T) entry.getValue());
+        final SortedMap<String, Metric> index = index(klass);
+        if (filter == MetricFilter.ALL) {
+            return (SortedMap<String, T>) Collections.unmodifiableSortedMap(index);
+        }
+        final TreeMap<String, T> matching = new TreeMap<String, T>();
+        for (Map.Entry<String, Metric> entry : index.entrySet()) {
+            if (filter.matches(entry.getKey(), entry.getValue())) {
+                matching.put(entry.getKey(), (T) entry.getValue());
             }
         }
-        return Collections.unmodifiableSortedMap(timers);
+        return Collections.unmodifiableSortedMap(matching);
     }
 
     private void onMetricAdded(String name, Metric metric) {
@@ -531,58 +1105,87 @@ public class PersistentMetricRegistry extends MetricRegistry {
         return Collections.unmodifiableMap(metrics);
     }
 
-    /**
-     * A quick and easy way of capturing the notion of default metrics.
-     */
-    private interface MetricBuilder<T extends Metric> {
-        MetricBuilder<Counter> COUNTERS = new MetricBuilder<Counter>() {
-            @Override
-            public Counter newMetric(String name) {
-                return new PersistentCounter(name);
+    private final MetricBuilder<Counter> counters = new MetricBuilder<Counter>() {
+        @Override
+        public Counter newMetric(String name) {
+            if (deltaCounters) {
+                if (!isLazy()) {
+                    try {
+                        return new PersistentDeltaCounter(name, store, flusher);
+                    } catch (RuntimeException e) {
+                        if (journal == null) {
+                            throw e;
+                        }
+                        log.debug("Loading metric " + name + " in background: " + e);
+                    }
+                }
+                return new PersistentDeltaCounter(name, store, flusher, getLoader());
             }
+            byte[] state = isLazy() ? UNAVAILABLE : readState(name);
+            return state == UNAVAILABLE ? new PersistentCounter(name, store, flusher, getLoader()) : new PersistentCounter(name, store, flusher, state);
+        }
 
-            @Override
-            public boolean isInstance(Metric metric) {
-                return PersistentCounter.class.isInstance(metric);
-            }
-        };
+        @Override
+        public boolean isInstance(Metric metric) {
+            return PersistentCounter.class.isInstance(metric) || PersistentDeltaCounter.class.isInstance(metric);
+        }
+    };
 
-        MetricBuilder<Histogram> HISTOGRAMS = new MetricBuilder<Histogram>() {
-            @Override
-            public Histogram newMetric(String name) {
-                return new PersistentHistogram(name, new ExponentiallyDecayingReservoir());
+    private final MetricBuilder<Histogram> histograms = new MetricBuilder<Histogram>() {
+        @Override
+        public Histogram newMetric(String name) {
+            byte[] state = isLazy() ? UNAVAILABLE : readState(name);
+            if (state == UNAVAILABLE) {
+                return new PersistentHistogram(name, newReservoir(name, true), store, flusher, getLoader());
             }
+            return new PersistentHistogram(name, newReservoir(name), store, flusher, state);
+        }
 
-            @Override
-            public boolean isInstance(Metric metric) {
-                return PersistentHistogram.class.isInstance(metric);
-            }
-        };
+        @Override
+        public boolean isInstance(Metric metric) {
+            return PersistentHistogram.class.isInstance(metric);
+        }
+    };
 
-        MetricBuilder<Meter> METERS = new MetricBuilder<Meter>() {
-            @Override
-            public Meter newMetric(String name) {
-                return new PersistentMeter(name);
+    private final MetricBuilder<Meter> meters = new MetricBuilder<Meter>() {
+        @Override
+        public Meter newMetric(String name) {
+            if (sharedMeters) {
+                return isLazy() ? new SharedMeter(name, store, flusher, getLoader()) : new SharedMeter(name, store, flusher);
             }
-
-            @Override
-            public boolean isInstance(Metric metric) {
-                return PersistentMeter.class.isInstance(metric);
+            byte[] state = isLazy() ? UNAVAILABLE : readState(name);
+            if (state == UNAVAILABLE) {
+                return new PersistentMeter(name, Clock.defaultClock(), store, flusher, getLoader());
             }
-        };
+            return new PersistentMeter(name, Clock.defaultClock(), store, flusher, state);
+        }
 
-        MetricBuilder<Timer> TIMERS = new MetricBuilder<Timer>() {
-            @Override
-            public Timer newMetric(String name) {
-                return new PersistentTimer(name);
-            }
+        @Override
+        public boolean isInstance(Metric metric) {
+            return PersistentMeter.class.isInstance(metric) || SharedMeter.class.isInstance(metric);
+        }
+    };
 
-            @Override
-            public boolean isInstance(Metric metric) {
-                return PersistentTimer.class.isInstance(metric);
+    private final MetricBuilder<Timer> timers = new MetricBuilder<Timer>() {
+        @Override
+        public Timer newMetric(String name) {
+            byte[] state = isLazy() ? UNAVAILABLE : readState(name);
+            if (state == UNAVAILABLE) {
+                return new PersistentTimer(name, newReservoir(name, true), Clock.defaultClock(), store, flusher, getLoader());
             }
-        };
+            return new PersistentTimer(name, newReservoir(name), Clock.defaultClock(), store, flusher, state);
+        }
+
+        @Override
+        public boolean isInstance(Metric metric) {
+            return PersistentTimer.class.isInstance(metric);
+        }
+    };
 
+    /**
+     * A quick and easy way of capturing the notion of default metrics.
+     */
+    private interface MetricBuilder<T extends Metric> {
         T newMetric(String name);
 
         boolean isInstance(Metric metric);
@@ -1,29 +1,31 @@
 package com.wizecore.metrics;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
-import org.redisson.api.RAtomicDouble;
-import org.redisson.api.RAtomicLong;
-
 import com.codahale.metrics.Clock;
 import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.Reservoir;
-import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
-import com.thoughtworks.xstream.XStream;
+import com.codahale.metrics.UniformReservoir;
 
 /**
- * A persistent wrapper around {@link Timer} instance.
+ * A persistent {@link Timer}. Meter and histogram are kept by timer itself, without wrapped instance.
  */
-public class PersistentTimer extends Timer implements Persistent {
-	private Timer value;
-	private String key;
-	private RAtomicLong count;
-	private RAtomicDouble meanRate;
-	private RAtomicDouble m1Rate;
-	private RAtomicDouble m5Rate;
-	private RAtomicDouble m15Rate;
+public class PersistentTimer extends Timer implements Persistent, UpdateCapture.Target {
+	private Persistent persistentReservoir;
+	private String name;
+	private MetricStore store;
+	private WriteBehindFlusher flusher;
+	private volatile boolean loading;
+	private UniformReservoir buffered;
+	private long bufferedCount;
 
 	public PersistentTimer(String name) {
 		this(name, new ExponentiallyDecayingReservoir());
@@ -34,81 +36,238 @@ public class PersistentTimer extends Timer implements Persistent {
     }
 
     public PersistentTimer(String name, Reservoir reservoir, Clock clock) {
+    	this(name, reservoir, clock, PersistenceUtil.getStore(), null);
+    }
+
+    /**
+     * Creates timer.
+     *
+     * @param name the name of the metric
+     * @param reservoir the reservoir to use for durations
+     * @param clock the clock to use for the timer
+     * @param store store to persist metric in
+     * @param flusher write-behind flusher, if null every update is saved immediately
+     */
+    public PersistentTimer(String name, Reservoir reservoir, Clock clock, MetricStore store, WriteBehindFlusher flusher) {
+    	this(name, reservoir, clock, store, flusher, store.getState(name));
+    }
+
+    /**
+     * Creates timer.
+     *
+     * @param name the name of the metric
+     * @param reservoir the reservoir to use for durations
+     * @param clock the clock to use for the timer
+     * @param store store to persist metric in
+     * @param flusher write-behind flusher, if null every update is saved immediately
+     * @param state persisted state, as returned by {@link MetricStore#getState(String)}, or null if metric is new
+     */
+    public PersistentTimer(String name, Reservoir reservoir, Clock clock, MetricStore store, WriteBehindFlusher flusher, byte[] state) {
     	super(reservoir, clock);
-    	XStream x = new XStream();
-    	key = name + ".xml";
-		String xml = PersistenceUtil.getValue(key);
-		count = PersistenceUtil.createAtomicLong(name + ".count");
-		meanRate = PersistenceUtil.createAtomicDouble(name + ".meanRate");
-		m1Rate = PersistenceUtil.createAtomicDouble(name + ".m1Rate");
-		m5Rate = PersistenceUtil.createAtomicDouble(name + ".m5Rate");
-		m15Rate = PersistenceUtil.createAtomicDouble(name + ".m15Rate");
-    	if (xml != null) {
-    		value = (Timer) x.fromXML(xml);
+    	this.persistentReservoir = reservoir instanceof Persistent ? (Persistent) reservoir : null;
+    	this.name = name;
+    	this.store = store;
+    	this.flusher = flusher;
+    	if (state != null) {
+    		restore(state);
     	} else {
-    		value = new Timer(reservoir, clock);
-        	save();
+        	changed();
     	}
     }
     
-    @Override
-    public void save() {
-    	XStream x = new XStream();
-    	String xml = x.toXML(value);
-    	PersistenceUtil.setValue(key, xml);
-    	count.set(getCount());
-    	meanRate.set(value.getMeanRate());
-    	m1Rate.set(value.getOneMinuteRate());
-    	m5Rate.set(value.getFiveMinuteRate());
-    	m15Rate.set(value.getFifteenMinuteRate());
+    /**
+     * Creates timer which is usable immediately, while its state is loaded by loader.
+     * Until loaded, timer is not saved and buffers sample of local updates, which is replayed into loaded timer.
+     * Rates and snapshot are empty until loaded.
+     *
+     * @param reservoir the reservoir to use for durations, which should load its own state lazily
+     */
+    PersistentTimer(String name, Reservoir reservoir, Clock clock, MetricStore store, WriteBehindFlusher flusher, MetricLoader loader) {
+    	super(reservoir, clock);
+    	this.persistentReservoir = reservoir instanceof Persistent ? (Persistent) reservoir : null;
+    	this.name = name;
+    	this.store = store;
+    	this.flusher = flusher;
+    	buffered = new UniformReservoir(MetricLoader.MAX_BUFFERED);
+    	loading = true;
+    	loader.submit(name, new Runnable() {
+    		@Override
+    		public void run() {
+    			load(PersistentTimer.this.store.getState(PersistentTimer.this.name));
+    		}
+    	});
     }
 
-	@Override
-	public void update(long duration, TimeUnit unit) {
-		value.update(duration, unit);
-		save();
-	}
+    private synchronized void load(byte[] state) {
+    	if (state != null) {
+    		restore(state);
+    	}
+    	long[] sample = buffered.getSnapshot().getValues();
+    	for (long v : sample) {
+    		super.update(v, TimeUnit.NANOSECONDS);
+    	}
+    	if (bufferedCount > sample.length) {
+    		addCount(bufferedCount - sample.length);
+    	}
+    	buffered = null;
+    	bufferedCount = 0;
+    	loading = false;
+    	changed();
+    }
 
-	@Override
-	public <T> T time(Callable<T> event) throws Exception {
-		T v = value.time(event);
-		save();
-		return v;
-	}
+    /**
+     * Adds updates dropped from sample while loading to count and rates, if they are accessible.
+     */
+    private void addCount(long n) {
+    	if (MetricFields.AVAILABLE) {
+    		MetricFields.add(MetricFields.HISTOGRAM_COUNT, MetricFields.<Histogram>get(MetricFields.TIMER_HISTOGRAM, this), n);
+    		MetricFields.<Meter>get(MetricFields.TIMER_METER, this).mark(n);
+    	}
+    }
 
-	@Override
-	public void time(Runnable event) {
-		value.time(event);
-		save();
-	}
+    /**
+     * Restores state into this timer. If codec returns new instance instead, only its snapshot values are kept.
+     */
+    private void restore(byte[] state) {
+    	Timer restored = (Timer) store.getCodec().decode(state, this);
+    	if (restored != this) {
+    		for (long v : restored.getSnapshot().getValues()) {
+    			super.update(v, TimeUnit.NANOSECONDS);
+    		}
+    	}
+    }
 
-	@Override
-	public long getCount() {
-		return value.getCount();
-	}
+    /**
+     * Keeps update until timer is loaded.
+     *
+     * @return false if timer is already loaded
+     */
+    private synchronized boolean buffer(long nanos) {
+    	if (loading) {
+    		buffered.update(nanos);
+    		bufferedCount++;
+    		return true;
+    	}
+    	return false;
+    }
+
+    /**
+     * @return reservoir if it persists itself, otherwise null
+     */
+    Persistent getPersistentReservoir() {
+    	return persistentReservoir;
+    }
+
+    /**
+     * Saves value immediately, or marks it for background save in write-behind mode.
+     */
+    protected void changed() {
+    	if (loading) {
+    		return;
+    	}
+    	if (flusher != null) {
+    		flusher.markDirty(this);
+    	} else {
+    		save();
+    	}
+    }
+    
+    /**
+     * Saves state and all exported values at once.
+     * Reservoir implementing {@link Persistent} is saved first.
+     */
+    @Override
+    public void save() {
+    	if (loading) {
+    		return;
+    	}
+    	long started = System.nanoTime();
+    	byte[] state = store.getCodec().encode(this);
+    	Map<String, Object> values = values();
+    	long encoded = System.nanoTime();
+    	if (persistentReservoir != null) {
+    		persistentReservoir.save();
+    	}
+    	store.save(name, state, values);
+    	Tracing.saved(name, state, values, encoded - started, System.nanoTime() - encoded);
+    }
+
+    /**
+     * Saves reservoir, state and all exported values without waiting for store.
+     */
+    @Override
+    public CompletionStage<Void> saveAsync() {
+    	if (loading) {
+    		return CompletableFuture.completedFuture(null);
+    	}
+    	long started = System.nanoTime();
+    	byte[] state = store.getCodec().encode(this);
+    	Map<String, Object> values = values();
+    	long encoded = System.nanoTime();
+    	CompletionStage<Void> f = store.saveAsync(name, state, values);
+    	if (persistentReservoir != null) {
+    		f = Futures.both(f, persistentReservoir.saveAsync());
+    	}
+    	return Tracing.saved(name, state, values, encoded - started, encoded, f);
+    }
+
+    private Map<String, Object> values() {
+    	Map<String, Object> values = new HashMap<String, Object>();
+    	values.put(MetricStore.COUNT, getCount());
+    	values.put(MetricStore.MEAN_RATE, getMeanRate());
+    	values.put(MetricStore.M1_RATE, getOneMinuteRate());
+    	values.put(MetricStore.M5_RATE, getFiveMinuteRate());
+    	values.put(MetricStore.M15_RATE, getFifteenMinuteRate());
+    	values.put(MetricStore.SNAPSHOT, store.getCodec().encodeSnapshot(getSnapshot()));
+    	return values;
+    }
 
 	@Override
-	public double getFifteenMinuteRate() {
-		return value.getFifteenMinuteRate();
+	public void update(long duration, TimeUnit unit) {
+		long nanos = unit.toNanos(duration);
+		if (flusher == null || !flusher.capture(this, nanos)) {
+			apply(nanos);
+		}
 	}
 
+	/**
+	 * Applies duration in nanoseconds, directly or as captured by {@link UpdateCapture}.
+	 */
 	@Override
-	public double getFiveMinuteRate() {
-		return value.getFiveMinuteRate();
+	public void apply(long nanos) {
+		if (!loading || !buffer(nanos)) {
+			super.update(nanos, TimeUnit.NANOSECONDS);
+		}
+		changed();
 	}
 
 	@Override
-	public double getMeanRate() {
-		return value.getMeanRate();
+	public <T> T time(Callable<T> event) throws Exception {
+		Context context = time();
+		try {
+			return event.call();
+		} finally {
+			context.stop();
+		}
 	}
 
 	@Override
-	public double getOneMinuteRate() {
-		return value.getOneMinuteRate();
+	public void time(Runnable event) {
+		Context context = time();
+		try {
+			event.run();
+		} finally {
+			context.stop();
+		}
 	}
 
 	@Override
-	public Snapshot getSnapshot() {
-		return value.getSnapshot();
+	public long getCount() {
+		if (loading) {
+			synchronized (this) {
+				return super.getCount() + bufferedCount;
+			}
+		}
+		return super.getCount();
 	}
 }
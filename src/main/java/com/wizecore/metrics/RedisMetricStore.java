@@ -0,0 +1,902 @@
+package com.wizecore.metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import org.redisson.api.RBatch;
+import org.redisson.api.RBucket;
+import org.redisson.api.RMap;
+import org.redisson.api.RScoredSortedSet;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.ByteArrayCodec;
+import org.redisson.client.codec.StringCodec;
+
+/**
+ * Stores metrics in Redis using one of two layouts:
+ * <ul>
+ * <li>{@link Layout#KEYS} - every field is stored as separate value named <code>prefix + name + "." + field</code>,
+ * state is stored in <code>name.state</code>. Compatible with previous versions.</li>
+ * <li>{@link Layout#HASH} - every metric is stored as single hash <code>prefix + name + ".hash"</code>
+ * with a field per value, so metric is saved with single <code>HMSET</code> and there are several times less keys.
+ * Numbers and gauges are stored as strings.</li>
+ * </ul>
+ * In both layouts legacy state (<code>name.xml</code> saved by previous versions, and <code>name.state</code>
+ * for hash layout) is read if state is missing, so layout can be changed without losing metrics.
+ * <p>
+ * If retention is set, every write also sets expiration of written keys, so metrics not updated
+ * for retention period are removed by Redis.
+ * </p>
+ */
+public class RedisMetricStore implements MetricStore {
+	/**
+	 * Layout of metric values in Redis.
+	 */
+	public enum Layout {
+		/**
+		 * Separate key per value.
+		 */
+		KEYS,
+		/**
+		 * Single hash per metric.
+		 */
+		HASH
+	}
+
+	private static final String STATE_SUFFIX = MetricKeys.STATE_SUFFIX;
+	private static final String LEGACY_SUFFIX = MetricKeys.LEGACY_SUFFIX;
+	private static final String HASH_SUFFIX = MetricKeys.HASH_SUFFIX;
+	private static final String SHARED_SUFFIX = MetricKeys.SHARED_SUFFIX;
+	private static final String OPS_SUFFIX = MetricKeys.OPS_SUFFIX;
+	private static final String HASH_VALUE = "value";
+	private static final byte[] HASH_STATE = STATE.getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Deletes keys with non-blocking <code>UNLINK</code>, falls back to <code>DEL</code> on Redis before 4.0.
+	 */
+	private static final String UNLINK = "if not pcall(redis.call, 'unlink', unpack(KEYS)) then redis.call('del', unpack(KEYS)) end";
+
+	/**
+	 * Marks shared meter. KEYS[1] is hash with state of meter, KEYS[2] is metric hash for hash layout,
+	 * or KEYS[2..6] are keys of count and rates, last key is hash with id of last operation of each writer.
+	 * ARGV is number of marks, <code>hash</code> or <code>keys</code>, retention in milliseconds, writer and operation id,
+	 * marks of operation already applied are not added again. Rates are ticked every 5 seconds by Redis time, like {@link com.codahale.metrics.Meter} does.
+	 * Returns count, mean rate and 1, 5 and 15 minute rates as strings.
+	 */
+	private static final String MARK_SHARED =
+			"if redis.replicate_commands then redis.replicate_commands() end\n" +
+			"local t = redis.call('time')\n" +
+			"local now = tonumber(t[1]) * 1000000 + tonumber(t[2])\n" +
+			"local s = redis.call('hmget', KEYS[1], 'count', 'start', 'tick', 'uncounted', 'm1', 'm5', 'm15')\n" +
+			"local count = tonumber(s[1]) or 0\n" +
+			"local start = tonumber(s[2]) or now\n" +
+			"local tick = tonumber(s[3]) or now\n" +
+			"local uncounted = tonumber(s[4]) or 0\n" +
+			"local rates = { tonumber(s[5]), tonumber(s[6]), tonumber(s[7]) }\n" +
+			"local periods = { 1, 5, 15 }\n" +
+			"local age = now - tick\n" +
+			"if age > 5000000 then\n" +
+			"  local ticks = math.floor(age / 5000000)\n" +
+			"  tick = now - age % 5000000\n" +
+			"  for i = 1, 3 do\n" +
+			"    local alpha = 1 - math.exp(-5 / 60 / periods[i])\n" +
+			"    local rate = uncounted / 5\n" +
+			"    if rates[i] then rate = rates[i] + alpha * (rate - rates[i]) end\n" +
+			"    rates[i] = rate * (1 - alpha) ^ (ticks - 1)\n" +
+			"  end\n" +
+			"  uncounted = 0\n" +
+			"end\n" +
+			"local n = tonumber(ARGV[1])\n" +
+			"local ops = KEYS[#KEYS]\n" +
+			"if redis.call('hget', ops, ARGV[4]) == ARGV[5] then n = 0 end\n" +
+			"count = count + n\n" +
+			"uncounted = uncounted + n\n" +
+			"local r = {}\n" +
+			"for i = 1, 3 do r[i] = rates[i] and string.format('%.17g', rates[i]) or '' end\n" +
+			"redis.call('hmset', KEYS[1], 'count', string.format('%d', count), 'start', string.format('%d', start), " +
+			"'tick', string.format('%d', tick), 'uncounted', string.format('%d', uncounted), 'm1', r[1], 'm5', r[2], 'm15', r[3])\n" +
+			"local elapsed = (now - start) / 1000000\n" +
+			"local mean = 0\n" +
+			"if count ~= 0 and elapsed > 0 then mean = count / elapsed end\n" +
+			"local values = { string.format('%d', count), string.format('%.17g', mean) }\n" +
+			"for i = 1, 3 do values[i + 2] = string.format('%.17g', rates[i] or 0) end\n" +
+			"if ARGV[2] == 'hash' then\n" +
+			"  redis.call('hmset', KEYS[2], 'count', values[1], 'meanRate', values[2], 'm1Rate', values[3], 'm5Rate', values[4], 'm15Rate', values[5])\n" +
+			"else\n" +
+			"  for i = 1, 5 do redis.call('set', KEYS[i + 1], values[i]) end\n" +
+			"end\n" +
+			"redis.call('hset', ops, ARGV[4], ARGV[5])\n" +
+			"if tonumber(ARGV[3]) > 0 then\n" +
+			"  for i = 1, #KEYS do redis.call('pexpire', KEYS[i], ARGV[3]) end\n" +
+			"end\n" +
+			"return values";
+
+	/**
+	 * Adds delta at most once per operation. KEYS[1] is key of integer value or metric hash for hash layout,
+	 * KEYS[2] is hash with id of last operation of each writer. ARGV is delta, writer, operation id,
+	 * <code>hash</code> or <code>keys</code>, field of metric hash and retention in milliseconds.
+	 * Returns new value, or current value if operation was already applied.
+	 */
+	private static final String ADD_ONCE =
+			"local v\n" +
+			"if redis.call('hget', KEYS[2], ARGV[2]) == ARGV[3] then\n" +
+			"  if ARGV[4] == 'hash' then v = redis.call('hget', KEYS[1], ARGV[5]) else v = redis.call('get', KEYS[1]) end\n" +
+			"  return tonumber(v) or 0\n" +
+			"end\n" +
+			"if ARGV[4] == 'hash' then v = redis.call('hincrby', KEYS[1], ARGV[5], ARGV[1]) else v = redis.call('incrby', KEYS[1], ARGV[1]) end\n" +
+			"redis.call('hset', KEYS[2], ARGV[2], ARGV[3])\n" +
+			"if tonumber(ARGV[6]) > 0 then\n" +
+			"  for i = 1, #KEYS do redis.call('pexpire', KEYS[i], ARGV[6]) end\n" +
+			"end\n" +
+			"return v";
+
+	/**
+	 * Maximum number of metrics deleted in single pipelined batch.
+	 */
+	public static final int DELETE_BATCH_SIZE = 500;
+
+	private RedissonClient redis;
+	private String prefix;
+	private final StateCodec codec;
+	private final Layout layout;
+	private volatile long retention;
+	private volatile String unlinkSha;
+	private volatile String markSharedSha;
+	private volatile String addOnceSha;
+
+	/**
+	 * Creates store using shared Redis client, prefix and layout, configured in {@link PersistenceUtil}.
+	 * Client is initialized on first use.
+	 */
+	public RedisMetricStore() {
+		this(null, null, null, PersistenceUtil.getLayout());
+		retention = TimeUnit.SECONDS.toMillis(PersistenceUtil.getRetention());
+	}
+
+	/**
+	 * Creates store with given client and prefix using {@link Layout#KEYS}.
+	 *
+	 * @param redis Redis client
+	 * @param prefix prefix for all values, dot is appended if missing
+	 * @param codec state codec, if null {@link PersistenceUtil#getStateCodec()} is used
+	 */
+	public RedisMetricStore(RedissonClient redis, String prefix, StateCodec codec) {
+		this(redis, prefix, codec, Layout.KEYS);
+	}
+
+	/**
+	 * Creates store with given client, prefix and layout.
+	 *
+	 * @param redis Redis client
+	 * @param prefix prefix for all values, dot is appended if missing
+	 * @param codec state codec, if null {@link PersistenceUtil#getStateCodec()} is used
+	 * @param layout layout of values
+	 */
+	public RedisMetricStore(RedissonClient redis, String prefix, StateCodec codec, Layout layout) {
+		this.redis = redis;
+		this.prefix = prefix != null && !prefix.endsWith(".") ? prefix + "." : prefix;
+		this.codec = codec != null ? codec : PersistenceUtil.getStateCodec();
+		this.layout = layout;
+	}
+
+	/**
+	 * Makes lazy initialization of shared client.
+	 */
+	private RedissonClient redis() {
+		if (redis == null) {
+			synchronized (this) {
+				if (redis == null) {
+					RedissonClient client = PersistenceUtil.getRedis();
+					if (prefix == null) {
+						prefix = PersistenceUtil.getMetricPrefix();
+					}
+					redis = client;
+				}
+			}
+		}
+		return redis;
+	}
+
+	/**
+	 * Full name of value in Redis.
+	 */
+	protected String key(String name, String field) {
+		redis();
+		return field.length() == 0 ? prefix + name : prefix + name + "." + field;
+	}
+
+	@Override
+	public StateCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Name of metric hash in {@link Layout#HASH}.
+	 */
+	protected String hashKey(String name) {
+		redis();
+		return prefix + name + HASH_SUFFIX;
+	}
+
+	/**
+	 * Name of value field in metric hash.
+	 */
+	private static String hashField(String field) {
+		return field.length() == 0 ? HASH_VALUE : field;
+	}
+
+	private RMap<byte[], byte[]> hash(String name) {
+		return redis().getMap(hashKey(name), ByteArrayCodec.INSTANCE);
+	}
+
+	/**
+	 * Encodes value for hash. Numbers and other objects are stored as strings, so they can be read
+	 * and incremented by other clients.
+	 */
+	private static byte[] encode(Object value) {
+		if (value instanceof byte[]) {
+			return (byte[]) value;
+		}
+		return String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+	}
+
+	public String getPrefix() {
+		redis();
+		return prefix;
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Retention of metric values, in milliseconds, 0 if values never expire.
+	 */
+	public long getRetention() {
+		return retention;
+	}
+
+	/**
+	 * Sets expiration of values written after this call. Metrics not updated for this time are removed by Redis.
+	 *
+	 * @param retention retention period, 0 to keep values forever
+	 */
+	public void setRetention(long retention, TimeUnit unit) {
+		this.retention = unit.toMillis(retention);
+	}
+
+	/**
+	 * Adds expiration of key to batch, if retention is set.
+	 */
+	private void expire(RBatch batch, String key) {
+		if (retention > 0) {
+			batch.getBucket(key).expireAsync(retention, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public byte[] getState(String name) {
+		byte[] state = null;
+		if (layout == Layout.HASH) {
+			state = hash(name).get(HASH_STATE);
+		}
+		if (state == null) {
+			RBucket<byte[]> b = redis().getBucket(key(name, STATE), ByteArrayCodec.INSTANCE);
+			state = b.get();
+		}
+		if (state == null) {
+			RBucket<String> legacy = redis().getBucket(prefix + name + LEGACY_SUFFIX);
+			String xml = legacy.get();
+			if (xml != null) {
+				state = xml.getBytes(StandardCharsets.UTF_8);
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Reads serialized state of all metrics saved under prefix, including legacy XML state.
+	 * Keys are enumerated with <code>SCAN</code>, values are fetched with pipelined <code>GET</code>
+	 * (<code>HGET</code> for hash layout) in batches, one round trip per batch.
+	 *
+	 * @param batchSize number of keys per <code>SCAN</code> and per pipelined batch
+	 * @return metric name to state
+	 */
+	@Override
+	public Map<String, byte[]> getAllStates(int batchSize) {
+		return getAllStates("", batchSize);
+	}
+
+	/**
+	 * Reads serialized state of metrics with names starting with given prefix,
+	 * only their keys are enumerated with <code>SCAN</code>.
+	 */
+	@Override
+	public Map<String, byte[]> getAllStates(String namePrefix, int batchSize) {
+		Map<String, byte[]> states = new HashMap<String, byte[]>();
+		String pattern = escapePattern(getPrefix() + namePrefix);
+		List<String> names = new ArrayList<String>();
+		if (layout == Layout.HASH) {
+			for (String key : redis().getKeys().getKeysByPattern(pattern + "*" + HASH_SUFFIX, batchSize)) {
+				names.add(key.substring(prefix.length(), key.length() - HASH_SUFFIX.length()));
+				if (names.size() >= batchSize) {
+					fetchStates(names, HASH_SUFFIX, states);
+				}
+			}
+			fetchStates(names, HASH_SUFFIX, states);
+		}
+		fetchLooseStates(pattern, names, batchSize, states);
+		return states;
+	}
+
+	/**
+	 * Reads states stored as separate keys, skipping metrics already read.
+	 */
+	private void fetchLooseStates(String pattern, List<String> names, int batchSize, Map<String, byte[]> states) {
+		for (String key : redis().getKeys().getKeysByPattern(pattern + "*" + STATE_SUFFIX, batchSize)) {
+			String name = key.substring(prefix.length(), key.length() - STATE_SUFFIX.length());
+			if (!states.containsKey(name)) {
+				names.add(name);
+				if (names.size() >= batchSize) {
+					fetchStates(names, STATE_SUFFIX, states);
+				}
+			}
+		}
+		fetchStates(names, STATE_SUFFIX, states);
+
+		for (String key : redis().getKeys().getKeysByPattern(pattern + "*" + LEGACY_SUFFIX, batchSize)) {
+			String name = key.substring(prefix.length(), key.length() - LEGACY_SUFFIX.length());
+			if (!states.containsKey(name)) {
+				names.add(name);
+				if (names.size() >= batchSize) {
+					fetchStates(names, LEGACY_SUFFIX, states);
+				}
+			}
+		}
+		fetchStates(names, LEGACY_SUFFIX, states);
+	}
+
+	/**
+	 * Fetches values of given metrics in single pipelined batch and clears list of names.
+	 */
+	private void fetchStates(List<String> names, String suffix, Map<String, byte[]> states) {
+		if (names.isEmpty()) {
+			return;
+		}
+		boolean legacy = suffix.equals(LEGACY_SUFFIX);
+		RBatch batch = redis().createBatch();
+		for (String name : names) {
+			if (suffix.equals(HASH_SUFFIX)) {
+				batch.getMap(prefix + name + suffix, ByteArrayCodec.INSTANCE).getAsync(HASH_STATE);
+			} else if (legacy) {
+				batch.getBucket(prefix + name + suffix).getAsync();
+			} else {
+				batch.getBucket(prefix + name + suffix, ByteArrayCodec.INSTANCE).getAsync();
+			}
+		}
+		List<?> values = batch.execute();
+		for (int i = 0; i < names.size(); i++) {
+			Object v = values.get(i);
+			if (v instanceof byte[]) {
+				states.put(names.get(i), (byte[]) v);
+			} else if (v instanceof String) {
+				states.put(names.get(i), ((String) v).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		names.clear();
+	}
+
+	/**
+	 * Reads exported values of all metrics saved under prefix, in both layouts.
+	 * Keys are enumerated with <code>SCAN</code>, values are fetched with pipelined <code>GET</code>
+	 * (<code>HGETALL</code> for hash layout) in batches, one round trip per batch.
+	 *
+	 * @param batchSize number of keys per <code>SCAN</code> and per pipelined batch
+	 * @return metric name to values by field
+	 */
+	@Override
+	public Map<String, Map<String, Object>> getAllValues(int batchSize) {
+		Map<String, Map<String, Object>> values = new HashMap<String, Map<String, Object>>();
+		List<String> keys = new ArrayList<String>();
+		for (String key : redis().getKeys().getKeysByPattern(escapePattern(getPrefix()) + "*", batchSize)) {
+			keys.add(key.substring(prefix.length()));
+			if (keys.size() >= batchSize) {
+				fetchValues(keys, values);
+			}
+		}
+		fetchValues(keys, values);
+		return values;
+	}
+
+	/**
+	 * Fetches values of given keys in single pipelined batch and clears list of keys.
+	 */
+	@SuppressWarnings("unchecked")
+	private void fetchValues(List<String> keys, Map<String, Map<String, Object>> values) {
+		RBatch batch = redis().createBatch();
+		List<String> names = new ArrayList<String>();
+		List<String> fields = new ArrayList<String>();
+		for (String key : keys) {
+			if (key.endsWith(HASH_SUFFIX)) {
+				batch.getMap(prefix + key, ByteArrayCodec.INSTANCE).readAllEntrySetAsync();
+				names.add(key.substring(0, key.length() - HASH_SUFFIX.length()));
+				fields.add(null);
+				continue;
+			}
+			String field = MetricKeys.fieldOf(key);
+			if (field == null) {
+				continue;
+			}
+			if (field.equals(SNAPSHOT)) {
+				batch.getBucket(prefix + key, ByteArrayCodec.INSTANCE).getAsync();
+			} else if (field.equals(GAUGE)) {
+				batch.getBucket(prefix + key).getAsync();
+			} else {
+				batch.getBucket(prefix + key, StringCodec.INSTANCE).getAsync();
+			}
+			names.add(MetricKeys.nameOf(key, field));
+			fields.add(field);
+		}
+		keys.clear();
+		if (names.isEmpty()) {
+			return;
+		}
+		List<?> results = batch.execute();
+		for (int i = 0; i < names.size(); i++) {
+			Object v = results.get(i);
+			if (v == null) {
+				continue;
+			}
+			Map<String, Object> m = values.get(names.get(i));
+			if (m == null) {
+				m = new HashMap<String, Object>();
+				values.put(names.get(i), m);
+			}
+			String field = fields.get(i);
+			if (field == null) {
+				for (Map.Entry<byte[], byte[]> e : (Collection<Map.Entry<byte[], byte[]>>) v) {
+					String f = new String(e.getKey(), StandardCharsets.UTF_8);
+					f = f.equals(HASH_VALUE) ? VALUE : f;
+					if (!f.equals(STATE)) {
+						m.put(f, f.equals(SNAPSHOT) ? e.getValue() : parse(f, new String(e.getValue(), StandardCharsets.UTF_8)));
+					}
+				}
+			} else {
+				m.put(field, v instanceof String ? parse(field, (String) v) : v);
+			}
+		}
+	}
+
+	/**
+	 * Parses value stored as string: integers for count and value, doubles for rates, numbers or strings for gauges.
+	 */
+	static Object parse(String field, String s) {
+		try {
+			if (field.equals(VALUE) || field.equals(COUNT)) {
+				return Long.valueOf(s);
+			}
+			return Double.valueOf(s);
+		} catch (NumberFormatException e) {
+			return s;
+		}
+	}
+
+	/**
+	 * Escapes glob special characters for use in <code>SCAN</code> pattern.
+	 */
+	static String escapePattern(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 8);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+				sb.append('\\');
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Saves state and all exported values in single pipelined round trip,
+	 * or with single <code>HMSET</code> for hash layout.
+	 */
+	@Override
+	public void save(String name, byte[] state, Map<String, Object> values) {
+		if (layout == Layout.HASH && retention <= 0) {
+			hash(name).putAll(hashFields(state, values));
+			return;
+		}
+		batch(name, state, values).execute();
+	}
+
+	/**
+	 * Sends state and all exported values without blocking, returned stage is completed once Redis replies.
+	 */
+	@Override
+	public CompletionStage<Void> saveAsync(String name, byte[] state, Map<String, Object> values) {
+		if (layout == Layout.HASH && retention <= 0) {
+			return hash(name).putAllAsync(hashFields(state, values));
+		}
+		return Futures.discard(batch(name, state, values).executeAsync());
+	}
+
+	private Map<byte[], byte[]> hashFields(byte[] state, Map<String, Object> values) {
+		Map<byte[], byte[]> fields = new HashMap<byte[], byte[]>();
+		fields.put(HASH_STATE, state);
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			fields.put(hashField(e.getKey()).getBytes(StandardCharsets.UTF_8), encode(e.getValue()));
+		}
+		return fields;
+	}
+
+	private RBatch batch(String name, byte[] state, Map<String, Object> values) {
+		RBatch batch = redis().createBatch();
+		if (layout == Layout.HASH) {
+			batch.getMap(hashKey(name), ByteArrayCodec.INSTANCE).putAllAsync(hashFields(state, values));
+			expire(batch, hashKey(name));
+			return batch;
+		}
+		batch.getBucket(key(name, STATE), ByteArrayCodec.INSTANCE).setAsync(state);
+		expire(batch, key(name, STATE));
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			set(batch, key(name, e.getKey()), e.getValue());
+			expire(batch, key(name, e.getKey()));
+		}
+		return batch;
+	}
+
+	/**
+	 * Adds set command to batch. Numbers are stored as Redis numbers, so they can be read and incremented by other clients.
+	 */
+	private static void set(RBatch batch, String key, Object value) {
+		if (value instanceof Long) {
+			batch.getAtomicLong(key).setAsync((Long) value);
+		} else if (value instanceof Double) {
+			batch.getAtomicDouble(key).setAsync((Double) value);
+		} else if (value instanceof byte[]) {
+			batch.getBucket(key, ByteArrayCodec.INSTANCE).setAsync(value);
+		} else {
+			batch.getBucket(key).setAsync(value);
+		}
+	}
+
+	@Override
+	public long addAndGet(String name, String field, long delta) {
+		if (retention > 0) {
+			RBatch batch = redis().createBatch();
+			String key;
+			if (layout == Layout.HASH) {
+				key = hashKey(name);
+				batch.<String, Object>getMap(key, StringCodec.INSTANCE).addAndGetAsync(hashField(field), delta);
+			} else {
+				key = key(name, field);
+				batch.getAtomicLong(key).addAndGetAsync(delta);
+			}
+			expire(batch, key);
+			return ((Number) batch.execute().get(0)).longValue();
+		}
+		if (layout == Layout.HASH) {
+			RMap<String, Object> map = redis().getMap(hashKey(name), StringCodec.INSTANCE);
+			return ((Number) map.addAndGet(hashField(field), delta)).longValue();
+		}
+		return redis().getAtomicLong(key(name, field)).addAndGet(delta);
+	}
+
+	/**
+	 * Adds delta with single Lua script, which remembers id of last operation of each writer in hash <code>name.ops</code>.
+	 * Script is routed by value key, in Redis cluster prefix should contain hash tag, so all keys of metric are in one slot.
+	 */
+	@Override
+	public long addAndGetOnce(String name, String field, long delta, String writer, String id) {
+		try {
+			return addAndGetOnce(name, field, delta, writer, id, addOnceSha());
+		} catch (RuntimeException e) {
+			if (!isNoScript(e)) {
+				throw e;
+			}
+			addOnceSha = null;
+			return addAndGetOnce(name, field, delta, writer, id, addOnceSha());
+		}
+	}
+
+	private long addAndGetOnce(String name, String field, long delta, String writer, String id, String sha) {
+		RBatch batch = redis().createBatch();
+		String key = layout == Layout.HASH ? hashKey(name) : key(name, field);
+		List<Object> keys = new ArrayList<Object>();
+		keys.add(key);
+		keys.add(prefix + name + OPS_SUFFIX);
+		batch.getScript().evalShaAsync(key, RScript.Mode.READ_WRITE, StringCodec.INSTANCE, sha, RScript.ReturnType.INTEGER,
+				keys, String.valueOf(delta), writer, id, layout == Layout.HASH ? "hash" : "keys", hashField(field), String.valueOf(retention));
+		return ((Number) batch.execute().get(0)).longValue();
+	}
+
+	/**
+	 * @return SHA1 digest of add once script, loaded into Redis on first use
+	 */
+	private String addOnceSha() {
+		String sha = addOnceSha;
+		if (sha == null) {
+			sha = redis().getScript().scriptLoad(ADD_ONCE);
+			addOnceSha = sha;
+		}
+		return sha;
+	}
+
+	/**
+	 * Marks shared meter with single Lua script, which keeps state of meter in hash <code>name.shared</code>
+	 * and writes count and rates as exported values. Script is routed by state key, in Redis cluster
+	 * prefix should contain hash tag, e.g. <code>{metrics}.</code>, so all keys of metric are in one slot.
+	 * Script is loaded once and called by its digest, it is reloaded if Redis has lost it, e.g. after restart.
+	 */
+	@Override
+	public Map<String, Object> markShared(String name, long n, String writer, String id) {
+		List<?> result;
+		try {
+			result = markShared(name, n, writer, id, markSharedSha());
+		} catch (RuntimeException e) {
+			if (!isNoScript(e)) {
+				throw e;
+			}
+			markSharedSha = null;
+			result = markShared(name, n, writer, id, markSharedSha());
+		}
+		Map<String, Object> values = new HashMap<String, Object>();
+		values.put(COUNT, Long.valueOf((String) result.get(0)));
+		values.put(MEAN_RATE, Double.valueOf((String) result.get(1)));
+		values.put(M1_RATE, Double.valueOf((String) result.get(2)));
+		values.put(M5_RATE, Double.valueOf((String) result.get(3)));
+		values.put(M15_RATE, Double.valueOf((String) result.get(4)));
+		return values;
+	}
+
+	private List<?> markShared(String name, long n, String writer, String id, String sha) {
+		RBatch batch = redis().createBatch();
+		String state = prefix + name + SHARED_SUFFIX;
+		List<Object> keys = new ArrayList<Object>();
+		keys.add(state);
+		if (layout == Layout.HASH) {
+			keys.add(hashKey(name));
+		} else {
+			for (String field : new String[] { COUNT, MEAN_RATE, M1_RATE, M5_RATE, M15_RATE }) {
+				keys.add(key(name, field));
+			}
+		}
+		keys.add(prefix + name + OPS_SUFFIX);
+		batch.getScript().evalShaAsync(state, RScript.Mode.READ_WRITE, StringCodec.INSTANCE, sha, RScript.ReturnType.MULTI,
+				keys, String.valueOf(n), layout == Layout.HASH ? "hash" : "keys", String.valueOf(retention), writer, id);
+		return (List<?>) batch.execute().get(0);
+	}
+
+	/**
+	 * @return SHA1 digest of shared meter script, loaded into Redis on first use
+	 */
+	private String markSharedSha() {
+		String sha = markSharedSha;
+		if (sha == null) {
+			sha = redis().getScript().scriptLoad(MARK_SHARED);
+			markSharedSha = sha;
+		}
+		return sha;
+	}
+
+	/**
+	 * @return true if script called by digest is not loaded in Redis
+	 */
+	private static boolean isNoScript(RuntimeException e) {
+		return e.getMessage() != null && e.getMessage().contains("NOSCRIPT");
+	}
+
+	@Override
+	public void setValue(String name, String field, Object value) {
+		if (retention > 0) {
+			valueBatch(name, field, value).execute();
+			return;
+		}
+		if (layout == Layout.HASH) {
+			hash(name).fastPut(hashField(field).getBytes(StandardCharsets.UTF_8), encode(value));
+			return;
+		}
+		redis().getBucket(key(name, field)).set(value);
+	}
+
+	@Override
+	public CompletionStage<Void> setValueAsync(String name, String field, Object value) {
+		if (retention > 0) {
+			return Futures.discard(valueBatch(name, field, value).executeAsync());
+		}
+		if (layout == Layout.HASH) {
+			return Futures.discard(hash(name).fastPutAsync(hashField(field).getBytes(StandardCharsets.UTF_8), encode(value)));
+		}
+		return redis().getBucket(key(name, field)).setAsync(value);
+	}
+
+	private RBatch valueBatch(String name, String field, Object value) {
+		RBatch batch = redis().createBatch();
+		if (layout == Layout.HASH) {
+			batch.getMap(hashKey(name), ByteArrayCodec.INSTANCE).fastPutAsync(hashField(field).getBytes(StandardCharsets.UTF_8), encode(value));
+			expire(batch, hashKey(name));
+		} else {
+			batch.getBucket(key(name, field)).setAsync(value);
+			expire(batch, key(name, field));
+		}
+		return batch;
+	}
+
+	/**
+	 * Shards are stored as Redis hash, field per node.
+	 */
+	@Override
+	public void putShard(String name, String field, String node, byte[] data) {
+		if (retention > 0) {
+			shardBatch(name, field, node, data).execute();
+			return;
+		}
+		RMap<byte[], byte[]> map = redis().getMap(key(name, field), ByteArrayCodec.INSTANCE);
+		map.fastPut(node.getBytes(StandardCharsets.UTF_8), data);
+	}
+
+	@Override
+	public CompletionStage<Void> putShardAsync(String name, String field, String node, byte[] data) {
+		if (retention > 0) {
+			return Futures.discard(shardBatch(name, field, node, data).executeAsync());
+		}
+		RMap<byte[], byte[]> map = redis().getMap(key(name, field), ByteArrayCodec.INSTANCE);
+		return Futures.discard(map.fastPutAsync(node.getBytes(StandardCharsets.UTF_8), data));
+	}
+
+	private RBatch shardBatch(String name, String field, String node, byte[] data) {
+		RBatch batch = redis().createBatch();
+		batch.getMap(key(name, field), ByteArrayCodec.INSTANCE).fastPutAsync(node.getBytes(StandardCharsets.UTF_8), data);
+		expire(batch, key(name, field));
+		return batch;
+	}
+
+	@Override
+	public Map<String, byte[]> getShards(String name, String field) {
+		RMap<byte[], byte[]> map = redis().getMap(key(name, field), ByteArrayCodec.INSTANCE);
+		Map<String, byte[]> shards = new HashMap<String, byte[]>();
+		for (Map.Entry<byte[], byte[]> e : map.readAllEntrySet()) {
+			shards.put(new String(e.getKey(), StandardCharsets.UTF_8), e.getValue());
+		}
+		return shards;
+	}
+
+	/**
+	 * Series is stored as sorted set <code>name.series</code> scored by time, with expiration set to retention,
+	 * so series of metrics which are not recorded anymore are removed too.
+	 */
+	@Override
+	public void addPoint(String name, String series, long time, String point, long retention) {
+		String key = key(name, series);
+		RBatch batch = redis().createBatch();
+		batch.getScoredSortedSet(key, StringCodec.INSTANCE).addAsync(time, point);
+		batch.getScoredSortedSet(key, StringCodec.INSTANCE).removeRangeByScoreAsync(0, true, time - retention, false);
+		batch.getBucket(key).expireAsync(retention, TimeUnit.MILLISECONDS);
+		batch.executeSkipResult();
+	}
+
+	@Override
+	public List<String> getPoints(String name, String series, long from, long to) {
+		RScoredSortedSet<String> set = redis().getScoredSortedSet(key(name, series), StringCodec.INSTANCE);
+		return new ArrayList<String>(set.valueRange(from, true, to, true));
+	}
+
+	/**
+	 * Adds points of all metrics in single pipelined batch.
+	 */
+	@Override
+	public void addPoints(String series, long time, Map<String, String> points, long retention) {
+		if (points.isEmpty()) {
+			return;
+		}
+		RBatch batch = redis().createBatch();
+		for (Map.Entry<String, String> e : points.entrySet()) {
+			String key = key(e.getKey(), series);
+			batch.getScoredSortedSet(key, StringCodec.INSTANCE).addAsync(time, e.getValue());
+			batch.getScoredSortedSet(key, StringCodec.INSTANCE).removeRangeByScoreAsync(0, true, time - retention, false);
+			batch.getBucket(key).expireAsync(retention, TimeUnit.MILLISECONDS);
+		}
+		batch.executeSkipResult();
+	}
+
+	/**
+	 * Reads points of all metrics in single pipelined batch.
+	 */
+	@Override
+	public Map<String, List<String>> getPoints(Collection<String> names, String series, long from, long to) {
+		Map<String, List<String>> points = new HashMap<String, List<String>>();
+		if (names.isEmpty()) {
+			return points;
+		}
+		List<String> list = new ArrayList<String>(names);
+		RBatch batch = redis().createBatch();
+		for (String name : list) {
+			batch.getScoredSortedSet(key(name, series), StringCodec.INSTANCE).valueRangeAsync(from, true, to, true);
+		}
+		List<?> values = batch.execute();
+		for (int i = 0; i < list.size(); i++) {
+			List<String> p = new ArrayList<String>();
+			for (Object v : (Collection<?>) values.get(i)) {
+				p.add((String) v);
+			}
+			points.put(list.get(i), p);
+		}
+		return points;
+	}
+
+	/**
+	 * Deletes all keys of metrics, in both layouts, including legacy state, shared meter state, operation ids of delta counters and history series.
+	 * Keys are removed with <code>UNLINK</code>, so memory is freed by Redis in background.
+	 * All keys of metric are removed by one call of script loaded once, in pipelined batches
+	 * of {@link #DELETE_BATCH_SIZE} metrics. In Redis cluster use metric prefix with hash tag,
+	 * so all keys of metric are in one slot.
+	 */
+	@Override
+	public void delete(Collection<String> names) {
+		List<String> batch = new ArrayList<String>();
+		for (String name : names) {
+			batch.add(name);
+			if (batch.size() >= DELETE_BATCH_SIZE) {
+				unlink(batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			unlink(batch);
+		}
+	}
+
+	/**
+	 * Unlinks keys of metrics in one batch, reloading script if Redis has lost it, e.g. after restart.
+	 */
+	private void unlink(List<String> names) {
+		try {
+			unlink(names, unlinkSha());
+		} catch (RuntimeException e) {
+			if (!isNoScript(e)) {
+				throw e;
+			}
+			unlinkSha = null;
+			unlink(names, unlinkSha());
+		}
+	}
+
+	private void unlink(List<String> names, String sha) {
+		RBatch batch = redis().createBatch();
+		for (String name : names) {
+			List<Object> keys = new ArrayList<Object>();
+			keys.add(key(name, STATE));
+			keys.add(prefix + name + LEGACY_SUFFIX);
+			keys.add(hashKey(name));
+			keys.add(prefix + name + SHARED_SUFFIX);
+			keys.add(prefix + name + OPS_SUFFIX);
+			for (String field : FIELDS) {
+				keys.add(key(name, field));
+			}
+			for (HistoryRecorder.Resolution r : HistoryRecorder.Resolution.values()) {
+				keys.add(key(name, r.getSeries()));
+			}
+			batch.getScript().evalShaAsync(RScript.Mode.READ_WRITE, StringCodec.INSTANCE, sha, RScript.ReturnType.VALUE, keys);
+		}
+		// Replies are needed, otherwise NOSCRIPT and other errors are not reported
+		batch.execute();
+	}
+
+	/**
+	 * @return SHA1 digest of unlink script, loaded into Redis on first use
+	 */
+	private String unlinkSha() {
+		String sha = unlinkSha;
+		if (sha == null) {
+			sha = redis().getScript().scriptLoad(UNLINK);
+			unlinkSha = sha;
+		}
+		return sha;
+	}
+}
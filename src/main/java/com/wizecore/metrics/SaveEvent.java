@@ -0,0 +1,34 @@
+package com.wizecore.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event emitted on save of persistent metric.
+ */
+@Name("com.wizecore.metrics.Save")
+@Label("Metric Save")
+@Category("Persistent Metrics")
+@Description("State of persistent metric saved to store")
+class SaveEvent extends Event {
+	@Label("Metric")
+	String metric;
+
+	@Label("Payload Size")
+	@DataAmount
+	int payloadSize;
+
+	@Label("Codec Time")
+	@Timespan
+	long codecTime;
+
+	@Label("Store Time")
+	@Description("Store round trip, including reservoir save")
+	@Timespan
+	long storeTime;
+}
@@ -0,0 +1,208 @@
+package com.wizecore.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+
+/**
+ * A cluster-wide {@link Meter}, single instance shared by all nodes.
+ * Marks are accumulated locally in {@link LongAdder} and applied in store on save with {@link MetricStore#markShared(String, long)},
+ * which adds them to count and advances rates by time of store atomically, in one round trip
+ * (single Lua script for {@link RedisMetricStore}). Rates are calculated like {@link Meter} does,
+ * with exponentially weighted moving averages ticked every 5 seconds.
+ * <p>
+ * {@link #getCount()} returns last known total plus local marks not yet saved. Count and rates are last known ones,
+ * getters never call store. Values are refreshed by save and, if they are older than tick interval,
+ * by {@link #refresh()} in background thread of registry ({@link GaugeSampler}). If store is not available,
+ * marks are kept and applied with next save, save never fails. Marks which failed to apply are retried
+ * with the same operation id, so they are never added twice, e.g. if store timed out after applying them.
+ * Use in write-behind mode, otherwise every mark makes a round trip to store.
+ * </p>
+ */
+public class SharedMeter extends Meter implements Persistent {
+	private static Logger log = LoggerFactory.getLogger(SharedMeter.class);
+
+	/**
+	 * Interval between ticks of rates, same as in {@link Meter}.
+	 */
+	static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+	/**
+	 * Periods of moving averages, in minutes.
+	 */
+	static final int[] PERIODS = { 1, 5, 15 };
+
+	private final LongAdder pending = new LongAdder();
+	private volatile Map<String, Object> values = Collections.emptyMap();
+	private volatile long refreshed = System.nanoTime() - TICK_INTERVAL - 1;
+	private final String writer = PersistenceUtil.getNodeId();
+	private final String instance = UUID.randomUUID().toString();
+	private long sequence;
+	private volatile long unsent;
+	private String unsentId;
+	private String name;
+	private MetricStore store;
+	private WriteBehindFlusher flusher;
+
+	public SharedMeter(String name) {
+		this(name, PersistenceUtil.getStore(), null);
+	}
+
+	/**
+	 * Creates meter, its values are read from store on first save or refresh.
+	 *
+	 * @param name the name of the metric
+	 * @param store store to persist metric in
+	 * @param flusher write-behind flusher, if null every mark is saved immediately
+	 */
+	public SharedMeter(String name, MetricStore store, WriteBehindFlusher flusher) {
+		this.name = name;
+		this.store = store;
+		this.flusher = flusher;
+	}
+
+	/**
+	 * Creates meter which is usable immediately, while its values are read by loader.
+	 * Local marks are counted and saved as usual meanwhile.
+	 */
+	SharedMeter(String name, MetricStore store, WriteBehindFlusher flusher, MetricLoader loader) {
+		this.name = name;
+		this.store = store;
+		this.flusher = flusher;
+		loader.submit(name, new Runnable() {
+			@Override
+			public void run() {
+				apply();
+			}
+		});
+	}
+
+	/**
+	 * Saves value immediately, or marks it for background save in write-behind mode.
+	 */
+	protected void changed() {
+		if (flusher != null) {
+			flusher.markDirty(this);
+		} else {
+			save();
+		}
+	}
+
+	/**
+	 * Applies local marks in store and refreshes count and rates.
+	 * If store is not available, marks are kept and sent with next save,
+	 * in write-behind mode meter is marked dirty again until flusher is closed.
+	 */
+	@Override
+	public void save() {
+		try {
+			apply();
+		} catch (RuntimeException e) {
+			log.warn("Failed to save shared meter " + name + ", marks are kept: " + e);
+			if (flusher != null && !flusher.isClosed()) {
+				flusher.markDirty(this);
+			}
+		}
+	}
+
+	/**
+	 * Applies local marks in store. Marks which failed to apply are retried first with the same operation id,
+	 * new marks are sent separately, so retry never adds them twice.
+	 */
+	private synchronized void apply() {
+		boolean retried = false;
+		if (unsentId != null) {
+			send();
+			retried = true;
+		}
+		long delta = pending.sum();
+		if (delta == 0 && retried) {
+			return;
+		}
+		unsentId = instance + ":" + (++sequence);
+		// Moved to unsent before pending is reduced, so getCount() never misses them
+		unsent = delta;
+		pending.add(-delta);
+		send();
+	}
+
+	/**
+	 * Sends unsent marks and publishes new values, unsent marks are cleared only after that.
+	 */
+	private void send() {
+		values = store.markShared(name, unsent, writer, unsentId);
+		refreshed = System.nanoTime();
+		unsent = 0;
+		unsentId = null;
+	}
+
+	@Override
+	public void mark() {
+		mark(1);
+	}
+
+	@Override
+	public void mark(long n) {
+		pending.add(n);
+		changed();
+	}
+
+	/**
+	 * Returns last known cluster-wide count plus local marks not yet saved.
+	 */
+	@Override
+	public long getCount() {
+		// Read in reverse order of apply(), so marks in transit are counted twice at worst, never missed
+		long local = pending.sum() + unsent;
+		return longValue(values, MetricStore.COUNT) + local;
+	}
+
+	@Override
+	public double getMeanRate() {
+		return rate(MetricStore.MEAN_RATE);
+	}
+
+	@Override
+	public double getOneMinuteRate() {
+		return rate(MetricStore.M1_RATE);
+	}
+
+	@Override
+	public double getFiveMinuteRate() {
+		return rate(MetricStore.M5_RATE);
+	}
+
+	@Override
+	public double getFifteenMinuteRate() {
+		return rate(MetricStore.M15_RATE);
+	}
+
+	/**
+	 * Refreshes values if they are older than tick interval, called periodically in background thread.
+	 * Local marks are applied too.
+	 *
+	 * @throws RuntimeException if store is not available, last known values and marks are kept
+	 */
+	public void refresh() {
+		if (System.nanoTime() - refreshed > TICK_INTERVAL) {
+			apply();
+		}
+	}
+
+	private double rate(String field) {
+		Object v = values.get(field);
+		return v instanceof Number ? ((Number) v).doubleValue() : 0;
+	}
+
+	private static long longValue(Map<String, Object> values, String field) {
+		Object v = values.get(field);
+		return v instanceof Number ? ((Number) v).longValue() : 0;
+	}
+}
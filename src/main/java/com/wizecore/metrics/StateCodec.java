@@ -0,0 +1,39 @@
+package com.wizecore.metrics;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * Serializes metric state for storing in Redis.
+ *
+ * @see BinaryStateCodec
+ * @see XStreamStateCodec
+ */
+public interface StateCodec {
+
+	/**
+	 * Serializes full state of metric.
+	 */
+	byte[] encode(Metric metric);
+
+	/**
+	 * Restores metric state. Codec should fill in given metric, persistent metrics pass themselves,
+	 * so they keep single copy of state. Codec may return new instance of the same type instead,
+	 * then persistent metrics restore only its count or sampled values.
+	 *
+	 * @param data serialized state, as returned by {@link #encode(Metric)}
+	 * @param metric newly created metric to restore state into
+	 * @return restored metric
+	 */
+	Metric decode(byte[] data, Metric metric);
+
+	/**
+	 * Serializes snapshot exported for external readers.
+	 */
+	byte[] encodeSnapshot(Snapshot snapshot);
+
+	/**
+	 * Restores snapshot serialized with {@link #encodeSnapshot(Snapshot)}.
+	 */
+	Snapshot decodeSnapshot(byte[] data);
+}
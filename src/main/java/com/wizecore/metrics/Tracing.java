@@ -0,0 +1,107 @@
+package com.wizecore.metrics;
+
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+
+/**
+ * Emits Java Flight Recorder events for saves and bulk loads, see {@link SaveEvent} and {@link LoadEvent}.
+ * Does nothing if JFR is not available in running JVM, event classes are not loaded then.
+ */
+final class Tracing {
+	private static final boolean AVAILABLE = isAvailable();
+
+	private Tracing() {
+	}
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Records save of metric.
+	 *
+	 * @param state serialized state
+	 * @param values exported values, binary ones are counted in payload size
+	 * @param codecNanos time spent encoding state and values
+	 * @param storeNanos time spent writing to store
+	 */
+	static void saved(String name, byte[] state, Map<String, Object> values, long codecNanos, long storeNanos) {
+		if (AVAILABLE) {
+			Jfr.saved(name, state, values, codecNanos, storeNanos);
+		}
+	}
+
+	/**
+	 * Records save of metric once asynchronous write completes successfully.
+	 *
+	 * @param encoded {@link System#nanoTime()} when write was sent
+	 * @return given stage
+	 */
+	static CompletionStage<Void> saved(final String name, final byte[] state, final Map<String, Object> values, final long codecNanos,
+			final long encoded, CompletionStage<Void> stage) {
+		if (AVAILABLE) {
+			stage.whenComplete(new BiConsumer<Void, Throwable>() {
+				@Override
+				public void accept(Void v, Throwable e) {
+					if (e == null) {
+						Jfr.saved(name, state, values, codecNanos, System.nanoTime() - encoded);
+					}
+				}
+			});
+		}
+		return stage;
+	}
+
+	/**
+	 * Records bulk load of metrics.
+	 *
+	 * @param count number of states read
+	 * @param bytes total size of states
+	 * @param codecNanos time spent decoding states
+	 * @param storeNanos time spent reading from store
+	 */
+	static void loaded(int count, long bytes, long codecNanos, long storeNanos) {
+		if (AVAILABLE) {
+			Jfr.loaded(count, bytes, codecNanos, storeNanos);
+		}
+	}
+
+	/**
+	 * Isolates references to JFR classes.
+	 */
+	private static final class Jfr {
+		static void saved(String name, byte[] state, Map<String, Object> values, long codecNanos, long storeNanos) {
+			SaveEvent e = new SaveEvent();
+			if (e.shouldCommit()) {
+				int size = state.length;
+				for (Object v : values.values()) {
+					if (v instanceof byte[]) {
+						size += ((byte[]) v).length;
+					}
+				}
+				e.metric = name;
+				e.payloadSize = size;
+				e.codecTime = codecNanos;
+				e.storeTime = storeNanos;
+				e.commit();
+			}
+		}
+
+		static void loaded(int count, long bytes, long codecNanos, long storeNanos) {
+			LoadEvent e = new LoadEvent();
+			if (e.shouldCommit()) {
+				e.count = count;
+				e.payloadSize = bytes;
+				e.codecTime = codecNanos;
+				e.storeTime = storeNanos;
+				e.commit();
+			}
+		}
+	}
+}
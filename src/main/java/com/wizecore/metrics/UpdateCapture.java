@@ -0,0 +1,229 @@
+package com.wizecore.metrics;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Captures metric updates in lock-free ring buffers, so update doesn't touch metric state on caller thread.
+ * <p>
+ * Update is recorded as target and primitive value into preallocated slot of ring chosen by caller thread,
+ * so recording doesn't allocate and threads mostly don't share ring. Single consumer thread applies updates
+ * to metrics, which then mark itself dirty in {@link WriteBehindFlusher}. Consumer parks while rings are empty
+ * and is unparked by first update captured after that, so idle capture doesn't wake up periodically.
+ * </p>
+ * <p>
+ * If ring is full, update is not captured and caller applies it directly, such updates are counted
+ * in {@link #getOverflows()}. Values read from metric lag behind captured updates until they are applied.
+ * </p>
+ */
+public class UpdateCapture implements Closeable {
+	private static Logger log = LoggerFactory.getLogger(UpdateCapture.class);
+
+	/**
+	 * Default number of updates in each ring.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Metric which applies captured updates.
+	 */
+	public interface Target {
+		/**
+		 * Applies update to metric state, on consumer thread.
+		 */
+		void apply(long value);
+	}
+
+	/**
+	 * Multi-producer ring, slot is published by storing its sequence number + 1.
+	 */
+	private static final class Ring {
+		final AtomicLong tail = new AtomicLong();
+		volatile long head;
+		final AtomicLongArray published;
+		final Target[] targets;
+		final long[] values;
+		final int mask;
+
+		Ring(int capacity) {
+			published = new AtomicLongArray(capacity);
+			targets = new Target[capacity];
+			values = new long[capacity];
+			mask = capacity - 1;
+		}
+
+		boolean offer(Target target, long value) {
+			long seq;
+			do {
+				seq = tail.get();
+				if (seq - head >= values.length) {
+					return false;
+				}
+			} while (!tail.compareAndSet(seq, seq + 1));
+			int i = (int) seq & mask;
+			targets[i] = target;
+			values[i] = value;
+			published.set(i, seq + 1);
+			return true;
+		}
+
+		int drain() {
+			int n = 0;
+			long h = head;
+			while (n < values.length) {
+				int i = (int) h & mask;
+				if (published.get(i) != h + 1) {
+					break;
+				}
+				Target target = targets[i];
+				long value = values[i];
+				targets[i] = null;
+				// Slot is free for producers once head moves past it
+				head = ++h;
+				n++;
+				try {
+					target.apply(value);
+				} catch (RuntimeException e) {
+					log.warn("Failed to apply captured update: " + e, e);
+				}
+			}
+			return n;
+		}
+	}
+
+	private final Ring[] rings;
+	private final int mask;
+	private final LongAdder overflows = new LongAdder();
+	private final Thread consumer;
+	private volatile boolean closed;
+
+	/**
+	 * Set by consumer before it parks, cleared by producer which unparks it.
+	 */
+	private final AtomicBoolean parked = new AtomicBoolean();
+
+	/**
+	 * Creates capture with two rings per processor of default capacity and starts consumer thread.
+	 */
+	public UpdateCapture() {
+		this(Runtime.getRuntime().availableProcessors() * 2, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates capture and starts consumer thread.
+	 *
+	 * @param stripes number of rings, rounded up to power of two
+	 * @param capacity number of updates in each ring, rounded up to power of two
+	 */
+	public UpdateCapture(int stripes, int capacity) {
+		if (stripes <= 0 || capacity <= 0) {
+			throw new IllegalArgumentException("Stripes and capacity must be positive: " + stripes + ", " + capacity);
+		}
+		rings = new Ring[powerOfTwo(stripes)];
+		for (int i = 0; i < rings.length; i++) {
+			rings[i] = new Ring(powerOfTwo(capacity));
+		}
+		mask = rings.length - 1;
+		consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed) {
+					if (drain() == 0) {
+						parked.set(true);
+						// Update published before flag was set is seen here, after that producer unparks
+						if (getPending() == 0 && !closed) {
+							LockSupport.park(this);
+						}
+						parked.set(false);
+					}
+				}
+			}
+		}, "persistent-metrics-capture");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	private static int powerOfTwo(int n) {
+		return n == 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+	}
+
+	/**
+	 * Records update for consumer thread.
+	 *
+	 * @return false if update was not captured, because ring is full or capture is closed,
+	 *         in which case caller should apply it itself
+	 */
+	public boolean offer(Target target, long value) {
+		if (closed) {
+			return false;
+		}
+		if (!rings[(int) Thread.currentThread().getId() & mask].offer(target, value)) {
+			overflows.increment();
+			return false;
+		}
+		if (parked.get() && parked.compareAndSet(true, false)) {
+			LockSupport.unpark(consumer);
+		}
+		if (closed) {
+			// Close might have drained before update was published
+			drain();
+		}
+		return true;
+	}
+
+	/**
+	 * Applies all captured updates on calling thread.
+	 *
+	 * @return number of updates applied
+	 */
+	public synchronized int drain() {
+		int n = 0;
+		for (Ring ring : rings) {
+			n += ring.drain();
+		}
+		return n;
+	}
+
+	/**
+	 * Number of updates not captured because ring was full.
+	 */
+	public long getOverflows() {
+		return overflows.sum();
+	}
+
+	/**
+	 * Number of captured updates not applied yet.
+	 */
+	public int getPending() {
+		long n = 0;
+		for (Ring ring : rings) {
+			n += ring.tail.get() - ring.head;
+		}
+		return (int) n;
+	}
+
+	/**
+	 * Stops consumer thread and applies remaining updates. Updates made after close are not captured.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		LockSupport.unpark(consumer);
+		try {
+			consumer.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		drain();
+	}
+}
@@ -0,0 +1,239 @@
+package com.wizecore.metrics;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background flusher for write-behind persistence mode.
+ * Metrics only mark itself as dirty on update, actual {@link Persistent#saveAsync()} is done
+ * periodically in background thread and once more on close or JVM shutdown.
+ * Saves of one flush are sent together and flush waits until all of them complete, so writes of asynchronous store
+ * (e.g. {@link AsyncMetricStore}) are pipelined, and metric whose write failed is saved again on next flush.
+ */
+public class WriteBehindFlusher implements Closeable {
+	private static Logger log = LoggerFactory.getLogger(WriteBehindFlusher.class);
+
+	private final Set<Persistent> dirty = ConcurrentHashMap.newKeySet();
+	private final Set<Persistent> removed = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Persistent, Boolean>()));
+	private final ScheduledExecutorService executor;
+	private final Thread shutdownHook;
+	private final long interval;
+	private final TimeUnit unit;
+	private final UpdateCapture capture;
+	private volatile boolean closed;
+	private volatile PersistenceStats stats;
+
+	/**
+	 * Creates and starts new flusher.
+	 *
+	 * @param interval how often dirty metrics are saved
+	 * @param unit unit of interval
+	 */
+	public WriteBehindFlusher(long interval, TimeUnit unit) {
+		this(interval, unit, null);
+	}
+
+	/**
+	 * Creates and starts new flusher, which also owns given update capture.
+	 *
+	 * @param interval how often dirty metrics are saved
+	 * @param unit unit of interval
+	 * @param capture capture recording metric updates off caller thread, or null to apply them directly
+	 */
+	public WriteBehindFlusher(long interval, TimeUnit unit, UpdateCapture capture) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Flush interval must be positive: " + interval);
+		}
+		this.interval = interval;
+		this.unit = unit;
+		this.capture = capture;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "persistent-metrics-flusher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, interval, interval, unit);
+		shutdownHook = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, "persistent-metrics-shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Schedules metric for save on next flush.
+	 * Saves immediately if flusher is already closed. Metrics which were forgotten are never saved.
+	 */
+	public void markDirty(Persistent metric) {
+		if (closed) {
+			if (!removed.contains(metric)) {
+				metric.save();
+			}
+		} else if (!dirty.contains(metric) && !removed.contains(metric)) {
+			dirty.add(metric);
+		}
+	}
+
+	/**
+	 * Records update for background apply, if flusher has update capture.
+	 *
+	 * @return false if update was not captured and should be applied by caller
+	 */
+	public boolean capture(UpdateCapture.Target metric, long value) {
+		return capture != null && capture.offer(metric, value);
+	}
+
+	/**
+	 * Cancels pending save of metric, e.g. if it was removed, and ignores its later updates,
+	 * including captured ones not applied yet. Waits for flush in progress, so once this returns
+	 * metric is not saved anymore and its persisted state can be deleted.
+	 */
+	public synchronized void forget(Persistent metric) {
+		removed.add(metric);
+		dirty.remove(metric);
+	}
+
+	/**
+	 * Applies captured updates and saves all metrics changed since last flush, waits until saves complete.
+	 * Failed metrics are kept dirty and retried on next flush, other metrics are still saved.
+	 * Writes cancelled by store, i.e. dropped by overflow policy of {@link AsyncMetricStore} or by delete of metric,
+	 * are not retried.
+	 */
+	public synchronized void flush() {
+		if (capture != null) {
+			capture.drain();
+		}
+		// Metrics marked dirty during flush are saved on next one
+		List<Persistent> batch = new ArrayList<Persistent>(dirty);
+		List<Persistent> saving = new ArrayList<Persistent>(batch.size());
+		List<CompletableFuture<Void>> saves = new ArrayList<CompletableFuture<Void>>(batch.size());
+		int count = 0;
+		int failed = 0;
+		Throwable error = null;
+		for (Persistent metric : batch) {
+			// Remove before save, so update during save marks metric dirty again
+			dirty.remove(metric);
+			// Could be marked dirty concurrently with forget()
+			if (removed.contains(metric)) {
+				continue;
+			}
+			try {
+				saves.add(metric.saveAsync().toCompletableFuture());
+				saving.add(metric);
+			} catch (RuntimeException e) {
+				dirty.add(metric);
+				failed++;
+				error = e;
+			}
+		}
+		for (int i = 0; i < saves.size(); i++) {
+			try {
+				saves.get(i).join();
+				count++;
+			} catch (CancellationException e) {
+				// Dropped or deleted by store
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof CancellationException) {
+					continue;
+				}
+				if (!removed.contains(saving.get(i))) {
+					dirty.add(saving.get(i));
+				}
+				failed++;
+				error = e.getCause();
+			}
+		}
+		if (error != null) {
+			log.warn("Failed to save " + failed + " metrics, will be retried on next flush: " + error);
+		}
+		PersistenceStats s = stats;
+		if (s != null && count > 0) {
+			s.flushed(count);
+		}
+	}
+
+	/**
+	 * Number of metrics waiting for save.
+	 */
+	public int getDirtyCount() {
+		return dirty.size();
+	}
+
+	/**
+	 * Sets stats to record flush batch sizes in.
+	 */
+	public void setStats(PersistenceStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * @return update capture or null if updates are applied directly
+	 */
+	public UpdateCapture getCapture() {
+		return capture;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public TimeUnit getUnit() {
+		return unit;
+	}
+
+	/**
+	 * Stops background flushing and saves all pending changes.
+	 * Any update made after close is applied and saved immediately.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		if (capture != null) {
+			capture.close();
+		}
+		closed = true;
+		executor.shutdown();
+		try {
+			executor.awaitTermination(unit.toMillis(interval) + 1000, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// Already shutting down, hook will flush
+		}
+		flush();
+	}
+}
@@ -0,0 +1,77 @@
+package com.wizecore.metrics;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Legacy codec, stores whole metric object as XML using XStream library.
+ * Also used to read state persisted by previous versions.
+ * Persistent metrics are written as plain metrics they extend, so XML is the same as before.
+ */
+public class XStreamStateCodec implements StateCodec {
+	/**
+	 * XStream is thread safe once configured, so single instance is shared.
+	 */
+	private final XStream x = new XStream();
+
+	public XStreamStateCodec() {
+		plain(PersistentCounter.class, Counter.class);
+		plain(PersistentMeter.class, Meter.class);
+		plain(PersistentHistogram.class, Histogram.class);
+		plain(PersistentTimer.class, Timer.class);
+	}
+
+	/**
+	 * Writes persistent metric under name of plain type, without its own fields.
+	 */
+	private void plain(Class<?> persistent, Class<?> type) {
+		x.alias(type.getName(), persistent);
+		// Keep reading plain type by its name
+		x.alias(type.getName(), type);
+		for (Field f : persistent.getDeclaredFields()) {
+			if (!Modifier.isStatic(f.getModifiers())) {
+				x.omitField(persistent, f.getName());
+			}
+		}
+	}
+
+	@Override
+	public byte[] encode(Metric metric) {
+		return x.toXML(metric).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public Metric decode(byte[] data, Metric metric) {
+		if (BinaryStateCodec.isBinary(data)) {
+			return BinaryStateCodec.getDefault().decode(data, metric);
+		}
+		String xml = new String(data, StandardCharsets.UTF_8);
+		Class<? extends Metric> type = BinaryStateCodec.typeOf(data);
+		if (metric != null && type != null && type.isInstance(metric)) {
+			return (Metric) x.fromXML(xml, metric);
+		}
+		return (Metric) x.fromXML(xml);
+	}
+
+	@Override
+	public byte[] encodeSnapshot(Snapshot snapshot) {
+		return x.toXML(snapshot).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public Snapshot decodeSnapshot(byte[] data) {
+		if (BinaryStateCodec.isBinary(data)) {
+			return BinaryStateCodec.getDefault().decodeSnapshot(data);
+		}
+		return (Snapshot) x.fromXML(new String(data, StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,166 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.wizecore.metrics.AsyncMetricStore;
+import com.wizecore.metrics.AsyncMetricStore.OverflowPolicy;
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.MetricStore;
+import com.wizecore.metrics.PersistentMetricRegistry;
+
+public class TestAsyncMetricStore {
+
+	/**
+	 * Store which completes writes only when asked.
+	 */
+	static class ManualStore extends LocalMetricStore {
+		final List<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+
+		@Override
+		public CompletionStage<Void> saveAsync(final String name, final byte[] state, final Map<String, Object> values) {
+			CompletableFuture<Void> f = new CompletableFuture<Void>();
+			pending.add(f);
+			return f.thenRun(() -> save(name, state, values));
+		}
+
+		void completeFirst() {
+			pending.remove(0).complete(null);
+		}
+	}
+
+	private static final Map<String, Object> NONE = Collections.emptyMap();
+
+	@Test
+	public void testCoalesce() {
+		ManualStore manual = new ManualStore();
+		AsyncMetricStore store = new AsyncMetricStore(manual, 1, OverflowPolicy.COALESCE);
+		CompletionStage<Void> a = store.saveAsync("a", new byte[] { 1 }, NONE);
+		CompletionStage<Void> b1 = store.saveAsync("a", new byte[] { 2 }, NONE);
+		CompletionStage<Void> b2 = store.saveAsync("a", new byte[] { 3 }, NONE);
+		assertEquals(1, store.getInFlight());
+		assertEquals(1, store.getQueued());
+		assertTrue(b1 == b2);
+
+		manual.completeFirst();
+		assertTrue(a.toCompletableFuture().isDone());
+		assertArrayEquals(new byte[] { 1 }, manual.getState("a"));
+		manual.completeFirst();
+		assertTrue(b2.toCompletableFuture().isDone());
+		assertArrayEquals(new byte[] { 3 }, manual.getState("a"));
+		assertEquals(0, store.getInFlight());
+	}
+
+	@Test
+	public void testDrainSynchronousStore() {
+		final CompletableFuture<Void> gate = new CompletableFuture<Void>();
+		LocalMetricStore sync = new LocalMetricStore() {
+			@Override
+			public CompletionStage<Void> saveAsync(final String name, final byte[] state, final Map<String, Object> values) {
+				// Writes complete inline once gate is open
+				return gate.thenRun(() -> save(name, state, values));
+			}
+		};
+		AsyncMetricStore store = new AsyncMetricStore(sync, 1, OverflowPolicy.COALESCE);
+		CompletionStage<Void> last = null;
+		for (int i = 0; i < 100000; i++) {
+			last = store.saveAsync("m" + i, new byte[] { 1 }, NONE);
+		}
+		assertEquals(99999, store.getQueued());
+		// Queue is drained in a loop, not by recursion
+		gate.complete(null);
+		assertTrue(last.toCompletableFuture().isDone());
+		assertEquals(0, store.getQueued());
+		assertArrayEquals(new byte[] { 1 }, sync.getState("m99999"));
+	}
+
+	@Test
+	public void testDropOldest() {
+		ManualStore manual = new ManualStore();
+		AsyncMetricStore store = new AsyncMetricStore(manual, 1, OverflowPolicy.DROP_OLDEST);
+		store.saveAsync("a", new byte[] { 1 }, NONE);
+		CompletionStage<Void> b = store.saveAsync("b", new byte[] { 1 }, NONE);
+		CompletionStage<Void> c = store.saveAsync("c", new byte[] { 1 }, NONE);
+		assertTrue(b.toCompletableFuture().isCancelled() || b.toCompletableFuture().isCompletedExceptionally());
+		assertEquals(1, store.getDropped());
+
+		manual.completeFirst();
+		manual.completeFirst();
+		assertTrue(c.toCompletableFuture().isDone());
+		assertEquals(null, manual.getState("b"));
+		assertArrayEquals(new byte[] { 1 }, manual.getState("c"));
+	}
+
+	@Test
+	public void testFlusherRetriesFailedWrites() {
+		final AtomicBoolean down = new AtomicBoolean(true);
+		LocalMetricStore failing = new LocalMetricStore() {
+			@Override
+			public CompletionStage<Void> saveAsync(String name, byte[] state, Map<String, Object> values) {
+				if (down.get()) {
+					// Fails only in stage, save() of async store returns normally
+					CompletableFuture<Void> f = new CompletableFuture<Void>();
+					f.completeExceptionally(new IllegalStateException("down"));
+					return f;
+				}
+				return super.saveAsync(name, state, values);
+			}
+		};
+		AsyncMetricStore store = new AsyncMetricStore(failing, 4, OverflowPolicy.DROP_OLDEST);
+		PersistentMetricRegistry reg = new PersistentMetricRegistry(store, 1, TimeUnit.HOURS);
+		reg.counter("c").inc(3);
+		reg.flush();
+		assertEquals(1, reg.getFlusher().getDirtyCount());
+		assertNull(failing.getValue("c", MetricStore.VALUE));
+
+		down.set(false);
+		reg.flush();
+		assertEquals(0, reg.getFlusher().getDirtyCount());
+		assertEquals(3L, failing.getValue("c", MetricStore.VALUE));
+		reg.close();
+	}
+
+	@Test
+	public void testDeleteWaitsForWritesInFlight() throws Exception {
+		final ManualStore manual = new ManualStore();
+		final AsyncMetricStore store = new AsyncMetricStore(manual, 4, OverflowPolicy.COALESCE);
+		store.saveAsync("a", new byte[] { 1 }, NONE);
+		CompletionStage<Void> other = store.saveAsync("b", new byte[] { 1 }, NONE);
+		final CountDownLatch deleted = new CountDownLatch(1);
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				store.delete(Collections.singletonList("a"));
+				deleted.countDown();
+			}
+		});
+		t.start();
+		assertFalse(deleted.await(100, TimeUnit.MILLISECONDS));
+
+		// Write of other metric doesn't hold delete
+		manual.pending.remove(1).complete(null);
+		assertTrue(other.toCompletableFuture().isDone());
+		assertFalse(deleted.await(100, TimeUnit.MILLISECONDS));
+
+		// Late write of deleted metric lands before delete
+		manual.completeFirst();
+		assertTrue(deleted.await(5, TimeUnit.SECONDS));
+		assertNull(manual.getState("a"));
+		assertArrayEquals(new byte[] { 1 }, manual.getState("b"));
+	}
+}
@@ -0,0 +1,52 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry.MetricSupplier;
+import com.wizecore.metrics.ClusterMetricRegistry;
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.Persistent;
+import com.wizecore.metrics.PersistentMetricRegistry;
+
+public class TestClusterMetricRegistry {
+
+	@Test
+	public void testClusterRegistry() {
+		LocalMetricStore store = new LocalMetricStore();
+		PersistentMetricRegistry reg = new PersistentMetricRegistry(store);
+		reg.counter("c").inc(3);
+		reg.meter("m").mark(2);
+		reg.histogram("h").update(5);
+		reg.timer("t").update(7, TimeUnit.MILLISECONDS);
+		reg.gauge("g", new MetricSupplier<Gauge>() {
+			@Override
+			public Gauge<Integer> newMetric() {
+				return new Gauge<Integer>() {
+					@Override
+					public Integer getValue() {
+						return 42;
+					}
+				};
+			}
+		});
+		((com.wizecore.metrics.Persistent) reg.getGauges().get("g")).save();
+
+		ClusterMetricRegistry cluster = new ClusterMetricRegistry(store);
+		assertEquals(3, cluster.getCounters().get("c").getCount());
+		assertEquals(2, cluster.getMeters().get("m").getCount());
+		assertEquals(5, cluster.getHistograms().get("h").getSnapshot().getMax());
+		assertEquals(1, cluster.getTimers().get("t").getCount());
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(7), cluster.getTimers().get("t").getSnapshot().getMax());
+		assertEquals(42, cluster.getGauges().get("g").getValue());
+
+		reg.remove("c");
+		cluster.refresh();
+		assertTrue(!cluster.getNames().contains("c"));
+	}
+}
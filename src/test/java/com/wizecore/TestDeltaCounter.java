@@ -0,0 +1,104 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.MetricStore;
+import com.wizecore.metrics.PersistenceUtil;
+import com.wizecore.metrics.PersistentDeltaCounter;
+import com.wizecore.metrics.PersistentMetricRegistry;
+
+public class TestDeltaCounter {
+
+	@Test
+	public void testDeltaCounters() {
+		LocalMetricStore store = new LocalMetricStore();
+		PersistentMetricRegistry a = new PersistentMetricRegistry(store);
+		PersistentMetricRegistry b = new PersistentMetricRegistry(store);
+		a.setDeltaCounters(true);
+		b.setDeltaCounters(true);
+		a.counter("c").inc(2);
+		b.counter("c").inc(3);
+		a.counter("c").inc();
+		assertEquals(6, a.counter("c").getCount());
+	}
+
+	@Test
+	public void testDeltaCounterRetry() {
+		final AtomicBoolean timeout = new AtomicBoolean(true);
+		final List<String> ids = new ArrayList<String>();
+		LocalMetricStore store = new LocalMetricStore() {
+			private String last;
+
+			@Override
+			public long addAndGetOnce(String name, String field, long delta, String writer, String id) {
+				ids.add(id);
+				long total = id.equals(last) ? addAndGet(name, field, 0) : addAndGet(name, field, delta);
+				last = id;
+				if (timeout.getAndSet(false)) {
+					// Applied, but reply is lost
+					throw new IllegalStateException("timeout");
+				}
+				return total;
+			}
+		};
+		PersistentDeltaCounter c = new PersistentDeltaCounter("c", store, null);
+		try {
+			c.inc(5);
+		} catch (IllegalStateException e) {
+			// Kept and retried on next save
+		}
+		assertEquals(5, c.getCount());
+		c.inc(2);
+		assertEquals(7L, store.getValue("c", MetricStore.VALUE));
+		assertEquals(7, c.getCount());
+		assertEquals(ids.get(0), ids.get(1));
+		assertFalse(ids.get(1).equals(ids.get(2)));
+	}
+
+	@Test
+	public void testStableWriter() {
+		final List<String> writers = new ArrayList<String>();
+		final List<String> ids = new ArrayList<String>();
+		final AtomicInteger reads = new AtomicInteger();
+		LocalMetricStore store = new LocalMetricStore() {
+			@Override
+			public long addAndGet(String name, String field, long delta) {
+				if (delta == 0) {
+					reads.incrementAndGet();
+				}
+				return super.addAndGet(name, field, delta);
+			}
+
+			@Override
+			public long addAndGetOnce(String name, String field, long delta, String writer, String id) {
+				writers.add(writer);
+				ids.add(id);
+				return super.addAndGetOnce(name, field, delta, writer, id);
+			}
+		};
+		PersistentDeltaCounter c = new PersistentDeltaCounter("c", store, null);
+		c.inc();
+		// Restarted counter of the same node
+		PersistentDeltaCounter restarted = new PersistentDeltaCounter("c", store, null);
+		restarted.inc();
+		assertEquals(PersistenceUtil.getNodeId(), writers.get(0));
+		assertEquals(writers.get(0), writers.get(1));
+		assertFalse(ids.get(0).equals(ids.get(1)));
+
+		// Save without local updates doesn't read total again right after it was refreshed
+		int read = reads.get();
+		restarted.save();
+		restarted.save();
+		assertEquals(read, reads.get());
+		assertEquals(2, restarted.getCount());
+	}
+}
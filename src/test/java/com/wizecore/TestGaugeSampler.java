@@ -0,0 +1,55 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry.MetricSupplier;
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.MetricStore;
+import com.wizecore.metrics.PersistentMetricRegistry;
+
+public class TestGaugeSampler {
+
+	@Test
+	public void testGaugeSampling() {
+		final AtomicInteger writes = new AtomicInteger();
+		LocalMetricStore store = new LocalMetricStore() {
+			@Override
+			public void setValue(String name, String field, Object value) {
+				writes.incrementAndGet();
+				super.setValue(name, field, value);
+			}
+		};
+		PersistentMetricRegistry reg = new PersistentMetricRegistry(store);
+		reg.setGaugeSampleInterval(1, TimeUnit.HOURS);
+		final AtomicLong source = new AtomicLong(1);
+		Gauge<?> g = reg.gauge("g", new MetricSupplier<Gauge>() {
+			@Override
+			public Gauge newMetric() {
+				return new Gauge<Long>() {
+					@Override
+					public Long getValue() {
+						return source.get();
+					}
+				};
+			}
+		});
+		reg.getGaugeSampler().sample();
+		assertEquals(1, writes.get());
+		assertEquals(1L, store.getValue("g", MetricStore.GAUGE));
+
+		source.set(2);
+		assertEquals(1L, g.getValue());
+		reg.getGaugeSampler().sample();
+		reg.getGaugeSampler().sample();
+		assertEquals(2L, g.getValue());
+		assertEquals(2, writes.get());
+		reg.close();
+	}
+}
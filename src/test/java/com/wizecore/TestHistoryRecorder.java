@@ -0,0 +1,74 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.wizecore.metrics.HistoryRecorder;
+import com.wizecore.metrics.HistoryRecorder.Point;
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.MetricStore;
+
+public class TestHistoryRecorder {
+
+	@Test
+	public void testHistory() {
+		final AtomicLong now = new AtomicLong(TimeUnit.HOURS.toMillis(1000));
+		LocalMetricStore store = new LocalMetricStore();
+		MetricRegistry reg = new MetricRegistry();
+		Clock clock = new Clock() {
+			@Override
+			public long getTick() {
+				return TimeUnit.MILLISECONDS.toNanos(now.get());
+			}
+
+			@Override
+			public long getTime() {
+				return now.get();
+			}
+		};
+		HistoryRecorder history = new HistoryRecorder(reg, store, MetricFilter.ALL, clock);
+		long start = now.get();
+		for (int i = 0; i < 13; i++) {
+			reg.counter("c").inc();
+			history.report();
+			now.addAndGet(TimeUnit.SECONDS.toMillis(10));
+		}
+		List<Point> points = history.getHistory("c", start, now.get());
+		assertEquals(13, points.size());
+		assertEquals(start, points.get(0).getTime());
+		assertEquals(13.0, points.get(12).getValues().get(MetricStore.COUNT), 0);
+
+		List<Point> minutes = history.getHistory("c", HistoryRecorder.Resolution.MINUTE, start, now.get());
+		assertEquals(3, minutes.size());
+		assertEquals(6.0, minutes.get(0).getValues().get(MetricStore.COUNT), 0);
+		assertEquals(12.0, minutes.get(1).getValues().get(MetricStore.COUNT), 0);
+		// Current minute is aggregated on read
+		assertEquals(13.0, minutes.get(2).getValues().get(MetricStore.COUNT), 0);
+
+		// Restarted recorder rolls up minute from points stored before restart
+		HistoryRecorder restarted = new HistoryRecorder(reg, store, MetricFilter.ALL, clock);
+		now.addAndGet(TimeUnit.SECONDS.toMillis(50));
+		reg.counter("c").inc();
+		restarted.report();
+		minutes = restarted.getHistory("c", HistoryRecorder.Resolution.MINUTE, start, start + TimeUnit.MINUTES.toMillis(2));
+		assertEquals(3, minutes.size());
+		assertEquals(13.0, minutes.get(2).getValues().get(MetricStore.COUNT), 0);
+		assertEquals(1, store.getPoints("c", HistoryRecorder.Resolution.MINUTE.getSeries(), start + TimeUnit.MINUTES.toMillis(2), now.get()).size());
+
+		// Series are deleted with metric
+		store.delete(Collections.singletonList("c"));
+		for (HistoryRecorder.Resolution r : HistoryRecorder.Resolution.values()) {
+			assertTrue(store.getPoints("c", r.getSeries(), 0, now.get()).isEmpty());
+		}
+	}
+}
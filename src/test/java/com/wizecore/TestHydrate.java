@@ -0,0 +1,68 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.PersistentMetricRegistry;
+import com.wizecore.metrics.XStreamStateCodec;
+
+public class TestHydrate {
+
+	@Test
+	public void testHydrate() {
+		LocalMetricStore store = new LocalMetricStore();
+		MetricRegistry reg = new PersistentMetricRegistry(store);
+		reg.counter("c").inc(3);
+		reg.meter("m").mark(5);
+		reg.histogram("h").update(7);
+		reg.timer("t").update(2, TimeUnit.SECONDS);
+
+		PersistentMetricRegistry restored = new PersistentMetricRegistry(store);
+		assertEquals(4, restored.hydrate());
+		assertTrue(restored.getMetrics().get("c") instanceof Counter);
+		assertTrue(restored.getMetrics().get("m") instanceof Meter);
+		assertTrue(restored.getMetrics().get("h") instanceof Histogram);
+		assertTrue(restored.getMetrics().get("t") instanceof Timer);
+		assertEquals(3, restored.counter("c").getCount());
+		assertEquals(5, restored.meter("m").getCount());
+		assertEquals(1, restored.histogram("h").getCount());
+		assertEquals(7, restored.histogram("h").getSnapshot().getMax());
+		assertEquals(1, restored.timer("t").getCount());
+		assertEquals(TimeUnit.SECONDS.toNanos(2), restored.timer("t").getSnapshot().getMax());
+		// Already registered metrics are not loaded again
+		assertEquals(0, restored.hydrate());
+	}
+
+	@Test
+	public void testHydrateLegacyState() {
+		// State written by previous versions as XStream XML
+		LocalMetricStore legacy = new LocalMetricStore(new XStreamStateCodec());
+		MetricRegistry reg = new PersistentMetricRegistry(legacy);
+		reg.counter("c").inc(3);
+		reg.meter("m").mark(5);
+		reg.histogram("h").update(7);
+		reg.timer("t").update(2, TimeUnit.SECONDS);
+
+		LocalMetricStore store = new LocalMetricStore();
+		for (String name : new String[] { "c", "m", "h", "t" }) {
+			store.save(name, legacy.getState(name), Collections.<String, Object>emptyMap());
+		}
+		PersistentMetricRegistry restored = new PersistentMetricRegistry(store);
+		assertEquals(4, restored.hydrate());
+		assertEquals(3, restored.counter("c").getCount());
+		assertEquals(5, restored.meter("m").getCount());
+		assertEquals(7, restored.histogram("h").getSnapshot().getMax());
+		assertEquals(TimeUnit.SECONDS.toNanos(2), restored.timer("t").getSnapshot().getMax());
+	}
+}
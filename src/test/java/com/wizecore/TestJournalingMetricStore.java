@@ -0,0 +1,238 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.wizecore.metrics.AsyncMetricStore;
+import com.wizecore.metrics.AsyncMetricStore.OverflowPolicy;
+import com.wizecore.metrics.JournalingMetricStore;
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.MetricStore;
+import com.wizecore.metrics.PartitionedMetricStore;
+import com.wizecore.metrics.PersistenceStats;
+import com.wizecore.metrics.PersistentMetricRegistry;
+
+public class TestJournalingMetricStore {
+
+	/**
+	 * Store which can be switched off.
+	 */
+	static class FlakyStore extends LocalMetricStore {
+		volatile boolean down;
+
+		private void check() {
+			if (down) {
+				throw new IllegalStateException("down");
+			}
+		}
+
+		@Override
+		public byte[] getState(String name) {
+			check();
+			return super.getState(name);
+		}
+
+		@Override
+		public void save(String name, byte[] state, Map<String, Object> values) {
+			check();
+			super.save(name, state, values);
+		}
+
+		@Override
+		public long addAndGet(String name, String field, long delta) {
+			check();
+			return super.addAndGet(name, field, delta);
+		}
+	}
+
+	private static Map<String, Object> values(long count) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put(MetricStore.COUNT, count);
+		return m;
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		File dir = Files.createTempDirectory("journal").toFile();
+		FlakyStore flaky = new FlakyStore();
+		JournalingMetricStore store = new JournalingMetricStore(flaky, dir, 4096, 3600000);
+		assertEquals(5, store.addAndGet("c", MetricStore.VALUE, 5));
+
+		flaky.down = true;
+		store.save("m", new byte[] { 1 }, values(1));
+		assertFalse(store.isAvailable());
+		store.save("m", new byte[] { 2 }, values(2));
+		assertEquals(7, store.addAndGet("c", MetricStore.VALUE, 2));
+		assertEquals(10, store.addAndGet("c", MetricStore.VALUE, 3));
+		assertArrayEquals(new byte[] { 2 }, store.getState("m"));
+		assertNull(flaky.getValue("m", MetricStore.COUNT));
+
+		assertFalse(store.replay());
+		flaky.down = false;
+		assertTrue(store.replay());
+		assertTrue(store.isAvailable());
+		assertArrayEquals(new byte[] { 2 }, flaky.getState("m"));
+		assertEquals(2L, flaky.getValue("m", MetricStore.COUNT));
+		assertEquals(10L, flaky.getValue("c", MetricStore.VALUE));
+		store.close();
+	}
+
+	@Test
+	public void testRestart() throws Exception {
+		File dir = Files.createTempDirectory("journal").toFile();
+		FlakyStore flaky = new FlakyStore();
+		flaky.down = true;
+		JournalingMetricStore store = new JournalingMetricStore(flaky, dir, 64, 3600000);
+		for (int i = 1; i <= 20; i++) {
+			store.save("m", new byte[] { (byte) i }, values(i));
+			store.addAndGet("c", MetricStore.VALUE, 1);
+		}
+		store.close();
+
+		flaky.down = false;
+		JournalingMetricStore restarted = new JournalingMetricStore(flaky, dir, 64, 3600000);
+		assertTrue(restarted.isAvailable());
+		assertArrayEquals(new byte[] { 20 }, restarted.getState("m"));
+		assertEquals(20L, flaky.getValue("m", MetricStore.COUNT));
+		assertEquals(20L, flaky.getValue("c", MetricStore.VALUE));
+		assertEquals(0, dir.listFiles().length);
+		restarted.close();
+	}
+
+	@Test
+	public void testUnreadMetrics() throws Exception {
+		File dir = Files.createTempDirectory("journal").toFile();
+		FlakyStore flaky = new FlakyStore();
+		flaky.save("stored", new byte[] { 9 }, values(9));
+		JournalingMetricStore store = new JournalingMetricStore(flaky, dir, 4096, 3600000);
+		assertArrayEquals(new byte[] { 9 }, store.getState("stored"));
+
+		flaky.down = true;
+		store.save("stored", new byte[] { 10 }, values(10));
+		assertArrayEquals(new byte[] { 10 }, store.getState("stored"));
+		try {
+			store.getState("other");
+			fail("State of metric not in journal must not be read as empty");
+		} catch (IllegalStateException e) {
+			// Expected, caller retries
+		}
+		try {
+			store.getAllStates(100);
+			fail("States must not be read from journal only");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+
+		// Metric started without reading its state must not overwrite stored one
+		flaky.down = false;
+		flaky.save("unread", new byte[] { 5 }, values(5));
+		flaky.down = true;
+		store.save("unread", new byte[] { 1 }, values(1));
+		store.save("fresh", new byte[] { 1 }, values(1));
+
+		// Failed replays don't roll new segments
+		int segments = dir.listFiles().length;
+		assertFalse(store.replay());
+		assertFalse(store.replay());
+		assertEquals(segments, dir.listFiles().length);
+
+		flaky.down = false;
+		assertTrue(store.replay());
+		assertArrayEquals(new byte[] { 10 }, flaky.getState("stored"));
+		assertArrayEquals(new byte[] { 5 }, flaky.getState("unread"));
+		assertArrayEquals(new byte[] { 1 }, flaky.getState("fresh"));
+		store.close();
+	}
+
+	@Test
+	public void testCreateDuringOutage() throws Exception {
+		File dir = Files.createTempDirectory("journal").toFile();
+		FlakyStore flaky = new FlakyStore();
+		PersistentMetricRegistry old = new PersistentMetricRegistry(new LocalMetricStore());
+		old.counter("c").inc(5);
+		flaky.save("c", old.getStore().getState("c"), values(5));
+
+		JournalingMetricStore store = new JournalingMetricStore(flaky, dir, 4096, 3600000);
+		PersistentMetricRegistry reg = new PersistentMetricRegistry(store);
+		reg.setLoadRetryInterval(1, TimeUnit.MILLISECONDS);
+		flaky.down = true;
+		// Outage isn't detected yet, failed read doesn't fail creation of metric
+		reg.counter("c").inc(2);
+		assertFalse(store.isAvailable());
+		assertEquals(2, reg.counter("c").getCount());
+		reg.timer("t").update(1, TimeUnit.SECONDS);
+		assertEquals(1, reg.timer("t").getCount());
+
+		flaky.down = false;
+		assertTrue(store.replay());
+		for (int i = 0; i < 500 && reg.counter("c").getCount() != 7; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(7, reg.counter("c").getCount());
+		reg.close();
+		store.close();
+	}
+
+	@Test
+	public void testProbe() throws Exception {
+		File dir = Files.createTempDirectory("journal").toFile();
+		final CountDownLatch released = new CountDownLatch(1);
+		final AtomicBoolean hanging = new AtomicBoolean();
+		LocalMetricStore hangs = new LocalMetricStore() {
+			@Override
+			public byte[] getState(String name) {
+				if (hanging.get()) {
+					try {
+						released.await();
+					} catch (InterruptedException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+				return super.getState(name);
+			}
+		};
+		JournalingMetricStore store = new JournalingMetricStore(hangs, dir, 4096, 20, 100);
+		assertTrue(store.isAvailable());
+		// Outage is detected without any write, even if store doesn't fail but hangs
+		hanging.set(true);
+		for (int i = 0; i < 500 && store.isAvailable(); i++) {
+			Thread.sleep(10);
+		}
+		assertFalse(store.isAvailable());
+
+		hanging.set(false);
+		released.countDown();
+		for (int i = 0; i < 500 && !store.isAvailable(); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(store.isAvailable());
+		store.close();
+	}
+
+	@Test
+	public void testStats() throws Exception {
+		File dir = Files.createTempDirectory("journal").toFile();
+		AsyncMetricStore async = new AsyncMetricStore(new LocalMetricStore(), 4, OverflowPolicy.BLOCK);
+		JournalingMetricStore store = new JournalingMetricStore(async, dir);
+		PersistentMetricRegistry reg = new PersistentMetricRegistry(new PartitionedMetricStore(store, "n"));
+		// Stores nested in chain are watched too
+		assertTrue(reg.getNames().contains(PersistenceStats.PREFIX + ".journal.available"));
+		assertTrue(reg.getNames().contains(PersistenceStats.PREFIX + ".async.inFlight"));
+		reg.close();
+		store.close();
+	}
+}
@@ -0,0 +1,99 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.MetricStore;
+import com.wizecore.metrics.PersistentMetricRegistry;
+
+public class TestLazyLoading {
+
+	@Test
+	public void testLazyLoading() throws Exception {
+		LocalMetricStore saved = new LocalMetricStore();
+		PersistentMetricRegistry old = new PersistentMetricRegistry(saved);
+		old.counter("c").inc(5);
+		old.timer("t").update(1, TimeUnit.SECONDS);
+
+		final CountDownLatch available = new CountDownLatch(1);
+		LocalMetricStore store = new LocalMetricStore() {
+			@Override
+			public byte[] getState(String name) {
+				try {
+					available.await();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+				return super.getState(name);
+			}
+		};
+		store.save("c", saved.getState("c"), Collections.<String, Object>emptyMap());
+		store.save("t", saved.getState("t"), Collections.<String, Object>emptyMap());
+		PersistentMetricRegistry reg = new PersistentMetricRegistry(store);
+		reg.setLazyLoading(true);
+		reg.counter("c").inc(2);
+		// More updates than kept while loading, only sample of them is buffered
+		for (int i = 0; i < 2000; i++) {
+			reg.timer("t").update(3, TimeUnit.SECONDS);
+		}
+		assertEquals(2, reg.counter("c").getCount());
+		assertEquals(2000, reg.timer("t").getCount());
+
+		available.countDown();
+		for (int i = 0; i < 100 && (reg.counter("c").getCount() != 7 || reg.timer("t").getCount() != 2001); i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(7, reg.counter("c").getCount());
+		assertEquals(2001, reg.timer("t").getCount());
+		assertEquals(TimeUnit.SECONDS.toNanos(3), reg.timer("t").getSnapshot().getMax());
+		reg.close();
+	}
+
+	@Test
+	public void testLazyLoadingFailures() throws Exception {
+		final AtomicInteger reads = new AtomicInteger();
+		final AtomicBoolean down = new AtomicBoolean(true);
+		LocalMetricStore store = new LocalMetricStore() {
+			@Override
+			public byte[] getState(String name) {
+				reads.incrementAndGet();
+				if (down.get()) {
+					throw new IllegalStateException("down");
+				}
+				return super.getState(name);
+			}
+		};
+		PersistentMetricRegistry old = new PersistentMetricRegistry(new LocalMetricStore());
+		old.counter("c").inc(5);
+		store.save("c", old.getStore().getState("c"), Collections.<String, Object>singletonMap(MetricStore.VALUE, 5L));
+
+		PersistentMetricRegistry reg = new PersistentMetricRegistry(store);
+		reg.setLoadRetryInterval(1, TimeUnit.MILLISECONDS);
+		reg.setLazyLoading(true);
+		reg.counter("c").inc(2);
+		// Load fails more times than loader logs error after, stored state is kept
+		for (int i = 0; i < 500 && reads.get() < 35; i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(reads.get() >= 35);
+		reg.counter("c").inc();
+		assertEquals(5L, store.getValue("c", MetricStore.VALUE));
+
+		down.set(false);
+		for (int i = 0; i < 500 && reg.counter("c").getCount() != 8; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(8, reg.counter("c").getCount());
+		assertEquals(8L, store.getValue("c", MetricStore.VALUE));
+		reg.close();
+	}
+}
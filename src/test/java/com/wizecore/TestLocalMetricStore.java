@@ -0,0 +1,136 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.MetricStore;
+import com.wizecore.metrics.PersistentMetricRegistry;
+import com.wizecore.metrics.UpdateCapture;
+
+public class TestLocalMetricStore {
+
+	@Test
+	public void testRestore() {
+		LocalMetricStore store = new LocalMetricStore();
+		MetricRegistry reg = new PersistentMetricRegistry(store);
+		reg.counter("c").inc(3);
+		reg.meter("m").mark(5);
+		reg.timer("t").update(2, TimeUnit.SECONDS);
+		assertEquals(3L, store.getValue("c", MetricStore.VALUE));
+		assertEquals(5L, store.getValue("m", MetricStore.COUNT));
+
+		MetricRegistry restored = new PersistentMetricRegistry(store);
+		assertEquals(3, restored.counter("c").getCount());
+		Meter m = restored.meter("m");
+		assertEquals(5, m.getCount());
+		assertEquals(1, restored.timer("t").getCount());
+		assertEquals(TimeUnit.SECONDS.toNanos(2), restored.timer("t").getSnapshot().getMax());
+	}
+
+	@Test
+	public void testRemove() {
+		LocalMetricStore store = new LocalMetricStore();
+		PersistentMetricRegistry reg = new PersistentMetricRegistry(store);
+		reg.counter("c").inc(3);
+		reg.meter("m1").mark();
+		reg.meter("m2").mark();
+		assertTrue(reg.remove("c"));
+		assertNull(store.getState("c"));
+		assertNull(store.getValue("c", MetricStore.VALUE));
+
+		reg.removeMatching(new MetricFilter() {
+			@Override
+			public boolean matches(String name, com.codahale.metrics.Metric metric) {
+				return name.startsWith("m");
+			}
+		});
+		assertEquals(0, store.getAllStates(100).size());
+		assertNull(store.getValue("m1", MetricStore.COUNT));
+		assertTrue(reg.getMeters().isEmpty());
+		assertTrue(!reg.getNames().contains("c"));
+		final AtomicInteger visited = new AtomicInteger();
+		reg.counter("c2").inc();
+		reg.forEach(Counter.class, MetricFilter.ALL, new BiConsumer<String, Counter>() {
+			@Override
+			public void accept(String name, Counter counter) {
+				visited.addAndGet((int) counter.getCount());
+			}
+		});
+		assertEquals(1, visited.get());
+		assertEquals(0, new PersistentMetricRegistry(store).counter("c").getCount());
+	}
+
+	@Test
+	public void testConcurrentRemove() throws Exception {
+		final PersistentMetricRegistry reg = new PersistentMetricRegistry(new LocalMetricStore());
+		Thread remover = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 20000; i++) {
+					reg.remove("c" + (i % 10));
+				}
+			}
+		});
+		remover.start();
+		for (int i = 0; i < 20000; i++) {
+			reg.counter("c" + (i % 10));
+		}
+		remover.join();
+		// Index must contain exactly registered counters
+		for (String name : reg.getCounters().keySet()) {
+			assertTrue(reg.getMetrics().get(name) == reg.getCounters().get(name));
+		}
+		for (int i = 0; i < 10; i++) {
+			assertEquals(reg.getMetrics().containsKey("c" + i), reg.getCounters().containsKey("c" + i));
+		}
+	}
+
+	@Test
+	public void testRemoveWriteBehind() {
+		final AtomicBoolean down = new AtomicBoolean(true);
+		LocalMetricStore store = new LocalMetricStore() {
+			@Override
+			public void save(String name, byte[] state, Map<String, Object> values) {
+				if (down.get()) {
+					throw new IllegalStateException("down");
+				}
+				super.save(name, state, values);
+			}
+		};
+		PersistentMetricRegistry reg = new PersistentMetricRegistry(store, 1, TimeUnit.HOURS, new UpdateCapture(1, 1024));
+		Counter c = reg.counter("c");
+		Meter m = reg.meter("m");
+		c.inc(3);
+		m.mark();
+		// Failed save keeps metrics dirty
+		reg.flush();
+		down.set(false);
+		for (int i = 0; i < 100; i++) {
+			c.inc();
+		}
+		assertTrue(reg.remove("c"));
+		// Updates of removed metric and pending saves must not bring its state back
+		c.inc();
+		reg.flush();
+		m.mark();
+		reg.close();
+		c.inc();
+		assertNull(store.getState("c"));
+		assertNull(store.getValue("c", MetricStore.VALUE));
+		assertEquals(2L, store.getValue("m", MetricStore.COUNT));
+	}
+}
@@ -0,0 +1,125 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import com.wizecore.metrics.BinaryStateCodec;
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.MappedMetricStore;
+import com.wizecore.metrics.MappedReservoir;
+import com.wizecore.metrics.MetricStore;
+import com.wizecore.metrics.PersistentMetricRegistry;
+
+public class TestMappedMetricStore {
+
+	@Test
+	public void testRestart() throws Exception {
+		File file = File.createTempFile("metrics", ".slab");
+		file.delete();
+		MappedMetricStore store = new MappedMetricStore(file, 16, 512, new BinaryStateCodec());
+		PersistentMetricRegistry reg = new PersistentMetricRegistry(store);
+		reg.counter("c").inc(3);
+		reg.meter("m").mark(5);
+		for (int i = 0; i < 100; i++) {
+			reg.timer("t").update(i, TimeUnit.MILLISECONDS);
+		}
+		assertEquals(5L, store.getValue("m", MetricStore.COUNT));
+		store.close();
+
+		MappedMetricStore reopened = new MappedMetricStore(file);
+		assertEquals(3L, reopened.getValue("c", MetricStore.VALUE));
+		assertEquals(5L, reopened.getAllValues(100).get("m").get(MetricStore.COUNT));
+		PersistentMetricRegistry restored = new PersistentMetricRegistry(reopened);
+		assertEquals(3, restored.counter("c").getCount());
+		Meter m = restored.meter("m");
+		assertEquals(5, m.getCount());
+		// State of timer with 100 samples doesn't fit into slot and is kept in memory only
+		Timer t = restored.timer("t");
+		assertEquals(0, t.getCount());
+		reopened.close();
+	}
+
+	@Test
+	public void testTornWrite() throws Exception {
+		File file = File.createTempFile("metrics", ".slab");
+		file.delete();
+		MappedMetricStore store = new MappedMetricStore(file, 4, 512, new BinaryStateCodec());
+		store.save("a", new byte[] { 1 }, Collections.<String, Object>singletonMap(MetricStore.COUNT, 1L));
+		store.save("a", new byte[] { 2 }, Collections.<String, Object>singletonMap(MetricStore.COUNT, 2L));
+		store.close();
+
+		// Corrupt state of the latest version, as if crashed while writing it
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(64 + 128 + 192 + 80);
+		raf.write(9);
+		raf.close();
+
+		MappedMetricStore reopened = new MappedMetricStore(file);
+		assertArrayEquals(new byte[] { 1 }, reopened.getState("a"));
+		assertEquals(1L, reopened.getValue("a", MetricStore.COUNT));
+		assertEquals(2, reopened.addAndGet("a", MetricStore.COUNT, 1));
+
+		reopened.delete(Collections.singletonList("a"));
+		assertNull(reopened.getState("a"));
+		reopened.save("b", new byte[] { 3 }, Collections.<String, Object>emptyMap());
+		assertNull(reopened.getValue("b", MetricStore.COUNT));
+		assertArrayEquals(new byte[] { 3 }, reopened.getState("b"));
+		reopened.close();
+	}
+
+	@Test
+	public void testReservoir() throws Exception {
+		File dir = Files.createTempDirectory("reservoirs").toFile();
+		LocalMetricStore store = new LocalMetricStore();
+		PersistentMetricRegistry reg = new PersistentMetricRegistry(store);
+		reg.setReservoirDir(dir);
+		for (int i = 1; i <= 10; i++) {
+			reg.timer("t").update(i, TimeUnit.MILLISECONDS);
+		}
+
+		PersistentMetricRegistry restored = new PersistentMetricRegistry(store);
+		restored.setReservoirDir(dir);
+		assertEquals(10, restored.timer("t").getCount());
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(10), restored.timer("t").getSnapshot().getMax());
+		assertTrue(new File(dir, "t.reservoir").exists());
+		assertTrue(restored.remove("t"));
+		assertFalse(new File(dir, "t.reservoir").exists());
+
+		final AtomicLong now = new AtomicLong(1000000);
+		Clock clock = new Clock() {
+			@Override
+			public long getTick() {
+				return now.get() * 1000000;
+			}
+
+			@Override
+			public long getTime() {
+				return now.get();
+			}
+		};
+		MappedReservoir r = new MappedReservoir(new File(dir, "r"), 4, 1, TimeUnit.SECONDS, clock);
+		for (int i = 1; i <= 6; i++) {
+			r.update(i);
+		}
+		assertArrayEquals(new long[] { 3, 4, 5, 6 }, r.getSnapshot().getValues());
+		now.addAndGet(2000);
+		r.update(7);
+		assertArrayEquals(new long[] { 7 }, r.getSnapshot().getValues());
+		r.close();
+	}
+}
@@ -0,0 +1,85 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.HdrHistogram.Histogram;
+import org.junit.Test;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Snapshot;
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.MergeableReservoir;
+import com.wizecore.metrics.MetricStore;
+import com.wizecore.metrics.PersistentTimer;
+
+public class TestMergeableReservoir {
+
+	@Test
+	public void testMerge() {
+		LocalMetricStore store = new LocalMetricStore();
+		MergeableReservoir a = new MergeableReservoir("h", store, "a", 2, 0);
+		MergeableReservoir b = new MergeableReservoir("h", store, "b", 2, 0);
+		for (int i = 1; i <= 100; i++) {
+			a.update(i);
+			b.update(i + 100);
+		}
+		a.save();
+		b.save();
+
+		Snapshot s = a.getSnapshot();
+		assertEquals(200, s.size());
+		assertEquals(1, s.getMin());
+		assertEquals(200, s.getMax(), 2);
+		assertEquals(100, s.getMedian(), 1);
+		assertEquals(b.getSnapshot().get99thPercentile(), s.get99thPercentile(), 0);
+
+		// Restarted node keeps own values, saving again does not double count
+		MergeableReservoir a2 = new MergeableReservoir("h", store, "a", 2, 0);
+		a2.save();
+		assertEquals(200, a2.getSnapshot().size());
+	}
+
+	@Test
+	public void testTimer() {
+		LocalMetricStore store = new LocalMetricStore();
+		PersistentTimer t = new PersistentTimer("t", new MergeableReservoir("t", store, "a", 2, 0), Clock.defaultClock(), store, null);
+		t.update(5, java.util.concurrent.TimeUnit.MILLISECONDS);
+		PersistentTimer restored = new PersistentTimer("t", new MergeableReservoir("t", store, "a", 2, 0), Clock.defaultClock(), store, null);
+		assertEquals(1, restored.getCount());
+		assertTrue(Math.abs(restored.getSnapshot().getMax() - 5000000) < 50000);
+	}
+
+	@Test
+	public void testStaleShards() throws InterruptedException {
+		LocalMetricStore store = new LocalMetricStore();
+		MergeableReservoir gone = new MergeableReservoir("h", store, "gone", 2, 0, 200);
+		for (int i = 1; i <= 100; i++) {
+			gone.update(i);
+		}
+		gone.save();
+		MergeableReservoir a = new MergeableReservoir("h", store, "a", 2, 0, 200);
+		a.update(1000);
+		a.save();
+		assertEquals(101, a.getSnapshot().size());
+		assertEquals(101, a.size());
+
+		// Node which doesn't save anymore stops contributing, own values are kept
+		Thread.sleep(300);
+		assertEquals(1, a.getSnapshot().size());
+		assertEquals(1, a.size());
+		MergeableReservoir restarted = new MergeableReservoir("h", store, "a", 2, 0, 200);
+		assertEquals(1, restarted.getSnapshot().size());
+
+		// Shard saved without time by older version is still merged
+		Histogram legacy = new Histogram(2);
+		legacy.recordValue(5);
+		ByteBuffer buf = ByteBuffer.allocate(legacy.getNeededByteBufferCapacity());
+		byte[] data = Arrays.copyOf(buf.array(), legacy.encodeIntoCompressedByteBuffer(buf));
+		store.putShard("h", MetricStore.SKETCH, "legacy", data);
+		assertEquals(2, restarted.getSnapshot().size());
+	}
+}
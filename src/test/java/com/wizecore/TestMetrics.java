@@ -1,21 +1,37 @@
 package com.wizecore;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Test;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
 
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.MetricRegistry.MetricSupplier;
 import com.codahale.metrics.Timer;
 import com.codahale.metrics.Timer.Context;
+import com.wizecore.metrics.MetricStore;
 import com.wizecore.metrics.PersistenceUtil;
+import com.wizecore.metrics.PersistentDeltaCounter;
 import com.wizecore.metrics.PersistentMetricRegistry;
+import com.wizecore.metrics.RedisMetricStore;
+import com.wizecore.metrics.SharedMeter;
 
 public class TestMetrics {
 
@@ -56,4 +72,145 @@ public class TestMetrics {
 		});
 		g.getValue();
 	}
+
+	@Test
+	public void testHashLayout() {
+		PersistenceUtil.setMetricPrefix("testmetrics");
+		RedisMetricStore store = new RedisMetricStore(PersistenceUtil.getRedis(), "testmetrics", null, RedisMetricStore.Layout.HASH);
+		store.delete(Arrays.asList("hashcounter", "hashmeter", "hashtimer"));
+
+		MetricRegistry reg = new PersistentMetricRegistry(store);
+		reg.counter("hashcounter").inc(3);
+		reg.meter("hashmeter").mark(5);
+		reg.timer("hashtimer").update(2, TimeUnit.SECONDS);
+		Map<String, Map<String, Object>> values = store.getAllValues(100);
+		assertEquals(3L, values.get("hashcounter").get(MetricStore.VALUE));
+		assertEquals(5L, values.get("hashmeter").get(MetricStore.COUNT));
+		assertEquals(1L, values.get("hashtimer").get(MetricStore.COUNT));
+
+		MetricRegistry restored = new PersistentMetricRegistry(store);
+		assertEquals(3, restored.counter("hashcounter").getCount());
+		assertEquals(5, restored.meter("hashmeter").getCount());
+		assertEquals(1, restored.timer("hashtimer").getCount());
+		assertEquals(TimeUnit.SECONDS.toNanos(2), restored.timer("hashtimer").getSnapshot().getMax());
+		store.delete(Arrays.asList("hashcounter", "hashmeter", "hashtimer"));
+	}
+
+	@Test
+	public void testRetention() {
+		PersistenceUtil.setMetricPrefix("testmetrics");
+		RedissonClient redis = PersistenceUtil.getRedis();
+		for (RedisMetricStore.Layout layout : RedisMetricStore.Layout.values()) {
+			RedisMetricStore store = new RedisMetricStore(redis, "testmetrics", null, layout);
+			store.setRetention(1, TimeUnit.HOURS);
+			store.delete(Arrays.asList("ttlcounter", "ttldelta", "ttlshared"));
+
+			PersistentMetricRegistry reg = new PersistentMetricRegistry(store);
+			reg.counter("ttlcounter").inc(3);
+			new PersistentDeltaCounter("ttldelta", store, null).inc(2);
+			new SharedMeter("ttlshared", store, null).mark(5);
+
+			Set<String> keys = new HashSet<String>();
+			for (String key : redis.getKeys().getKeysByPattern("testmetrics.ttl*")) {
+				keys.add(key);
+				// Every written key expires, including state of shared meter and ids of operations
+				long ttl = redis.getBucket(key).remainTimeToLive();
+				assertTrue(layout + " " + key + " " + ttl, ttl > 0 && ttl <= TimeUnit.HOURS.toMillis(1));
+			}
+			if (layout == RedisMetricStore.Layout.HASH) {
+				assertTrue(keys.contains("testmetrics.ttlcounter.hash"));
+			} else {
+				assertTrue(keys.contains("testmetrics.ttlcounter.state"));
+				assertTrue(keys.contains("testmetrics.ttlcounter"));
+			}
+			assertTrue(keys.contains("testmetrics.ttldelta.ops"));
+			assertTrue(keys.contains("testmetrics.ttlshared.shared"));
+			assertTrue(keys.contains("testmetrics.ttlshared.ops"));
+			store.delete(Arrays.asList("ttlcounter", "ttldelta", "ttlshared"));
+		}
+	}
+
+	@Test
+	public void testRemoveAfterScriptFlush() {
+		PersistenceUtil.setMetricPrefix("testmetrics");
+		RedisMetricStore store = new RedisMetricStore(PersistenceUtil.getRedis(), "testmetrics", null);
+		store.delete(Arrays.asList("flushedcounter", "flushedmeter"));
+
+		PersistentMetricRegistry reg = new PersistentMetricRegistry(store);
+		reg.counter("flushedcounter").inc(3);
+		reg.meter("flushedmeter").mark(5);
+		assertTrue(PersistenceUtil.getRedis().getKeys().getKeysByPattern("testmetrics.flushedcounter*").iterator().hasNext());
+
+		// Redis loses loaded scripts, e.g. after restart, delete must reload unlink script
+		PersistenceUtil.getRedis().getScript().scriptFlush();
+		assertTrue(reg.remove("flushedcounter"));
+		assertFalse(PersistenceUtil.getRedis().getKeys().getKeysByPattern("testmetrics.flushedcounter*").iterator().hasNext());
+
+		PersistenceUtil.getRedis().getScript().scriptFlush();
+		reg.removeMatching(MetricFilter.ALL);
+		assertFalse(PersistenceUtil.getRedis().getKeys().getKeysByPattern("testmetrics.flushedmeter*").iterator().hasNext());
+	}
+
+	@Test
+	public void testAddOnce() {
+		RedisMetricStore store = new RedisMetricStore(PersistenceUtil.getRedis(), "testmetrics", null);
+		store.delete(Arrays.asList("oncecounter"));
+		assertEquals(3, store.addAndGetOnce("oncecounter", MetricStore.VALUE, 3, "w1", "1"));
+		// Retry of applied add doesn't add again
+		assertEquals(3, store.addAndGetOnce("oncecounter", MetricStore.VALUE, 3, "w1", "1"));
+		assertEquals(5, store.addAndGetOnce("oncecounter", MetricStore.VALUE, 2, "w2", "1"));
+		assertEquals(6, store.addAndGetOnce("oncecounter", MetricStore.VALUE, 1, "w1", "2"));
+		assertEquals(6, store.addAndGet("oncecounter", MetricStore.VALUE, 0));
+		store.delete(Arrays.asList("oncecounter"));
+		assertEquals(0, store.addAndGet("oncecounter", MetricStore.VALUE, 0));
+		store.delete(Arrays.asList("oncecounter"));
+	}
+
+	@Test
+	public void testSharedMeter() throws InterruptedException {
+		PersistenceUtil.setMetricPrefix("testmetrics");
+		// Second client acts as another node
+		RedissonClient other = Redisson.create(PersistenceUtil.getRedis().getConfig());
+		try {
+			RedisMetricStore store1 = new RedisMetricStore(PersistenceUtil.getRedis(), "testmetrics", null);
+			RedisMetricStore store2 = new RedisMetricStore(other, "testmetrics", null);
+			store1.delete(Arrays.asList("sharedmeter"));
+
+			SharedMeter m1 = new SharedMeter("sharedmeter", store1, null);
+			SharedMeter m2 = new SharedMeter("sharedmeter", store2, null);
+			m1.mark(100);
+			// Script is reloaded if Redis has lost it
+			PersistenceUtil.getRedis().getScript().scriptFlush();
+			m2.mark(50);
+			// Getters return last known values, save refreshes them
+			m1.save();
+			assertEquals(150, m1.getCount());
+			assertEquals(150, m2.getCount());
+
+			// First tick after 5 seconds turns marks into rate
+			Thread.sleep(5100);
+			m2.mark(0);
+			double rate = m2.getOneMinuteRate();
+			assertEquals(30, rate, 0.001);
+			m1.refresh();
+			assertEquals(rate, m1.getOneMinuteRate(), 0.001);
+
+			// Rate decays on next tick without marks
+			Thread.sleep(5100);
+			m1.refresh();
+			double decayed = m1.getOneMinuteRate();
+			assertTrue(decayed > 0 && decayed < rate);
+			m2.refresh();
+			assertEquals(decayed, m2.getOneMinuteRate(), 0.001);
+			assertEquals(150, m2.getCount());
+
+			// Retry of applied marks only advances rates
+			assertEquals(160L, store1.markShared("sharedmeter", 10, "w1", "1").get(MetricStore.COUNT));
+			assertEquals(160L, store2.markShared("sharedmeter", 10, "w1", "1").get(MetricStore.COUNT));
+			assertEquals(170L, store2.markShared("sharedmeter", 10, "w1", "2").get(MetricStore.COUNT));
+			store1.delete(Arrays.asList("sharedmeter"));
+		} finally {
+			other.shutdown();
+		}
+	}
 }
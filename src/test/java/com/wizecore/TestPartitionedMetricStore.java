@@ -0,0 +1,43 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.wizecore.metrics.ClusterMetricRegistry;
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.MetricStore;
+import com.wizecore.metrics.PartitionedMetricStore;
+import com.wizecore.metrics.PersistentMetricRegistry;
+
+public class TestPartitionedMetricStore {
+
+	@Test
+	public void testPartitionedStore() {
+		LocalMetricStore store = new LocalMetricStore();
+		PersistentMetricRegistry a = new PersistentMetricRegistry(new PartitionedMetricStore(store, "a"));
+		PersistentMetricRegistry b = new PersistentMetricRegistry(new PartitionedMetricStore(store, "b"));
+		a.counter("c").inc(2);
+		b.counter("c").inc(3);
+		a.meter("m").mark(1);
+		b.meter("m").mark(4);
+		a.histogram("h").update(5);
+		b.histogram("h").update(9);
+
+		PersistentMetricRegistry restored = new PersistentMetricRegistry(new PartitionedMetricStore(store, "a"));
+		assertEquals(2, restored.counter("c").getCount());
+
+		// Saved before partitioning, its rate is stale
+		store.setValue("m", MetricStore.COUNT, 10L);
+		store.setValue("m", MetricStore.M1_RATE, 100.0);
+
+		ClusterMetricRegistry cluster = new ClusterMetricRegistry(new PartitionedMetricStore(store, "reader"));
+		assertEquals(5, cluster.getCounters().get("c").getCount());
+		assertEquals(15, cluster.getMeters().get("m").getCount());
+		assertTrue(cluster.getMeters().get("m").getOneMinuteRate() < 100);
+		assertEquals(2, cluster.getHistograms().get("h").getCount());
+		assertEquals(5, cluster.getHistograms().get("h").getSnapshot().getMin());
+		assertEquals(9, cluster.getHistograms().get("h").getSnapshot().getMax());
+	}
+}
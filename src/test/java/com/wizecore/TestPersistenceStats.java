@@ -0,0 +1,29 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.wizecore.metrics.HistoryRecorder;
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.PersistenceStats;
+import com.wizecore.metrics.PersistentMetricRegistry;
+
+public class TestPersistenceStats {
+
+	@Test
+	public void testStats() {
+		PersistentMetricRegistry reg = new PersistentMetricRegistry(new LocalMetricStore());
+		reg.counter("c").inc();
+		reg.histogram("h").update(1);
+		assertTrue(reg.getNames().contains(PersistenceStats.PREFIX + ".save"));
+		assertEquals(2, reg.getStats().getBytes("counter").getCount());
+		assertEquals(2, reg.getStats().getBytes("snapshot").getCount());
+		assertEquals(4, reg.getStats().getSave().getCount());
+		// Stats are not recorded in history by default
+		assertFalse(HistoryRecorder.EXCLUDE_STATS.matches(PersistenceStats.PREFIX + ".save", null));
+		assertTrue(HistoryRecorder.EXCLUDE_STATS.matches("c", null));
+	}
+}
@@ -0,0 +1,151 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Clock;
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.MetricStore;
+import com.wizecore.metrics.Persistent;
+import com.wizecore.metrics.PersistentMetricRegistry;
+import com.wizecore.metrics.SharedMeter;
+
+public class TestSharedMeter {
+
+	@Test
+	public void testSharedMeters() {
+		final AtomicLong now = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+		LocalMetricStore store = new LocalMetricStore();
+		store.setClock(new Clock() {
+			@Override
+			public long getTick() {
+				return now.get();
+			}
+		});
+		PersistentMetricRegistry a = new PersistentMetricRegistry(store);
+		PersistentMetricRegistry b = new PersistentMetricRegistry(store);
+		a.setSharedMeters(true);
+		b.setSharedMeters(true);
+		a.meter("m").mark(3);
+		b.meter("m").mark(2);
+		assertEquals(5, b.meter("m").getCount());
+		assertEquals(5L, store.getValue("m", MetricStore.COUNT));
+
+		// First tick turns marks of interval into rate, next ones decay it
+		now.addAndGet(TimeUnit.SECONDS.toNanos(6));
+		((Persistent) a.meter("m")).save();
+		assertEquals(1.0, a.meter("m").getOneMinuteRate(), 1e-9);
+		assertEquals(1.0, (Double) store.getValue("m", MetricStore.M15_RATE), 1e-9);
+		now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+		((Persistent) a.meter("m")).save();
+		// Two empty ticks since the last one
+		assertEquals(Math.exp(-10.0 / 60), a.meter("m").getOneMinuteRate(), 1e-9);
+		assertEquals(5, a.meter("m").getCount());
+	}
+
+	@Test
+	public void testSharedMeterFailure() {
+		final AtomicBoolean down = new AtomicBoolean(true);
+		LocalMetricStore store = new LocalMetricStore() {
+			@Override
+			public Map<String, Object> markShared(String name, long n, String writer, String id) {
+				if (down.get()) {
+					throw new IllegalStateException("down");
+				}
+				return super.markShared(name, n, writer, id);
+			}
+		};
+		PersistentMetricRegistry reg = new PersistentMetricRegistry(store, 1, TimeUnit.HOURS);
+		reg.setSharedMeters(true);
+		reg.meter("m").mark(2);
+		reg.counter("c").inc(3);
+		reg.flush();
+		// Failed shared meter doesn't stop other metrics from being saved
+		assertEquals(3L, store.getValue("c", MetricStore.VALUE));
+		assertEquals(2, reg.meter("m").getCount());
+		assertEquals(1, reg.getFlusher().getDirtyCount());
+
+		down.set(false);
+		reg.flush();
+		assertEquals(2L, store.getValue("m", MetricStore.COUNT));
+		assertEquals(0, reg.getFlusher().getDirtyCount());
+		reg.close();
+	}
+
+	@Test
+	public void testSharedMeterRetry() {
+		final AtomicBoolean timeout = new AtomicBoolean(true);
+		final List<String> ids = new ArrayList<String>();
+		LocalMetricStore store = new LocalMetricStore() {
+			private String last;
+
+			@Override
+			public Map<String, Object> markShared(String name, long n, String writer, String id) {
+				ids.add(id);
+				Map<String, Object> values = super.markShared(name, id.equals(last) ? 0 : n, writer, id);
+				last = id;
+				if (timeout.getAndSet(false)) {
+					// Applied, but reply is lost
+					throw new IllegalStateException("timeout");
+				}
+				return values;
+			}
+		};
+		SharedMeter m = new SharedMeter("m", store, null);
+		m.mark(5);
+		assertEquals(5, m.getCount());
+		m.mark(2);
+		// Retried with the same id, new marks are sent separately
+		assertEquals(ids.get(0), ids.get(1));
+		assertFalse(ids.get(1).equals(ids.get(2)));
+		assertEquals(7L, store.getValue("m", MetricStore.COUNT));
+		assertEquals(7, m.getCount());
+	}
+
+	@Test
+	public void testSharedMeterGetters() {
+		final AtomicInteger calls = new AtomicInteger();
+		final AtomicBoolean down = new AtomicBoolean();
+		LocalMetricStore store = new LocalMetricStore() {
+			@Override
+			public Map<String, Object> markShared(String name, long n, String writer, String id) {
+				calls.incrementAndGet();
+				if (down.get()) {
+					throw new IllegalStateException("down");
+				}
+				return super.markShared(name, n, writer, id);
+			}
+		};
+		store.markShared("m", 4, "other", "1");
+		SharedMeter m = new SharedMeter("m", store, null);
+		// Getters only return last known values
+		assertEquals(0, m.getCount());
+		m.getOneMinuteRate();
+		assertEquals(1, calls.get());
+
+		m.refresh();
+		assertEquals(4, m.getCount());
+		assertEquals(2, calls.get());
+		// Values are fresh, nothing to refresh yet
+		m.refresh();
+		assertEquals(2, calls.get());
+
+		double mean = m.getMeanRate();
+		down.set(true);
+		m.mark(1);
+		// Failed save keeps last known values
+		assertEquals(5, m.getCount());
+		assertEquals(mean, m.getMeanRate(), 0.0);
+		assertEquals(3, calls.get());
+	}
+}
@@ -0,0 +1,98 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.wizecore.metrics.BinaryStateCodec;
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.PersistentCounter;
+import com.wizecore.metrics.XStreamStateCodec;
+
+public class TestStateCodec {
+	private BinaryStateCodec codec = new BinaryStateCodec();
+
+	@Test
+	public void testTypeOf() {
+		XStreamStateCodec xml = new XStreamStateCodec();
+		Counter c = new Counter();
+		Meter m = new Meter();
+		Histogram h = new Histogram(new SlidingWindowReservoir(10));
+		Timer t = new Timer();
+		assertEquals(Counter.class, BinaryStateCodec.typeOf(codec.encode(c)));
+		assertEquals(Meter.class, BinaryStateCodec.typeOf(codec.encode(m)));
+		assertEquals(Histogram.class, BinaryStateCodec.typeOf(codec.encode(h)));
+		assertEquals(Timer.class, BinaryStateCodec.typeOf(codec.encode(t)));
+		assertEquals(Counter.class, BinaryStateCodec.typeOf(xml.encode(c)));
+		assertEquals(Meter.class, BinaryStateCodec.typeOf(xml.encode(m)));
+		assertEquals(Histogram.class, BinaryStateCodec.typeOf(xml.encode(h)));
+		assertEquals(Timer.class, BinaryStateCodec.typeOf(xml.encode(t)));
+		// Persistent metrics are written as plain ones
+		assertEquals(Counter.class, BinaryStateCodec.typeOf(xml.encode(new PersistentCounter("c", new LocalMetricStore(), null))));
+		assertEquals(null, BinaryStateCodec.typeOf("<gauge/>".getBytes()));
+	}
+
+	@Test
+	public void testCounter() {
+		Counter c = new Counter();
+		c.inc(42);
+		c.dec(50);
+		Counter restored = (Counter) codec.decode(codec.encode(c), new Counter());
+		assertEquals(-8, restored.getCount());
+	}
+
+	@Test
+	public void testMeter() {
+		Meter m = new Meter();
+		m.mark(1000);
+		Meter restored = (Meter) codec.decode(codec.encode(m), new Meter());
+		assertEquals(1000, restored.getCount());
+		assertEquals(m.getOneMinuteRate(), restored.getOneMinuteRate(), 0.001);
+		assertEquals(m.getFifteenMinuteRate(), restored.getFifteenMinuteRate(), 0.001);
+	}
+
+	@Test
+	public void testTimer() {
+		Timer t = new Timer();
+		for (int i = 0; i < 5000; i++) {
+			t.update(i, TimeUnit.MILLISECONDS);
+		}
+		byte[] data = codec.encode(t);
+		assertTrue(BinaryStateCodec.isBinary(data));
+		Timer restored = (Timer) codec.decode(data, new Timer());
+		assertEquals(5000, restored.getCount());
+		assertEquals(t.getSnapshot().get99thPercentile(), restored.getSnapshot().get99thPercentile(), 0.001);
+		assertEquals(t.getSnapshot().getMedian(), restored.getSnapshot().getMedian(), 0.001);
+	}
+
+	@Test
+	public void testHistogram() {
+		Histogram h = new Histogram(new SlidingWindowReservoir(10));
+		for (int i = 0; i < 30; i++) {
+			h.update(i);
+		}
+		Histogram restored = (Histogram) codec.decode(codec.encode(h), new Histogram(new SlidingWindowReservoir(10)));
+		assertEquals(30, restored.getCount());
+		assertEquals(h.getSnapshot().getMean(), restored.getSnapshot().getMean(), 0.001);
+	}
+
+	@Test
+	public void testSnapshot() {
+		Timer t = new Timer();
+		for (int i = 0; i < 100; i++) {
+			t.update(i, TimeUnit.MICROSECONDS);
+		}
+		Snapshot s = codec.decodeSnapshot(codec.encodeSnapshot(t.getSnapshot()));
+		assertEquals(t.getSnapshot().get95thPercentile(), s.get95thPercentile(), 0.001);
+		assertEquals(t.getSnapshot().getMax(), s.getMax());
+	}
+}
@@ -0,0 +1,68 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.PersistentMetricRegistry;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class TestTracing {
+
+	@Test
+	public void testEvents() throws Exception {
+		Assume.assumeTrue(FlightRecorder.isAvailable());
+		final AtomicReference<byte[]> saved = new AtomicReference<byte[]>();
+		LocalMetricStore store = new LocalMetricStore() {
+			@Override
+			public void save(String name, byte[] state, Map<String, Object> values) {
+				super.save(name, state, values);
+				saved.set(state);
+			}
+		};
+		Path file = Files.createTempFile("metrics", ".jfr");
+		try {
+			Recording recording = new Recording();
+			recording.enable("com.wizecore.metrics.Save");
+			recording.enable("com.wizecore.metrics.Load");
+			recording.start();
+			PersistentMetricRegistry reg = new PersistentMetricRegistry(store);
+			reg.counter("traced").inc(3);
+			int loaded = new PersistentMetricRegistry(store).hydrate();
+			recording.stop();
+			recording.dump(file);
+			recording.close();
+
+			RecordedEvent save = null;
+			RecordedEvent load = null;
+			for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+				if (e.getEventType().getName().equals("com.wizecore.metrics.Save") && "traced".equals(e.getString("metric"))) {
+					save = e;
+				} else if (e.getEventType().getName().equals("com.wizecore.metrics.Load")) {
+					load = e;
+				}
+			}
+			assertNotNull(save);
+			// Counter has no binary values, payload is its state
+			assertEquals(saved.get().length, save.getInt("payloadSize"));
+			assertTrue(save.getLong("codecTime") >= 0);
+			assertNotNull(load);
+			assertEquals(loaded, load.getInt("count"));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+}
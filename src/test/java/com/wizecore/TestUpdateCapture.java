@@ -0,0 +1,75 @@
+package com.wizecore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import com.wizecore.metrics.LocalMetricStore;
+import com.wizecore.metrics.MetricStore;
+import com.wizecore.metrics.PersistentMetricRegistry;
+import com.wizecore.metrics.UpdateCapture;
+
+public class TestUpdateCapture {
+
+	@Test
+	public void testUpdateCapture() throws Exception {
+		LocalMetricStore store = new LocalMetricStore();
+		// Tiny rings, so some updates overflow and are applied directly
+		UpdateCapture capture = new UpdateCapture(2, 4);
+		PersistentMetricRegistry reg = new PersistentMetricRegistry(store, 1, TimeUnit.HOURS, capture);
+		final Meter m = reg.meter("m");
+		final Counter c = reg.counter("c");
+		final Timer timer = reg.timer("t");
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						m.mark();
+						c.dec();
+						timer.update(j, TimeUnit.MILLISECONDS);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		reg.close();
+		assertEquals(0, capture.getPending());
+		assertEquals(40000L, store.getAllValues(100).get("m").get(MetricStore.COUNT));
+		assertEquals(-40000L, store.getAllValues(100).get("c").get(MetricStore.VALUE));
+		assertEquals(40000L, store.getAllValues(100).get("t").get(MetricStore.COUNT));
+	}
+
+	@Test
+	public void testUpdateCaptureWakeup() throws Exception {
+		UpdateCapture capture = new UpdateCapture(1, 4);
+		final AtomicLong applied = new AtomicLong();
+		UpdateCapture.Target target = new UpdateCapture.Target() {
+			@Override
+			public void apply(long value) {
+				applied.addAndGet(value);
+			}
+		};
+		// Idle consumer is parked until update arrives, none of updates must be left pending
+		for (int i = 1; i <= 1000; i++) {
+			assertTrue(capture.offer(target, 1));
+			long deadline = System.currentTimeMillis() + 1000;
+			while (applied.get() < i && System.currentTimeMillis() < deadline) {
+				Thread.yield();
+			}
+			assertEquals(i, applied.get());
+		}
+		capture.close();
+	}
+}